@@ -0,0 +1,180 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc.benchmarks;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.ratzlaff.james.arc.earc.DeflateSegment;
+import com.ratzlaff.james.arc.earc.EArcEntry;
+import com.ratzlaff.james.arc.earc.EArcHeader;
+import com.ratzlaff.james.arc.earc.EArcStringTable;
+import com.ratzlaff.james.arc.earc.SyntheticEArc;
+
+/**
+ * Benchmarks each step of reading an archive written by {@link SyntheticEArc}.
+ * Headers are created directly (rather than through
+ * {@link com.ratzlaff.james.arc.Earchive Earchive}) so that neither the
+ * {@link com.ratzlaff.james.arc.earc.EArcIndexCache index cache} nor the
+ * {@link com.ratzlaff.james.arc.ArchiveHandlePool handle pool} take part.
+ * <p>
+ * Running this class's {@link #main(String[]) main} method reports throughput
+ * along with the allocation rate ({@code gc.alloc.rate} and
+ * {@code gc.alloc.rate.norm}, the bytes allocated per operation). When run
+ * through {@code java -jar benchmarks.jar} add {@code -prof gc} to get the
+ * same.
+ *
+ * @author James Ratzlaff
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArchiveReadBenchmark {
+
+	@Param({ "100", "2000" })
+	public int entryCount;
+
+	@Param({ "0", "50", "100" })
+	public int compressedPercent;
+
+	@Param({ "false", "true" })
+	public boolean obfuscated;
+
+	@Param({ "16384" })
+	public int averageEntrySize;
+
+	private Path folder;
+	private FileChannel fileChannel;
+	private Supplier<FileChannel> fileChannelSupplier;
+	private EArcHeader header;
+	private EArcEntry[] entries;
+	private EArcEntry singleEntry;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		folder = Files.createTempDirectory("earc-benchmark");
+		Path archive = new SyntheticEArc().setEntryCount(entryCount).setCompressedPercent(compressedPercent)
+				.setObfuscated(obfuscated).setAverageEntrySize(averageEntrySize)
+				.write(folder.resolve("synthetic.earc"));
+		fileChannel = FileChannel.open(archive, StandardOpenOption.READ);
+		FileChannel fc = fileChannel;
+		fileChannelSupplier = () -> fc;
+		header = new EArcHeader(fileChannelSupplier);
+		entries = header.getEntries();
+		singleEntry = entries[entries.length >> 1];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		fileChannel.close();
+		Files.deleteIfExists(folder.resolve("synthetic.earc"));
+		Files.deleteIfExists(folder);
+	}
+
+	/**
+	 * Entries whose {@link DeflateSegment}s have not been read yet
+	 */
+	@State(Scope.Thread)
+	public static class FreshEntries {
+		private EArcEntry[] entries;
+
+		@Setup(Level.Invocation)
+		public void setup(ArchiveReadBenchmark benchmark) {
+			entries = new EArcHeader(benchmark.fileChannelSupplier).getEntries();
+		}
+	}
+
+	/**
+	 * Reading and parsing the 64 byte header
+	 */
+	@Benchmark
+	public EArcHeader openHeader() {
+		return new EArcHeader(fileChannelSupplier);
+	}
+
+	/**
+	 * Opening the header and decoding every metadata record (and deobfuscating
+	 * it if the archive is obfuscated)
+	 */
+	@Benchmark
+	public EArcEntry[] getEntries() {
+		return new EArcHeader(fileChannelSupplier).getEntries();
+	}
+
+	/**
+	 * Reading the url and path tables and decoding every string in them
+	 */
+	@Benchmark
+	public void decodeStringTable(Blackhole bh) {
+		EArcStringTable strings = EArcStringTable.read(fileChannel, header.getUrlTableLocation(),
+				header.getDataTableLocation());
+		for (int i = 0; i < strings.size(); i++) {
+			bh.consume(strings.getStringAt(i));
+		}
+	}
+
+	/**
+	 * Reading the segment headers of every entry
+	 */
+	@Benchmark
+	public void getDeflateSegments(FreshEntries fresh, Blackhole bh) {
+		for (EArcEntry entry : fresh.entries) {
+			bh.consume(entry.getDeflateSegments());
+		}
+	}
+
+	/**
+	 * Extracting the entry in the middle of the archive into memory
+	 */
+	@Benchmark
+	public byte[] extractEntry() {
+		return singleEntry.getExtractData();
+	}
+
+	/**
+	 * Extracting every entry into memory, one after another
+	 */
+	@Benchmark
+	public void extractArchive(Blackhole bh) {
+		for (EArcEntry entry : entries) {
+			bh.consume(entry.getExtractData());
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(ArchiveReadBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+
+}
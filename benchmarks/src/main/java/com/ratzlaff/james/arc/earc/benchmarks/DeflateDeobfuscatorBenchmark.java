@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc.benchmarks;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ratzlaff.james.arc.earc.obfus.DeflateDeobfuscator;
+
+/**
+ * Compares deobfuscating segment headers one value at a time (the way
+ * {@link com.ratzlaff.james.arc.earc.DeflateSegment DeflateSegment} used to on
+ * every call to its size getters) with
+ * {@link DeflateDeobfuscator#toggleObfuscation(short[], int[], int[], long[], int, int)}
+ * on a synthetic set of (key, compressed size, buffer size) triples. The keys
+ * used are random, so the results say nothing about real archives other than
+ * how long the arithmetic takes.
+ *
+ * @author James Ratzlaff
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeflateDeobfuscatorBenchmark {
+
+	@Param({ "1000000" })
+	public int segments;
+
+	private DeflateDeobfuscator deobfuscator;
+	private short[] keys;
+	private int[] compressedSizes;
+	private int[] bufferSizes;
+	private int[] unlockedCompressedSizes;
+	private int[] unlockedBufferSizes;
+	private long[] intermediateKeys;
+
+	@Setup
+	public void setup() {
+		SplittableRandom random = new SplittableRandom(0x65617263L);
+		deobfuscator = new DeflateDeobfuscator(random.nextLong(), random.nextLong());
+		keys = new short[segments];
+		compressedSizes = new int[segments];
+		bufferSizes = new int[segments];
+		for (int i = 0; i < segments; i++) {
+			keys[i] = (short) random.nextInt();
+			compressedSizes[i] = random.nextInt();
+			bufferSizes[i] = random.nextInt();
+		}
+		unlockedCompressedSizes = new int[segments];
+		unlockedBufferSizes = new int[segments];
+		intermediateKeys = new long[segments];
+		for (int i = 0; i < segments; i++) {
+			intermediateKeys[i] = deobfuscator.getIntermediateKey(keys[i]);
+		}
+	}
+
+	/**
+	 * Both values of every triple through
+	 * {@link DeflateDeobfuscator#getToggledObfuscationForLeftValue(short, int)}
+	 * and {@link DeflateDeobfuscator#getToggledObfuscationForRightValue(short, int)},
+	 * computing the intermediate key twice per triple
+	 */
+	@Benchmark
+	public int[] perCall() {
+		DeflateDeobfuscator dd = deobfuscator;
+		for (int i = 0; i < segments; i++) {
+			unlockedCompressedSizes[i] = dd.getToggledObfuscationForLeftValue(keys[i], compressedSizes[i]);
+			unlockedBufferSizes[i] = dd.getToggledObfuscationForRightValue(keys[i], bufferSizes[i]);
+		}
+		return unlockedBufferSizes;
+	}
+
+	/**
+	 * Every triple in one pass, keeping the intermediate keys. Copying the input
+	 * first keeps the work the same as {@link #perCall()}, which does not modify
+	 * its input.
+	 */
+	@Benchmark
+	public int[] batch() {
+		System.arraycopy(compressedSizes, 0, unlockedCompressedSizes, 0, segments);
+		System.arraycopy(bufferSizes, 0, unlockedBufferSizes, 0, segments);
+		deobfuscator.toggleObfuscation(keys, unlockedCompressedSizes, unlockedBufferSizes, intermediateKeys, 0,
+				segments);
+		return unlockedBufferSizes;
+	}
+
+	/**
+	 * Both values of every triple with intermediate keys that were already
+	 * worked out, which is what {@link com.ratzlaff.james.arc.earc.DeflateSegment
+	 * DeflateSegment} now does after reading its header
+	 */
+	@Benchmark
+	public int[] cachedIntermediateKeys() {
+		for (int i = 0; i < segments; i++) {
+			long intermediateKey = intermediateKeys[i];
+			unlockedCompressedSizes[i] = DeflateDeobfuscator.getToggledObfuscationForLeftValue(intermediateKey,
+					compressedSizes[i]);
+			unlockedBufferSizes[i] = DeflateDeobfuscator.getToggledObfuscationForRightValue(intermediateKey,
+					bufferSizes[i]);
+		}
+		return unlockedBufferSizes;
+	}
+
+}
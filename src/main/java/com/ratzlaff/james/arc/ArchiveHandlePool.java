@@ -0,0 +1,554 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ratzlaff.james.arc.earc.ui.Configuration;
+
+/**
+ * A shared set of open archive {@link FileChannel}s, one per archive path.
+ * Channels are handed out as {@link Lease}s: a leased channel is pinned and is
+ * never closed by the pool, so any number of readers can read the same channel
+ * at once. Once its last lease has been released a channel is kept open in case
+ * it is wanted again, and once more than {@link #getMaxOpen()} channels are open
+ * the idle one that was released longest ago is closed. Channels that are still
+ * leased do not count against the maximum being met; they are only closed after
+ * they have been released.
+ * <p>
+ * {@link Earchive}s (including the targets of an
+ * {@link com.ratzlaff.james.arc.earc.EArcReferenceResolver
+ * EArcReferenceResolver}) read through {@link #channel(Path)}, a view that
+ * takes a lease for each read and releases it as soon as the read is done. An
+ * archive that is open but not being read therefore holds nothing open, so
+ * however many archives are open (such as a whole data folder dropped into the
+ * explorer) no more than {@link #getMaxOpen()} files are open once they are
+ * idle, and an evicted archive's channel is reopened by its next read.
+ * <p>
+ * Taking a lease of a channel that is already open does not lock the pool, and
+ * reading the channel of a lease ({@link Lease#channel()}) never does.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class ArchiveHandlePool {
+	/**
+	 * The maximum number of channels {@link #DEFAULT_INSTANCE} keeps open
+	 */
+	public static final int DEFAULT_MAX_OPEN = Configuration.get().getOrDefault(ArchiveHandlePool.class,
+			"DEFAULT_MAX_OPEN", Integer::valueOf, 256);
+	/**
+	 * The pool used by {@link Earchive}s unless they are given another one
+	 */
+	public static final ArchiveHandlePool DEFAULT_INSTANCE = new ArchiveHandlePool(DEFAULT_MAX_OPEN);
+
+	private static final Comparator<Handle> LEAST_RECENTLY_RELEASED = (a, b) -> Long.compare(a.released,
+			b.released);
+
+	private final ConcurrentHashMap<Path, Handle> open = new ConcurrentHashMap<Path, Handle>();
+	private final AtomicLong clock = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder opens = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private volatile int maxOpen;
+
+	/**
+	 * The channel of one archive and the number of leases it has. A count of
+	 * {@code -1} means the handle has been retired (its channel closed and it
+	 * removed from the pool) and can no longer be leased.
+	 */
+	private static final class Handle {
+		private final Path path;
+		private final AtomicInteger leases = new AtomicInteger();
+		private volatile FileChannel channel;
+		private volatile long released;
+
+		private Handle(Path path, FileChannel channel) {
+			this.path = path;
+			this.channel = channel;
+		}
+
+		private boolean pin() {
+			int current;
+			do {
+				current = leases.get();
+				if (current < 0) {
+					return false;
+				}
+			} while (!leases.compareAndSet(current, current + 1));
+			return true;
+		}
+
+		private boolean retire() {
+			return leases.compareAndSet(0, -1);
+		}
+	}
+
+	/**
+	 * A pin on the channel of an archive. The channel stays open (or is reopened
+	 * if something other than the pool closed it, such as an interrupted read)
+	 * until the lease is {@link #close() closed}.
+	 */
+	public final class Lease implements Closeable {
+		private final Handle handle;
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		private Lease(Handle handle) {
+			this.handle = handle;
+		}
+
+		/**
+		 *
+		 * @return the normalized path of the leased archive
+		 */
+		public Path getPath() {
+			return handle.path;
+		}
+
+		/**
+		 *
+		 * @return the open, read only channel of the archive
+		 * @throws IOException
+		 *             if this lease has been closed or the channel had to be
+		 *             reopened and could not be
+		 */
+		public FileChannel channel() throws IOException {
+			if (closed.get()) {
+				throw new ClosedChannelException();
+			}
+			return channelOf(handle);
+		}
+
+		/**
+		 * Releases the channel. It is left open for the next lease of the same
+		 * archive until the pool needs the room.
+		 */
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true)) {
+				release(handle);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param maxOpen
+	 *            the maximum number of channels to keep open, values less than 1
+	 *            are treated as 1
+	 */
+	public ArchiveHandlePool(int maxOpen) {
+		this.maxOpen = Math.max(1, maxOpen);
+	}
+
+	/**
+	 *
+	 * @param path
+	 *            the path of an archive
+	 * @return a lease of an open, read only channel of {@code path}, which must
+	 *         be closed once the channel is no longer being read
+	 * @throws IOException
+	 *             if the file could not be opened
+	 */
+	public Lease lease(Path path) throws IOException {
+		return new Lease(acquire(key(path)));
+	}
+
+	/**
+	 *
+	 * @param path
+	 *            the path of an archive
+	 * @return a read only channel of {@code path} that leases the pooled channel
+	 *         for each read (or size, transfer or map) and releases it once that
+	 *         is done, so it holds nothing open between reads. Closing it does not
+	 *         close the pooled channel.
+	 */
+	public FileChannel channel(Path path) {
+		return new PooledChannel(key(path));
+	}
+
+	/**
+	 *
+	 * @param key
+	 *            a normalized path
+	 * @return the pinned handle of {@code key}, opened if it was not already
+	 * @throws IOException
+	 *             if the file could not be opened
+	 */
+	private Handle acquire(Path key) throws IOException {
+		Handle handle = open.get(key);
+		if (handle != null && handle.pin()) {
+			hits.increment();
+			return handle;
+		}
+		synchronized (this) {
+			handle = open.get(key);
+			if (handle != null && handle.pin()) {
+				hits.increment();
+			} else {
+				handle = new Handle(key, FileChannel.open(key, StandardOpenOption.READ));
+				handle.leases.set(1);
+				opens.increment();
+				open.put(key, handle);
+				evictOverflow();
+			}
+		}
+		return handle;
+	}
+
+	/**
+	 *
+	 * @return the open channel of a pinned handle, reopening it if something
+	 *         other than the pool closed it (such as an interrupted read)
+	 */
+	private FileChannel channelOf(Handle handle) throws IOException {
+		FileChannel fc = handle.channel;
+		return fc.isOpen() ? fc : reopen(handle);
+	}
+
+	private synchronized FileChannel reopen(Handle handle) throws IOException {
+		FileChannel fc = handle.channel;
+		if (!fc.isOpen()) {
+			fc = FileChannel.open(handle.path, StandardOpenOption.READ);
+			handle.channel = fc;
+			opens.increment();
+		}
+		return fc;
+	}
+
+	private void release(Handle handle) {
+		handle.released = clock.incrementAndGet();
+		if (handle.leases.decrementAndGet() == 0 && open.size() > maxOpen) {
+			synchronized (this) {
+				evictOverflow();
+			}
+		}
+	}
+
+	private static Path key(Path path) {
+		return path.toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Closes the least recently released idle channels until no more than
+	 * {@link #getMaxOpen()} are open or only leased ones are left
+	 */
+	private void evictOverflow() {
+		if (open.size() <= maxOpen) {
+			return;
+		}
+		List<Handle> idle = new ArrayList<Handle>();
+		for (Handle handle : open.values()) {
+			if (handle.leases.get() == 0) {
+				idle.add(handle);
+			}
+		}
+		idle.sort(LEAST_RECENTLY_RELEASED);
+		for (int i = 0; i < idle.size() && open.size() > maxOpen; i++) {
+			if (retire(idle.get(i))) {
+				evictions.increment();
+			}
+		}
+	}
+
+	private boolean retire(Handle handle) {
+		boolean retired = handle.retire();
+		if (retired) {
+			open.remove(handle.path, handle);
+			closeQuietly(handle.channel);
+		}
+		return retired;
+	}
+
+	private static void closeQuietly(FileChannel fc) {
+		try {
+			fc.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Closes the channel of {@code path} if it is open and no longer leased. A
+	 * channel that is still leased is left open.
+	 *
+	 * @param path
+	 *            the path of an archive
+	 * @return {@code true} if the channel was closed
+	 */
+	public synchronized boolean close(Path path) {
+		Handle handle = open.get(key(path));
+		return handle != null && retire(handle);
+	}
+
+	/**
+	 * Closes every channel that is not leased
+	 */
+	public synchronized void clear() {
+		for (Handle handle : open.values()) {
+			retire(handle);
+		}
+	}
+
+	public int getMaxOpen() {
+		return maxOpen;
+	}
+
+	/**
+	 * A read only view of the pooled channel of one archive. Every operation that
+	 * touches the file leases the channel only for as long as it runs.
+	 */
+	private final class PooledChannel extends FileChannel {
+		private final Path key;
+		private long position;
+
+		private PooledChannel(Path key) {
+			this.key = key;
+		}
+
+		private void ensureOpen() throws ClosedChannelException {
+			if (!isOpen()) {
+				throw new ClosedChannelException();
+			}
+		}
+
+		@Override
+		public int read(ByteBuffer dst, long position) throws IOException {
+			ensureOpen();
+			Handle handle = acquire(key);
+			try {
+				return channelOf(handle).read(dst, position);
+			} finally {
+				release(handle);
+			}
+		}
+
+		@Override
+		public long size() throws IOException {
+			ensureOpen();
+			Handle handle = acquire(key);
+			try {
+				return channelOf(handle).size();
+			} finally {
+				release(handle);
+			}
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			ensureOpen();
+			Handle handle = acquire(key);
+			try {
+				return channelOf(handle).transferTo(position, count, target);
+			} finally {
+				release(handle);
+			}
+		}
+
+		/**
+		 * The mapping stays valid after the lease is released and the pooled
+		 * channel is closed
+		 */
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+			if (mode != MapMode.READ_ONLY) {
+				throw new NonWritableChannelException();
+			}
+			ensureOpen();
+			Handle handle = acquire(key);
+			try {
+				return channelOf(handle).map(mode, position, size);
+			} finally {
+				release(handle);
+			}
+		}
+
+		@Override
+		public synchronized int read(ByteBuffer dst) throws IOException {
+			int read = read(dst, position);
+			if (read > 0) {
+				position += read;
+			}
+			return read;
+		}
+
+		@Override
+		public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			long total = 0;
+			for (int i = offset; i < offset + length; i++) {
+				if (dsts[i].hasRemaining()) {
+					int read = read(dsts[i]);
+					if (read < 0) {
+						return total > 0 ? total : -1;
+					}
+					total += read;
+					if (dsts[i].hasRemaining()) {
+						break;
+					}
+				}
+			}
+			return total;
+		}
+
+		@Override
+		public synchronized long position() throws IOException {
+			ensureOpen();
+			return position;
+		}
+
+		@Override
+		public synchronized FileChannel position(long newPosition) throws IOException {
+			if (newPosition < 0) {
+				throw new IllegalArgumentException("Negative position: " + newPosition);
+			}
+			ensureOpen();
+			position = newPosition;
+			return this;
+		}
+
+		@Override
+		public void force(boolean metaData) throws IOException {
+			ensureOpen();
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			throw new NonWritableChannelException();
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			throw new NonWritableChannelException();
+		}
+
+		@Override
+		public int write(ByteBuffer src, long position) {
+			throw new NonWritableChannelException();
+		}
+
+		@Override
+		public FileChannel truncate(long size) {
+			throw new NonWritableChannelException();
+		}
+
+		@Override
+		public long transferFrom(ReadableByteChannel src, long position, long count) {
+			throw new NonWritableChannelException();
+		}
+
+		/**
+		 * A lock belongs to one open channel, which this view does not keep
+		 */
+		@Override
+		public FileLock lock(long position, long size, boolean shared) {
+			throw new UnsupportedOperationException("Pooled channels can not be locked");
+		}
+
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared) {
+			throw new UnsupportedOperationException("Pooled channels can not be locked");
+		}
+
+		/**
+		 * Only this view is closed, the pooled channel is left to the pool
+		 */
+		@Override
+		protected void implCloseChannel() {
+		}
+
+		@Override
+		public String toString() {
+			return "PooledChannel[" + key + "]";
+		}
+	}
+
+	/**
+	 *
+	 * @param maxOpen
+	 *            the maximum number of channels to keep open, if there are
+	 *            currently more than this open the least recently released idle
+	 *            ones are closed
+	 * @return this instance
+	 */
+	public synchronized ArchiveHandlePool setMaxOpen(int maxOpen) {
+		this.maxOpen = Math.max(1, maxOpen);
+		evictOverflow();
+		return this;
+	}
+
+	public int getOpenCount() {
+		return open.size();
+	}
+
+	/**
+	 *
+	 * @return the number of leases that were served by an already open channel
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 *
+	 * @return the number of times a channel had to be opened (or reopened)
+	 */
+	public long getOpens() {
+		return opens.sum();
+	}
+
+	/**
+	 *
+	 * @return the number of idle channels closed to make room for others
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 *
+	 * @return the fraction of leases that were served by an already open channel
+	 */
+	public double getHitRate() {
+		long h = getHits();
+		long total = h + getOpens();
+		return total > 0 ? ((double) h) / total : 0d;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("ArchiveHandlePool [maxOpen=");
+		builder.append(getMaxOpen());
+		builder.append(", open=");
+		builder.append(getOpenCount());
+		builder.append(", hits=");
+		builder.append(getHits());
+		builder.append(", opens=");
+		builder.append(getOpens());
+		builder.append(", evictions=");
+		builder.append(getEvictions());
+		builder.append("]");
+		return builder.toString();
+	}
+
+}
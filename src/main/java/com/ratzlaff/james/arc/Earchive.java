@@ -10,11 +10,19 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.ratzlaff.james.arc.earc.ContainerNode;
 import com.ratzlaff.james.arc.earc.EArcEntry;
 import com.ratzlaff.james.arc.earc.EArcHeader;
-import com.ratzlaff.james.arc.earc.LeafNode;
+import com.ratzlaff.james.arc.earc.EArcMetrics;
+import com.ratzlaff.james.arc.earc.EArcIndexCache;
+import com.ratzlaff.james.arc.earc.PathTrieBuilder;
+import com.ratzlaff.james.util.io.MappedWindows;
+import com.ratzlaff.james.util.io.PositionalReads;
 
 /**
  * 
@@ -76,9 +84,34 @@ public class Earchive implements Closeable{
 	 * When converted to a string it reads 'FARC'
 	 */
 	public static final int MAGIC = getNativeValue(0x43524146);// ASCII VALUE:FARC
+	/**
+	 * The extension of earc files
+	 */
+	public static final String FILE_EXTENSION = ".earc";
+	
+	/**
+	 * How an {@link Earchive} reads from its file
+	 */
+	public static enum OpenMode {
+		/**
+		 * Reads are positional reads against the file's channel (with only the
+		 * data table being mapped if it fits within a single buffer)
+		 */
+		CHANNEL,
+		/**
+		 * The whole file is mapped as a series of at most 1 GB windows (see
+		 * {@link MappedWindows}) and every read is served from them. Useful for
+		 * archives larger than 2 GB.
+		 */
+		MAPPED;
+	}
+	
 	private EArcHeader header;
 	private Path path;
-	private transient FileChannel fileChannel;
+	private final OpenMode openMode;
+	private final transient ArchiveHandlePool handlePool;
+	private transient volatile FileChannel channel;
+	private transient MappedWindows windows;
 
 	
 	/**
@@ -90,14 +123,92 @@ public class Earchive implements Closeable{
 	 * @see #isEArcFile(Path)
 	 */
 	public static Earchive create(Path path) {
+		return create(path, OpenMode.CHANNEL);
+	}
+	
+	/**
+	 * Creates a new {@link Earchive} object from the given path that reads from its file using the given mode.
+	 * @param path the Path of a .earc file
+	 * @param openMode how the archive should be read, if {@code null} {@link OpenMode#CHANNEL} is used
+	 * @return a new {@link Earchive} object
+	 * 
+	 * @see #create(Path)
+	 */
+	public static Earchive create(Path path, OpenMode openMode) {
+		return create(path, openMode, null);
+	}
+	
+	/**
+	 * Creates a new {@link Earchive} object from the given path that gets its channel from the given pool.
+	 * @param path the Path of a .earc file
+	 * @param openMode how the archive should be read, if {@code null} {@link OpenMode#CHANNEL} is used
+	 * @param handlePool the pool to get the archive's channel from, if {@code null} {@link ArchiveHandlePool#DEFAULT_INSTANCE} is used
+	 * @return a new {@link Earchive} object
+	 */
+	public static Earchive create(Path path, OpenMode openMode, ArchiveHandlePool handlePool) {
 		Earchive archive = null;
-		if(isEArcFile(path)) {
-			archive = new Earchive(path);
-		} else {
+		ArchiveHandlePool pool = handlePool!=null?handlePool:ArchiveHandlePool.DEFAULT_INSTANCE;
+		if(exists(path)) {
+			try(ArchiveHandlePool.Lease headerLease = pool.lease(path)) {
+				FileChannel fc = headerLease.channel();
+				ByteBuffer headerBytes = ByteBuffer.allocate(EArcHeader.HEADER_SIZE).order(ByteOrder.nativeOrder());
+				PositionalReads.readFullyAndFlip(fc, headerBytes, 0);
+				EArcMetrics.DEFAULT_INSTANCE.getBytesRead().add(headerBytes.remaining());
+				if(headerBytes.remaining()>3&&headerBytes.getInt(0)==MAGIC) {
+					archive = new Earchive(path, openMode, pool);
+					EArcMetrics.DEFAULT_INSTANCE.getArchivesOpened().increment();
+					if(OpenMode.CHANNEL.equals(archive.getOpenMode())) {
+						archive.header=archive.createHeader(new EArcHeader(archive::getFileChannel, null, headerBytes, fc.size()));
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if(archive==null) {
+			pool.close(path);
 			System.err.println(String.format("The given path, \"%s\" is not earchive. Returning null.", path));
 		}
 		return archive;
 	}
+	
+	/**
+	 * Opens every earc file (any file ending with {@link #FILE_EXTENSION}) under {@code root} in parallel.
+	 * Each file is opened once and its header read with a single read.
+	 * @param root the directory to search
+	 * @return the archives found, in path order
+	 * @throws IOException if {@code root} can not be walked
+	 */
+	public static List<Earchive> scan(Path root) throws IOException {
+		return scan(root, OpenMode.CHANNEL, null);
+	}
+	
+	/**
+	 * 
+	 * @param root the directory to search
+	 * @param openMode how the archives should be read
+	 * @param handlePool the pool the archives should get their channels from, if {@code null} {@link ArchiveHandlePool#DEFAULT_INSTANCE} is used
+	 * @return the archives found, in path order
+	 * @throws IOException if {@code root} can not be walked
+	 * @see #scan(Path)
+	 */
+	public static List<Earchive> scan(Path root, OpenMode openMode, ArchiveHandlePool handlePool) throws IOException {
+		List<Path> candidates = null;
+		try(Stream<Path> walk = Files.walk(root)){
+			candidates = walk.filter(Files::isRegularFile).filter(Earchive::hasEArcExtension).sorted().collect(Collectors.toList());
+		}
+		return candidates.parallelStream().map(p->create(p, openMode, handlePool)).filter(Objects::nonNull).collect(Collectors.toList());
+	}
+	
+	/**
+	 * 
+	 * @param p a path
+	 * @return {@code true} if the file name of {@code p} ends with {@link #FILE_EXTENSION} (ignoring case)
+	 */
+	public static boolean hasEArcExtension(Path p) {
+		Path fileName = p!=null?p.getFileName():null;
+		return fileName!=null&&fileName.toString().toLowerCase().endsWith(FILE_EXTENSION);
+	}
 	/**
 	 * equivalent to invoking {@link #create(Path) create(}{@link Paths#get(String, String...) Paths.get(path,paths))}
 	 * @param path the first path node
@@ -111,15 +222,25 @@ public class Earchive implements Closeable{
 		return archive;
 	}
 	
+	/**
+	 * 
+	 * @return the channel this archive is read through, which leases the pooled channel for each read (see {@link ArchiveHandlePool#channel(Path)}) so that an archive that is not being read holds no file open, or {@code null} if this archive has no path
+	 */
 	private FileChannel getFileChannel() {
-		if(fileChannel==null) {
-			try {
-				fileChannel=FileChannel.open(getPath(), StandardOpenOption.READ);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+		FileChannel result = channel;
+		if(result==null&&getPath()!=null) {
+			result = handlePool.channel(getPath());
+			channel = result;
 		}
-		return fileChannel;
+		return result;
+	}
+	
+	/**
+	 * 
+	 * @return the pool this archive gets its channel from
+	 */
+	public ArchiveHandlePool getHandlePool() {
+		return handlePool;
 	}
 	
 	
@@ -161,26 +282,49 @@ public class Earchive implements Closeable{
 	}
 	
 	public ContainerNode<EArcEntry> getTree(ContainerNode<EArcEntry> root){
-		EArcEntry[] pointers = getEntries();
-		if(root==null) {
-			root = ContainerNode.newRoot();
-		}
-//		Comparator<EArcEntry> cmpa = (a,b)->{return Long.compare(b.getExtractedSize(), a.getExtractedSize());};
-		for(EArcEntry pointer : pointers) {
-			LeafNode.addToAndGetContainer(root, pointer, pointer.getFilePath());
+		return new PathTrieBuilder<EArcEntry>(root).addAll(getEntries(), EArcEntry::getFilePath).build();
+	}
+	
+	private synchronized MappedWindows getWindows() {
+		if(windows==null) {
+			FileChannel fc = getFileChannel();
+			if(fc!=null) {
+				try {
+					windows=MappedWindows.map(fc);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
 		}
-		return root;
+		return windows;
 	}
 	
-	public EArcHeader getHeader() {
+	public synchronized EArcHeader getHeader() {
 		if(header==null) {
-			header=new EArcHeader(this::getFileChannel);
+			header=createHeader(new EArcHeader(this::getFileChannel, OpenMode.MAPPED.equals(getOpenMode())?getWindows():null));
 		}
 		return header;
 	}
 	
-	private Earchive(Path path) {
+	private EArcHeader createHeader(EArcHeader created) {
+		if(EArcIndexCache.DEFAULT_INSTANCE.isEnabled()) {
+			created.setIndexCache(EArcIndexCache.DEFAULT_INSTANCE, getPath());
+		}
+		return created;
+	}
+	
+	private Earchive(Path path, OpenMode openMode, ArchiveHandlePool handlePool) {
 		this.path=path;
+		this.openMode=openMode!=null?openMode:OpenMode.CHANNEL;
+		this.handlePool=handlePool!=null?handlePool:ArchiveHandlePool.DEFAULT_INSTANCE;
+	}
+	
+	/**
+	 * 
+	 * @return how this archive reads from its file
+	 */
+	public OpenMode getOpenMode() {
+		return this.openMode;
 	}
 	
 	/**
@@ -202,7 +346,9 @@ public class Earchive implements Closeable{
 			if(path==null||isEArcFile(path)) {
 				closeFileChannel();
 				this.path = path;
+				channel = null;
 				header = null;
+				windows = null;
 			} else {
 				System.err.println(String.format("The file, \"%s\" is not an earc file.%n\tThis no changes have been made to this object (retaining original path of \"%s\")", path, this.path));
 			}
@@ -233,20 +379,15 @@ public class Earchive implements Closeable{
 	 */
 	public static boolean isEArcFile(Path p) {
 		boolean isEArch = false;
-		ByteBuffer tinyBuffer = ByteBuffer.allocateDirect(Integer.BYTES).order(ByteOrder.nativeOrder());
+		ByteBuffer tinyBuffer = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.nativeOrder());
 
-		try {
-			if (exists(p)) {
-				FileChannel fc = FileChannel.open(p, StandardOpenOption.READ);
-				if (fc.size() > 3) {
-					fc.read(tinyBuffer);
-					tinyBuffer.flip();
-					int headerValue = tinyBuffer.getInt();
-					isEArch = MAGIC == headerValue;
-				}
+		if (exists(p)) {
+			try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+				PositionalReads.readFullyAndFlip(fc, tinyBuffer, 0);
+				isEArch = tinyBuffer.remaining() == Integer.BYTES && MAGIC == tinyBuffer.getInt();
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
 		return isEArch;
 	}
@@ -283,11 +424,15 @@ public class Earchive implements Closeable{
 	/* (non-Javadoc)
 	 * @see java.io.Closeable#close()
 	 */
+	/**
+	 * Closes this archive's pooled channel unless something else (such as another {@link Earchive} of the same file) is reading it.
+	 * The archive can still be read afterwards, in which case the channel is opened again.
+	 */
 	@Override
 	public void close() throws IOException {
-		if(fileChannel!=null&&fileChannel.isOpen()) {
-			fileChannel.close();
+		Path current = getPath();
+		if(current!=null) {
+			handlePool.close(current);
 		}
-		fileChannel=null;
 	}
 }
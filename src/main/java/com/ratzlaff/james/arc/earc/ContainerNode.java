@@ -3,9 +3,17 @@
  */
 package com.ratzlaff.james.arc.earc;
 
-import java.util.LinkedHashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -18,7 +26,185 @@ import org.slf4j.LoggerFactory;
 public class ContainerNode<T> extends TreeNode<T> {
 
 	private static final Logger LOG = LoggerFactory.getLogger(ContainerNode.class);
-	private Map<String,TreeNode<T>> children;
+	private ChildMap<T> children;
+
+	/**
+	 * The children of a container kept in two parallel arrays sorted by name,
+	 * which costs far less than a hash table with an entry object per child.
+	 * Lookups are binary searches and children that are added in name order are
+	 * simply appended.
+	 */
+	private static final class ChildMap<T> extends AbstractMap<String, TreeNode<T>> {
+		private static final String[] NO_KEYS = new String[0];
+		private static final TreeNode<?>[] NO_VALUES = new TreeNode<?>[0];
+		private String[] keys = NO_KEYS;
+		private TreeNode<?>[] values = NO_VALUES;
+		private int size;
+		private int modCount;
+		private Set<Map.Entry<String, TreeNode<T>>> entrySet;
+
+		/**
+		 * 
+		 * @param key
+		 * @return the index of {@code key} or, if it is not present,
+		 *         {@code (-(insertion point) - 1)}
+		 */
+		private int indexOf(Object key) {
+			if (!(key instanceof String)) {
+				return -1;
+			}
+			String str = (String) key;
+			if (size > 0) {
+				int cmp = keys[size - 1].compareTo(str);
+				if (cmp < 0) {
+					return -(size + 1);
+				} else if (cmp == 0) {
+					return size - 1;
+				}
+			}
+			return Arrays.binarySearch(keys, 0, size, str);
+		}
+
+		@SuppressWarnings("unchecked")
+		private TreeNode<T> valueAt(int index) {
+			return (TreeNode<T>) values[index];
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return indexOf(key) > -1;
+		}
+
+		@Override
+		public TreeNode<T> get(Object key) {
+			int index = indexOf(key);
+			return index > -1 ? valueAt(index) : null;
+		}
+
+		@Override
+		public TreeNode<T> put(String key, TreeNode<T> value) {
+			Objects.requireNonNull(key, "A child cannot have a null name");
+			int index = indexOf(key);
+			if (index > -1) {
+				TreeNode<T> old = valueAt(index);
+				values[index] = value;
+				return old;
+			}
+			index = -(index + 1);
+			if (size == keys.length) {
+				int capacity = size < 2 ? 2 : size + (size >> 1);
+				keys = Arrays.copyOf(keys, capacity);
+				values = Arrays.copyOf(values, capacity);
+			}
+			if (index < size) {
+				System.arraycopy(keys, index, keys, index + 1, size - index);
+				System.arraycopy(values, index, values, index + 1, size - index);
+			}
+			keys[index] = key;
+			values[index] = value;
+			size++;
+			modCount++;
+			return null;
+		}
+
+		@Override
+		public TreeNode<T> remove(Object key) {
+			int index = indexOf(key);
+			return index > -1 ? removeAt(index) : null;
+		}
+
+		private TreeNode<T> removeAt(int index) {
+			TreeNode<T> old = valueAt(index);
+			int toMove = size - index - 1;
+			if (toMove > 0) {
+				System.arraycopy(keys, index + 1, keys, index, toMove);
+				System.arraycopy(values, index + 1, values, index, toMove);
+			}
+			size--;
+			keys[size] = null;
+			values[size] = null;
+			modCount++;
+			return old;
+		}
+
+		@Override
+		public void clear() {
+			Arrays.fill(keys, 0, size, null);
+			Arrays.fill(values, 0, size, null);
+			size = 0;
+			modCount++;
+		}
+
+		/**
+		 * Drops any room left over from growing
+		 */
+		void trimToSize() {
+			if (size < keys.length) {
+				keys = size > 0 ? Arrays.copyOf(keys, size) : NO_KEYS;
+				values = size > 0 ? Arrays.copyOf(values, size) : NO_VALUES;
+			}
+		}
+
+		@Override
+		public Set<Map.Entry<String, TreeNode<T>>> entrySet() {
+			if (entrySet == null) {
+				entrySet = new AbstractSet<Map.Entry<String, TreeNode<T>>>() {
+					@Override
+					public Iterator<Map.Entry<String, TreeNode<T>>> iterator() {
+						return new EntryIterator();
+					}
+
+					@Override
+					public int size() {
+						return size;
+					}
+				};
+			}
+			return entrySet;
+		}
+
+		private final class EntryIterator implements Iterator<Map.Entry<String, TreeNode<T>>> {
+			private int next;
+			private int last = -1;
+			private int expectedModCount = modCount;
+
+			@Override
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			@Override
+			public Map.Entry<String, TreeNode<T>> next() {
+				if (modCount != expectedModCount) {
+					throw new ConcurrentModificationException();
+				}
+				if (next >= size) {
+					throw new NoSuchElementException();
+				}
+				last = next++;
+				return new AbstractMap.SimpleImmutableEntry<String, TreeNode<T>>(keys[last], valueAt(last));
+			}
+
+			@Override
+			public void remove() {
+				if (last < 0) {
+					throw new IllegalStateException();
+				}
+				if (modCount != expectedModCount) {
+					throw new ConcurrentModificationException();
+				}
+				removeAt(last);
+				next = last;
+				last = -1;
+				expectedModCount = modCount;
+			}
+		}
+	}
 
 	
 	public static <T> ContainerNode<T> newRoot(){
@@ -61,30 +247,42 @@ public class ContainerNode<T> extends TreeNode<T> {
 	}
 	public Map<String,TreeNode<T>> getChildren(){
 		if(this.children==null) {
-			this.children=new LinkedHashMap<String,TreeNode<T>>();
+			this.children=new ChildMap<T>();
 		}
 		return this.children;
 	}
 	
-	private Set<TreeNode<T>> getAllChildren(boolean first){
-		Set<TreeNode<T>> all =new LinkedHashSet<TreeNode<T>>();
-		for(String key : getChildren().keySet()) {
-			if(!first&&"..".equals(key)) {
-				continue;
-			}
-			TreeNode<T> current = getChildren().get(key);
-			all.add(current);
-			if(current instanceof ContainerNode) {
-				if(!"..".equals(key)) {
-					all.addAll(((ContainerNode<T>) current).getAllChildren(false));
-				}
-			}
+	/**
+	 * Drops the room the children of this container were given to grow into
+	 */
+	void trimChildren() {
+		if(this.children!=null) {
+			this.children.trimToSize();
 		}
+	}
+	
+	/**
+	 * 
+	 * @return the parent of this container (its {@code ".."} entry) if it has
+	 *         one, followed by every node under this container, parents before
+	 *         their children
+	 */
+	public List<TreeNode<T>> listAllChildren(){
+		List<TreeNode<T>> all = new ArrayList<TreeNode<T>>();
+		TreeNode<T> dotDot = hasChildren()?getChildren().get(".."):null;
+		if(dotDot!=null) {
+			all.add(dotDot);
+		}
+		visitSubtree(node->{
+			if(node!=this) {
+				all.add(node);
+			}
+		});
 		return all;
 	}
 	
 	public Set<TreeNode<T>> getAllChildren(){
-		Set<TreeNode<T>> all = getAllChildren(true);
+		Set<TreeNode<T>> all = new LinkedHashSet<TreeNode<T>>(listAllChildren());
 		return all;
 	}
 	
@@ -11,14 +11,15 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.util.Objects;
+import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
-import java.util.zip.InflaterOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ratzlaff.james.arc.earc.obfus.DeflateDeobfuscator;
+import com.ratzlaff.james.util.io.PositionalReads;
 
 /**
  * 
@@ -33,11 +34,6 @@ public class DeflateSegment {
 	private static final int INITIALIZATION_BUFFER_SIZE = Integer.BYTES << 1;
 
 	private static class Messages {
-		private static final String REL_OFFSET = "has a relative offset of {} and an absolute offset of {}";
-		private static final String INFLATE_START = "deflate data starts at relative offset {}";
-		private static final String ALIGNMENT_PADDING = "has {} bytes of padding to align every {} bytes";
-		private static final String COMPRESSED_SIZE = "compressed size of {} bytes";
-		private static final String BUFFER_SIZE = "buffer size of {} bytes";
 		private static final String BUFFER_SUCCESS = String.format("Successfully read %d bytes apply to entities",
 				INITIALIZATION_BUFFER_SIZE);
 		private static final String NULL_PARAM_MESSAGE = String.format(
@@ -49,77 +45,67 @@ public class DeflateSegment {
 	private final int entryOffset;
 	private final int compressedSize;
 	private final int bufferSize;
+	private final int unlockedCompressedSize;
+	private final int unlockedBufferSize;
 	private Short deflateKey;
 
-	public DeflateSegment(EArcEntry parent) {
+	/**
+	 * Reads the segment header found {@code entryOffset} bytes after the
+	 * {@link EArcEntry#getDataLocation() data location} of {@code parent}. The
+	 * position of the parent's channel is neither used nor modified.
+	 * 
+	 * @param parent
+	 *            the entry this segment belongs to
+	 * @param entryOffset
+	 *            the offset of this segment relative to the start of the entry's
+	 *            data
+	 */
+	public DeflateSegment(EArcEntry parent, int entryOffset) {
 		Objects.requireNonNull(parent, Messages.NULL_PARAM_MESSAGE);
 		parentPointer = parent;
 		Short keyToUse = null;
-		if(parentPointer!=null&&parentPointer.isObfuscated()&&parentPointer.getDeflateSegments().isEmpty()) {
+		if(parentPointer!=null&&parentPointer.isObfuscated()&&entryOffset==0) {
 			keyToUse=parentPointer.getDeflateKey();
 		}
 		this.deflateKey=keyToUse;
 		FileChannel fc = getFileChannel();
-		int entryOffsetToUse = (int) (getPosition(fc) - getParentPointer().getDataLocation());
-		this.entryOffset = entryOffsetToUse;
-		LOG.info(Messages.REL_OFFSET, getEntryOffset(), getEntryOffset() + getParentPointer().getDataLocation());
+		this.entryOffset = entryOffset;
 
-		ByteBuffer bb = getHeaderByteBuffer(fc);
+		long headerLocation = getParentPointer().getDataLocation() + getEntryOffset();
+		ByteBuffer bb = getParentPointer().getMappedSlice(headerLocation, INITIALIZATION_BUFFER_SIZE);
+		if (bb == null) {
+			bb = getHeaderByteBuffer(fc, headerLocation);
+		}
 
 		int compressedSizeToUse = 0;
 		compressedSizeToUse = bb.getInt();//LEFT-SIDE Value
 		this.compressedSize = compressedSizeToUse;
-		LOG.info(Messages.COMPRESSED_SIZE, getCompressedSize(), getEntryOffset());
 
 		int bufferSizeToUse = 0;
 		bufferSizeToUse = bb.getInt();//RIGHT-SIDE Value
 		this.bufferSize = bufferSizeToUse;
-		LOG.info(Messages.BUFFER_SIZE, getBufferSize());
-		incrementPosition(fc, getCompressedSize());
-		incrementPosition(fc, getEndPadding());
-
-		LOG.info(Messages.INFLATE_START, getDeflateDataOffset());
-		LOG.info(Messages.ALIGNMENT_PADDING, getEndPadding(), Integer.BYTES);
+		if (deflateKey != null) {
+			long intermediateKey = DeflateDeobfuscator.DEFAULT_INSTANCE.getIntermediateKey(deflateKey.shortValue());
+			this.unlockedCompressedSize = DeflateDeobfuscator.getToggledObfuscationForLeftValue(intermediateKey,
+					compressedSizeToUse);
+			this.unlockedBufferSize = DeflateDeobfuscator.getToggledObfuscationForRightValue(intermediateKey,
+					bufferSizeToUse);
+		} else {
+			this.unlockedCompressedSize = compressedSizeToUse;
+			this.unlockedBufferSize = bufferSizeToUse;
+		}
+		SegmentTrace.DEFAULT_INSTANCE.segmentRead(this);
 		
 	}
 
-	private static FileChannel incrementPosition(FileChannel fc, int delta) {
-		return setPosition(fc, delta + (fc != null ? getPosition(fc) : 0));
-	}
-
 	public int getDeflateDataOffset() {
 		return getEntryOffset() + getHeaderSize();
 	}
 
-	private static long getPosition(FileChannel fc) {
-		long result = -1;
-		if (fc != null) {
-			try {
-				result = fc.position();
-			} catch (IOException e) {
-				LOG.error(e.getLocalizedMessage(), e);
-			}
-		}
-		return result;
-	}
-
 	public int getEntryOffset() {
 		return entryOffset;
 	}
 
-	private static FileChannel setPosition(FileChannel fc, long absolutePosition) {
-		FileChannel fileChannel = fc;
-		if (fileChannel != null) {
-			try {
-				fileChannel = fileChannel.position(absolutePosition);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
-		return fileChannel;
-	}
-
 	/**
 	 * 
 	 * @return the total amounts of byte this segment has <i>including</i> the
@@ -132,29 +118,207 @@ public class DeflateSegment {
 	protected int getHeaderSize() {
 		return Integer.BYTES << 1;
 	}
-	 InputStream readIntoInputStream(InputStream is) {
-		Inflater inflater = new Inflater();
-		FileChannel fc = getParentPointer().getFileChannel();
-		ByteBuffer bb = ByteBuffer.allocateDirect(getCompressedSize());
-		InflaterInputStream iis = new InflaterInputStream(is, inflater, getBufferSize());
+	/**
+	 * 
+	 * @param is
+	 *            the stream of compressed data
+	 * @return a stream that inflates {@code is} with a pooled {@link Inflater},
+	 *         which is handed back to the pool when the stream is closed
+	 */
+	InputStream readIntoInputStream(InputStream is) {
+		Inflater inflater = InflaterPool.DEFAULT_INSTANCE.acquire();
+		InflaterInputStream iis = new PooledInflaterInputStream(is, inflater, Math.max(getBufferSize(), 1));
 		return iis;
 	
 	}
-	public void writeToOutputStream(OutputStream os) {
-		Inflater inflater = new Inflater();
-		FileChannel fc = getParentPointer().getFileChannel();
-		ByteBuffer bb = ByteBuffer.allocateDirect(getCompressedSize());
+	/**
+	 * Inflates this segment and writes it to {@code os}
+	 * 
+	 * @param os
+	 *            the stream to write to
+	 * @throws IOException
+	 *             if the segment did not inflate to its {@link #getBufferSize()
+	 *             buffer size} or could not be written
+	 */
+	public void writeToOutputStream(OutputStream os) throws IOException {
+		ByteBuffer inflated = inflateToScratch();
+		checkInflatedSize(inflated.remaining());
+		EArcMetrics metrics = EArcMetrics.DEFAULT_INSTANCE;
+		long writeStart = metrics.getOutputWrite().start();
+		os.write(inflated.array(), inflated.arrayOffset() + inflated.position(), inflated.remaining());
+		metrics.getOutputWrite().record(writeStart);
+		metrics.getBytesWritten().add(inflated.remaining());
+	}
+
+	/**
+	 * 
+	 * @param inflated
+	 *            the number of bytes this segment inflated to
+	 * @throws IOException
+	 *             if {@code inflated} is not this segment's
+	 *             {@link #getBufferSize() buffer size}
+	 */
+	void checkInflatedSize(int inflated) throws IOException {
+		int expected = Math.max(getBufferSize(), 0);
+		if (inflated != expected) {
+			throw new IOException(String.format("The segment at offset %d of \"%s\" inflated to %d bytes but should have been %d",
+					getEntryOffset(), getParentPointer().getFilePath(), inflated, expected));
+		}
+	}
+	
+	private static class PooledInflaterInputStream extends InflaterInputStream {
+		private boolean released;
+
+		private PooledInflaterInputStream(InputStream in, Inflater inf, int size) {
+			super(in, inf, size);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				if (!released) {
+					released = true;
+					InflaterPool.DEFAULT_INSTANCE.release(inf);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Inflates this segment directly into {@code dst} starting at {@code offset}.
+	 * At most {@link #getBufferSize()} bytes are written.
+	 * 
+	 * @param dst
+	 *            the array to inflate into
+	 * @param offset
+	 *            the index within {@code dst} of the first inflated byte
+	 * @return the number of bytes inflated
+	 * @throws IOException
+	 *             if the compressed data is corrupt or ends before the segment
+	 *             does
+	 */
+	public int inflateInto(byte[] dst, int offset) throws IOException {
+		return inflateInto(dst, offset, Math.min(getBufferSize(), dst.length - offset));
+	}
+
+	/**
+	 * Inflates this segment into {@code dst}, starting at its position. Direct
+	 * buffers (such as the mapped regions of an output file) are inflated into
+	 * as they are, without going through an array first.
+	 * 
+	 * @param dst
+	 *            the buffer to inflate into, its position is advanced by the
+	 *            number of bytes inflated
+	 * @return the number of bytes inflated
+	 * @throws IOException
+	 *             if the compressed data is corrupt or ends before the segment
+	 *             does
+	 */
+	public int inflateInto(ByteBuffer dst) throws IOException {
+		int len = Math.min(Math.max(getBufferSize(), 0), dst.remaining());
+		ByteBuffer target = dst;
+		if (len < dst.remaining()) {
+			target = dst.duplicate();
+			target.limit(target.position() + len);
+		}
+		int inflated = inflate(target);
+		if (target != dst) {
+			dst.position(target.position());
+		}
+		return inflated;
+	}
+
+	/**
+	 * Inflates this segment into a scratch array that belongs to the calling
+	 * thread. The returned buffer is only valid until the calling thread inflates
+	 * another segment.
+	 * 
+	 * @return a buffer wrapping the inflated bytes
+	 * @throws IOException
+	 *             if the compressed data is corrupt or ends before the segment
+	 *             does
+	 */
+	ByteBuffer inflateToScratch() throws IOException {
+		int len = Math.max(getBufferSize(), 0);
+		byte[] scratch = scratch(INFLATED_SCRATCH, len);
+		int inflated = inflateInto(scratch, 0, len);
+		return ByteBuffer.wrap(scratch, 0, inflated);
+	}
 
-		InflaterOutputStream ios = new InflaterOutputStream(os, inflater, getBufferSize());
+	private int inflateInto(byte[] dst, int offset, int len) throws IOException {
+		return inflate(ByteBuffer.wrap(dst, offset, len));
+	}
+
+	/**
+	 * Inflates at most {@code dst.remaining()} bytes of this segment into
+	 * {@code dst}. The compressed data is handed to the {@link Inflater} as the
+	 * slice of the archive's mapped data table when there is one, otherwise it is
+	 * read into a per-thread scratch array first.
+	 * 
+	 * @return the number of bytes inflated
+	 * @throws IOException
+	 *             if the compressed data is corrupt, or runs out while
+	 *             {@code dst} still has room and the end of the deflate stream has
+	 *             not been reached
+	 */
+	private int inflate(ByteBuffer dst) throws IOException {
+		int total = 0;
+		EArcMetrics metrics = EArcMetrics.DEFAULT_INSTANCE;
+		long inflateStart = metrics.getSegmentInflate().start();
+		Inflater inflater = InflaterPool.DEFAULT_INSTANCE.acquire();
 		try {
-			ios.write(getCompressedDataAsByteArray());
-			
-		} catch (IOException e) {
-			LOG.error(e.getLocalizedMessage(),e);
+			ByteBuffer input = getCompressedDataSlice();
+			if (input == null) {
+				int compressedLen = Math.max(getCompressedSize(), 0);
+				ByteBuffer scratch = ByteBuffer.wrap(scratch(COMPRESSED_SCRATCH, compressedLen), 0, compressedLen);
+				input = getCompressedDataAsByteBuffer(scratch);
+			}
+			metrics.getBytesRead().add(input.remaining());
+			inflater.setInput(input);
+			while (dst.hasRemaining() && !inflater.finished()) {
+				int inflated = inflater.inflate(dst);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				total += inflated;
+			}
+			if (dst.hasRemaining() && !inflater.finished()) {
+				throw new IOException(String.format(
+						"The compressed data of the segment at offset %d of \"%s\" ended after %d of %d bytes",
+						getEntryOffset(), getParentPointer().getFilePath(), total, getBufferSize()));
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(String.format("The segment at offset %d of \"%s\" is corrupt after %d bytes",
+					getEntryOffset(), getParentPointer().getFilePath(), total), e);
 		} finally {
-//			close(ios);
+			InflaterPool.DEFAULT_INSTANCE.release(inflater);
 		}
+		metrics.getSegmentInflate().record(inflateStart);
+		metrics.getBytesInflated().add(total);
+		return total;
+	}
 	
+	private static final ThreadLocal<byte[][]> COMPRESSED_SCRATCH = ThreadLocal.withInitial(() -> new byte[1][]);
+	private static final ThreadLocal<byte[][]> INFLATED_SCRATCH = ThreadLocal.withInitial(() -> new byte[1][]);
+
+	private static byte[] scratch(ThreadLocal<byte[][]> holder, int len) {
+		byte[][] ref = holder.get();
+		if (ref[0] == null || ref[0].length < len) {
+			ref[0] = new byte[Math.max(len, EArcEntry.MAX_INFLATE_BUFFER_SIZE)];
+		}
+		return ref[0];
+	}
+
+	/**
+	 * 
+	 * @return a read-only view of this segment's compressed data within the
+	 *         archive's mapped data table, or {@code null} if the data table is not
+	 *         mapped
+	 */
+	public ByteBuffer getCompressedDataSlice() {
+		return getParentPointer().getMappedSlice(getAbsoluteDeflateDataOffset(), Math.max(getCompressedSize(), 0));
 	}
 	
 	private static void close(Closeable c) {
@@ -192,12 +356,19 @@ public class DeflateSegment {
 			dst = ByteBuffer.allocateDirect(getCompressedSize());
 		}
 		
+		ByteBuffer slice = getCompressedDataSlice();
+		if (slice != null) {
+			if (slice.remaining() > dst.remaining()) {
+				slice.limit(dst.remaining());
+			}
+			dst.put(slice);
+			dst.flip();
+			return dst;
+		}
 		FileChannel fc = getFileChannel();
 		try {
 			long absOffset = getAbsoluteDeflateDataOffset();
-			fc.position(absOffset);
-			int read = fc.read(dst);
-			dst.flip();
+			PositionalReads.readFullyAndFlip(fc, dst, absOffset);
 		} catch (IOException ioe) {
 			LOG.error(ioe.getLocalizedMessage(), ioe);
 		}
@@ -216,23 +387,23 @@ public class DeflateSegment {
 		return mod;
 	}
 
-	private int getEndPadding() {
+	int getEndPadding() {
 		return getAlignedPadding(getEntryOffset(), getCompressedSize());
 	}
 
 	
 	
 	
-	private static ByteBuffer getHeaderByteBuffer(FileChannel fileChannel) {
+	private static ByteBuffer getHeaderByteBuffer(FileChannel fileChannel, long absolutePosition) {
 		Objects.requireNonNull(fileChannel);
 		ByteBuffer bb = ByteBuffer.allocateDirect(INITIALIZATION_BUFFER_SIZE).order(ByteOrder.nativeOrder());
 		if (fileChannel != null) {
 			try {
-				int read = fileChannel.read(bb);
+				int read = PositionalReads.readFully(fileChannel, bb, absolutePosition);
 				bb.flip();
 				if (read != INITIALIZATION_BUFFER_SIZE) {
 					LOG.warn(
-							"The amount of bytes read was %d bytes but expected to read %d bytes.  Unexpected behavior may occur",
+							"The amount of bytes read was {} bytes but expected to read {} bytes.  Unexpected behavior may occur",
 							read, INITIALIZATION_BUFFER_SIZE);
 				} else {
 					LOG.debug(Messages.BUFFER_SUCCESS);
@@ -253,11 +424,11 @@ public class DeflateSegment {
 	}
 
 	public int getCompressedSize() {
-		return deflateKey!=null?DeflateDeobfuscator.DEFAULT_INSTANCE.getToggledObfuscationForLeftValue(getDeflateKey().shortValue(), getRawCompressedSizeValue()):getRawCompressedSizeValue();
+		return unlockedCompressedSize;
 	}
 
 	public int getBufferSize() {
-		return deflateKey!=null?DeflateDeobfuscator.DEFAULT_INSTANCE.getToggledObfuscationForRightValue(getDeflateKey().shortValue(), getRawBufferSizeValue()):getRawBufferSizeValue();
+		return unlockedBufferSize;
 	}
 
 	protected EArcEntry getParentPointer() {
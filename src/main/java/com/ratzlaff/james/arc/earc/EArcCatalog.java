@@ -0,0 +1,529 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ratzlaff.james.arc.Earchive;
+import com.ratzlaff.james.util.io.MappedWindows;
+
+/**
+ * An install-wide index of every {@link EArcEntry#getFilePath() file path} and
+ * {@link EArcEntry#getDataUrl() data url} found in a directory tree of earc
+ * files. The catalog is written as a single file whose records are sorted by
+ * key, so finding which archive holds a given path or url is a binary search
+ * over a memory mapping of that file rather than opening every archive.
+ *
+ * <pre>
+ * header (48 bytes)
+ * 0x00 magic int ('ECAT')
+ * 0x04 format version int
+ * 0x08 archive_count int
+ * 0x0C key_count int
+ * 0x10 archives_loc long (archive_count length prefixed UTF-8 paths)
+ * 0x18 records_loc long (key_count records of 24 bytes, sorted by key)
+ * 0x20 keys_loc long (the UTF-8 bytes of every key)
+ * 0x28 keys_size long
+ *
+ * record
+ * 0x00 key_loc long
+ * 0x08 key_length int
+ * 0x0C archive_index int
+ * 0x10 entry_index int
+ * 0x14 key_type int (see {@link KeyType})
+ * </pre>
+ *
+ * Keys are ordered by comparing their UTF-8 bytes as unsigned values.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class EArcCatalog {
+	private static final transient Logger LOG = LoggerFactory.getLogger(EArcCatalog.class);
+
+	public static final String DEFAULT_FILE_NAME = "catalog.idx";
+
+	private static final int MAGIC = 0x54414345;// ASCII VALUE:ECAT
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = (Integer.BYTES << 2) + (Long.BYTES << 2);
+	private static final int RECORD_SIZE = Long.BYTES + (Integer.BYTES << 2);
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * What a key of the catalog was taken from
+	 */
+	public static enum KeyType {
+		/**
+		 * {@link EArcEntry#getFilePath()}
+		 */
+		PATH,
+		/**
+		 * {@link EArcEntry#getDataUrl()}
+		 */
+		DATA_URL;
+	}
+
+	/**
+	 * Where a key was found
+	 */
+	public static class Location {
+		private final Path archive;
+		private final int entryIndex;
+		private final KeyType keyType;
+
+		public Location(Path archive, int entryIndex, KeyType keyType) {
+			this.archive = archive;
+			this.entryIndex = entryIndex;
+			this.keyType = keyType;
+		}
+
+		/**
+		 *
+		 * @return the path of the archive that contains the entry
+		 */
+		public Path getArchive() {
+			return archive;
+		}
+
+		/**
+		 *
+		 * @return the index of the entry within its archive (see
+		 *         {@link Earchive#getEntryAt(int)})
+		 */
+		public int getEntryIndex() {
+			return entryIndex;
+		}
+
+		public KeyType getKeyType() {
+			return keyType;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + ((archive == null) ? 0 : archive.hashCode());
+			result = prime * result + entryIndex;
+			result = prime * result + ((keyType == null) ? 0 : keyType.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (obj == null) {
+				return false;
+			}
+			if (!(obj instanceof Location)) {
+				return false;
+			}
+			Location other = (Location) obj;
+			if (archive == null) {
+				if (other.archive != null) {
+					return false;
+				}
+			} else if (!archive.equals(other.archive)) {
+				return false;
+			}
+			if (entryIndex != other.entryIndex) {
+				return false;
+			}
+			if (keyType != other.keyType) {
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("Location [archive=");
+			builder.append(archive);
+			builder.append(", entryIndex=");
+			builder.append(entryIndex);
+			builder.append(", keyType=");
+			builder.append(keyType);
+			builder.append("]");
+			return builder.toString();
+		}
+	}
+
+	private static class Key {
+		private final byte[] bytes;
+		private final int archiveIndex;
+		private final int entryIndex;
+		private final KeyType keyType;
+
+		private Key(String key, int archiveIndex, int entryIndex, KeyType keyType) {
+			this.bytes = key.getBytes(StandardCharsets.UTF_8);
+			this.archiveIndex = archiveIndex;
+			this.entryIndex = entryIndex;
+			this.keyType = keyType;
+		}
+
+		private Key(Key key, int archiveIndex) {
+			this.bytes = key.bytes;
+			this.archiveIndex = archiveIndex;
+			this.entryIndex = key.entryIndex;
+			this.keyType = key.keyType;
+		}
+
+		private static final Comparator<Key> ORDER = (a, b) -> {
+			int result = Arrays.compareUnsigned(a.bytes, b.bytes);
+			if (result == 0) {
+				result = Integer.compare(a.archiveIndex, b.archiveIndex);
+			}
+			if (result == 0) {
+				result = Integer.compare(a.entryIndex, b.entryIndex);
+			}
+			return result;
+		};
+	}
+
+	private final Path catalogPath;
+	private final MappedWindows windows;
+	private final Path[] archives;
+	private final int keyCount;
+	private final long recordsLocation;
+
+	private EArcCatalog(Path catalogPath, MappedWindows windows, Path[] archives, int keyCount,
+			long recordsLocation) {
+		this.catalogPath = catalogPath;
+		this.windows = windows;
+		this.archives = archives;
+		this.keyCount = keyCount;
+		this.recordsLocation = recordsLocation;
+	}
+
+	/**
+	 * Maps a catalog written by {@link #build(Path, Path, int)}
+	 *
+	 * @param catalogPath
+	 *            the catalog file
+	 * @return the catalog
+	 * @throws IOException
+	 *             if the file can not be read or is not a catalog
+	 */
+	public static EArcCatalog open(Path catalogPath) throws IOException {
+		MappedWindows windows = null;
+		try (FileChannel fc = FileChannel.open(catalogPath, StandardOpenOption.READ)) {
+			windows = MappedWindows.map(fc);
+		}
+		if (!windows.contains(0, HEADER_SIZE) || windows.getInt(0) != MAGIC
+				|| windows.getInt(Integer.BYTES) != FORMAT_VERSION) {
+			throw new IOException(String.format("\"%s\" is not a catalog (or was written by another version)",
+					catalogPath));
+		}
+		int archiveCount = windows.getInt(0x08);
+		int keyCount = windows.getInt(0x0C);
+		long archivesLocation = windows.getLong(0x10);
+		long recordsLocation = windows.getLong(0x18);
+		Path[] archives = new Path[archiveCount];
+		long position = archivesLocation;
+		for (int i = 0; i < archiveCount; i++) {
+			int len = windows.getInt(position);
+			position += Integer.BYTES;
+			byte[] bytes = new byte[len];
+			windows.slice(position, len).get(bytes);
+			position += len;
+			archives[i] = Paths.get(new String(bytes, StandardCharsets.UTF_8));
+		}
+		return new EArcCatalog(catalogPath, windows, archives, keyCount, recordsLocation);
+	}
+
+	/**
+	 * Opens every earc file under {@code root} (using {@code workers} threads) and
+	 * writes a catalog of all of their file paths and data urls to
+	 * {@code catalogPath}. Each archive is read through a channel of its own,
+	 * rather than an {@link Earchive}, so that building a catalog neither writes
+	 * to the {@link EArcIndexCache} nor takes channels from (or evicts those of)
+	 * the {@link com.ratzlaff.james.arc.ArchiveHandlePool}.
+	 *
+	 * @param root
+	 *            the directory to search for earc files
+	 * @param catalogPath
+	 *            the file to write the catalog to
+	 * @param workers
+	 *            the number of archives to read at once
+	 * @return the number of archives in the catalog
+	 * @throws IOException
+	 */
+	public static int build(Path root, Path catalogPath, int workers) throws IOException {
+		List<Path> candidates = null;
+		try (Stream<Path> walk = Files.walk(root)) {
+			candidates = walk.filter(Files::isRegularFile)
+					.filter(Earchive::hasEArcExtension).sorted()
+					.collect(Collectors.toList());
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, workers),
+				new ParallelExtractor.WorkerThreadFactory("earc-catalog"));
+		List<Future<List<Key>>> futures = new ArrayList<Future<List<Key>>>(candidates.size());
+		try {
+			for (Path candidate : candidates) {
+				futures.add(executor.submit(() -> readKeys(candidate)));
+			}
+			List<String> archives = new ArrayList<String>(candidates.size());
+			List<Key> keys = new ArrayList<Key>();
+			for (int i = 0; i < candidates.size(); i++) {
+				List<Key> archiveKeys = null;
+				try {
+					archiveKeys = futures.get(i).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				} catch (ExecutionException e) {
+					LOG.error("Could not read {}", candidates.get(i), e.getCause());
+				}
+				if (archiveKeys != null) {
+					int archiveIndex = archives.size();
+					archives.add(candidates.get(i).toAbsolutePath().normalize().toString());
+					for (Key key : archiveKeys) {
+						keys.add(new Key(key, archiveIndex));
+					}
+				}
+			}
+			Collections.sort(keys, Key.ORDER);
+			write(catalogPath, archives, keys);
+			return archives.size();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 *
+	 * @return the keys of the archive, or {@code null} if it is not an earc file
+	 */
+	private static List<Key> readKeys(Path archivePath) throws IOException {
+		List<Key> keys = null;
+		try (FileChannel fc = FileChannel.open(archivePath, StandardOpenOption.READ)) {
+			EArcHeader header = new EArcHeader(() -> fc);
+			if (header.getMagic() != Earchive.MAGIC) {
+				LOG.warn("\"{}\" is not an earc file", archivePath);
+				return null;
+			}
+			EArcEntry[] entries = header.getEntries();
+			keys = new ArrayList<Key>(entries.length << 1);
+			for (EArcEntry entry : entries) {
+				String filePath = entry.getFilePath();
+				if (filePath != null && !filePath.isEmpty()) {
+					keys.add(new Key(filePath, -1, entry.getIndex(), KeyType.PATH));
+				}
+				String dataUrl = entry.getDataUrl();
+				if (dataUrl != null && !dataUrl.isEmpty()) {
+					keys.add(new Key(dataUrl, -1, entry.getIndex(), KeyType.DATA_URL));
+				}
+			}
+		}
+		return keys;
+	}
+
+	private static void write(Path catalogPath, List<String> archives, List<Key> keys) throws IOException {
+		byte[][] archiveBytes = new byte[archives.size()][];
+		long archivesSize = 0;
+		for (int i = 0; i < archiveBytes.length; i++) {
+			archiveBytes[i] = archives.get(i).getBytes(StandardCharsets.UTF_8);
+			archivesSize += Integer.BYTES + archiveBytes[i].length;
+		}
+		long keysSize = 0;
+		for (Key key : keys) {
+			keysSize += key.bytes.length;
+		}
+		long archivesLocation = HEADER_SIZE;
+		long recordsLocation = archivesLocation + archivesSize;
+		long keysLocation = recordsLocation + ((long) RECORD_SIZE * keys.size());
+
+		Path parent = catalogPath.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		try (FileChannel out = FileChannel.open(catalogPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer bb = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+			bb.putInt(MAGIC);
+			bb.putInt(FORMAT_VERSION);
+			bb.putInt(archives.size());
+			bb.putInt(keys.size());
+			bb.putLong(archivesLocation);
+			bb.putLong(recordsLocation);
+			bb.putLong(keysLocation);
+			bb.putLong(keysSize);
+			for (byte[] bytes : archiveBytes) {
+				ensureRemaining(out, bb, Integer.BYTES);
+				bb.putInt(bytes.length);
+				put(out, bb, bytes);
+			}
+			long keyLocation = keysLocation;
+			for (Key key : keys) {
+				ensureRemaining(out, bb, RECORD_SIZE);
+				bb.putLong(keyLocation);
+				bb.putInt(key.bytes.length);
+				bb.putInt(key.archiveIndex);
+				bb.putInt(key.entryIndex);
+				bb.putInt(key.keyType.ordinal());
+				keyLocation += key.bytes.length;
+			}
+			for (Key key : keys) {
+				put(out, bb, key.bytes);
+			}
+			flush(out, bb);
+		}
+	}
+
+	private static void ensureRemaining(FileChannel out, ByteBuffer bb, int len) throws IOException {
+		if (bb.remaining() < len) {
+			flush(out, bb);
+		}
+	}
+
+	private static void put(FileChannel out, ByteBuffer bb, byte[] bytes) throws IOException {
+		int offset = 0;
+		while (offset < bytes.length) {
+			if (!bb.hasRemaining()) {
+				flush(out, bb);
+			}
+			int count = Math.min(bb.remaining(), bytes.length - offset);
+			bb.put(bytes, offset, count);
+			offset += count;
+		}
+	}
+
+	private static void flush(FileChannel out, ByteBuffer bb) throws IOException {
+		bb.flip();
+		while (bb.hasRemaining()) {
+			out.write(bb);
+		}
+		bb.clear();
+	}
+
+	public Path getCatalogPath() {
+		return catalogPath;
+	}
+
+	/**
+	 *
+	 * @return the number of archives in this catalog
+	 */
+	public int getArchiveCount() {
+		return archives.length;
+	}
+
+	public Path getArchive(int archiveIndex) {
+		return archives[archiveIndex];
+	}
+
+	/**
+	 *
+	 * @return the number of keys (paths and urls) in this catalog
+	 */
+	public int getKeyCount() {
+		return keyCount;
+	}
+
+	private long recordLocation(int index) {
+		return recordsLocation + ((long) RECORD_SIZE * index);
+	}
+
+	private int compareKeyAt(int index, byte[] key) {
+		long record = recordLocation(index);
+		long keyLocation = windows.getLong(record);
+		int keyLength = windows.getInt(record + Long.BYTES);
+		return windows.compareUnsigned(keyLocation, keyLength, key);
+	}
+
+	private int lowerBound(byte[] key) {
+		int low = 0;
+		int high = keyCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compareKeyAt(mid, key) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private Location locationAt(int index) {
+		long record = recordLocation(index);
+		int archiveIndex = windows.getInt(record + Long.BYTES + Integer.BYTES);
+		int entryIndex = windows.getInt(record + Long.BYTES + (Integer.BYTES << 1));
+		int keyType = windows.getInt(record + Long.BYTES + (Integer.BYTES * 3));
+		return new Location(archives[archiveIndex], entryIndex, KeyType.values()[keyType]);
+	}
+
+	/**
+	 *
+	 * @param key
+	 *            a file path or data url (for example
+	 *            {@code data://character/nh/common/foo.btex})
+	 * @return every entry whose file path or data url equals {@code key}
+	 */
+	public List<Location> find(String key) {
+		if (key == null) {
+			return Collections.emptyList();
+		}
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		List<Location> result = new ArrayList<Location>(1);
+		for (int i = lowerBound(bytes); i < keyCount && compareKeyAt(i, bytes) == 0; i++) {
+			result.add(locationAt(i));
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 * @param key
+	 *            a file path or data url
+	 * @return the first entry (in archive order) whose file path or data url
+	 *         equals {@code key}, or {@code null} if there is none
+	 */
+	public Location findFirst(String key) {
+		if (key == null) {
+			return null;
+		}
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		int index = lowerBound(bytes);
+		return index < keyCount && compareKeyAt(index, bytes) == 0 ? locationAt(index) : null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("EArcCatalog [catalogPath=");
+		builder.append(catalogPath);
+		builder.append(", archives=");
+		builder.append(archives.length);
+		builder.append(", keys=");
+		builder.append(keyCount);
+		builder.append("]");
+		return builder.toString();
+	}
+
+}
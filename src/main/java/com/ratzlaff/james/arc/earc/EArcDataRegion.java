@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ratzlaff.james.util.io.MappedWindows;
+
+/**
+ * A read-only memory mapping of the data table of an earc (everything from
+ * {@link EArcHeader#getDataTableLocation()} to the end of the file). The region
+ * is mapped once and every entry and {@link DeflateSegment} takes its bytes
+ * from {@link #slice(long, int) slices} of it instead of reading them from the
+ * channel. A region is either a single buffer or, when the whole archive has
+ * been opened in {@link com.ratzlaff.james.arc.Earchive.OpenMode#MAPPED mapped
+ * mode}, a view of that archive's {@link MappedWindows}.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class EArcDataRegion {
+	private static final transient Logger LOG = LoggerFactory.getLogger(EArcDataRegion.class);
+
+	private final long location;
+	private final long size;
+	private final ByteBuffer mapped;
+	private final MappedWindows windows;
+
+	private EArcDataRegion(long location, ByteBuffer mapped) {
+		this.location = location;
+		this.size = mapped.capacity();
+		this.mapped = mapped;
+		this.windows = null;
+	}
+
+	private EArcDataRegion(long location, MappedWindows windows) {
+		this.location = location;
+		this.size = Math.max(windows.size() - location, 0);
+		this.mapped = null;
+		this.windows = windows;
+	}
+
+	/**
+	 * 
+	 * @param windows
+	 *            the mapping of the entire archive
+	 * @param location
+	 *            the absolute offset of the data table
+	 * @return a region of {@code windows} starting at {@code location}
+	 */
+	public static EArcDataRegion of(MappedWindows windows, long location) {
+		return windows != null && location > -1 ? new EArcDataRegion(location, windows) : null;
+	}
+
+	/**
+	 * Maps everything from {@code location} to the end of {@code fc}
+	 *
+	 * @param fc
+	 *            the channel of the earc
+	 * @param location
+	 *            the absolute offset of the data table
+	 * @return the mapped region or {@code null} if the region could not be mapped
+	 *         (for instance if it is larger than {@link Integer#MAX_VALUE} bytes)
+	 */
+	public static EArcDataRegion map(FileChannel fc, long location) {
+		EArcDataRegion result = null;
+		if (fc != null && location > -1) {
+			try {
+				long size = fc.size() - location;
+				if (size > -1 && size <= Integer.MAX_VALUE) {
+					MappedByteBuffer mbb = fc.map(MapMode.READ_ONLY, location, size);
+					mbb.order(ByteOrder.nativeOrder());
+					result = new EArcDataRegion(location, mbb);
+				} else {
+					LOG.debug("The data region at {} of {} bytes can not be mapped with a single buffer", location,
+							size);
+				}
+			} catch (IOException e) {
+				LOG.error(e.getLocalizedMessage(), e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 * @return the absolute offset of the first byte of this region
+	 */
+	public long getLocation() {
+		return location;
+	}
+
+	/**
+	 *
+	 * @return the number of bytes in this region
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @param absoluteOffset
+	 *            the absolute offset (from 0x00) of the first byte
+	 * @param len
+	 *            the number of bytes
+	 * @return {@code true} if the whole range is within this region
+	 */
+	public boolean contains(long absoluteOffset, int len) {
+		long relative = absoluteOffset - location;
+		return relative > -1 && len > -1 && relative + len <= size;
+	}
+
+	/**
+	 *
+	 * @param absoluteOffset
+	 *            the absolute offset (from 0x00) of the first byte
+	 * @param len
+	 *            the number of bytes
+	 * @return a read-only, native ordered view of the given range or {@code null}
+	 *         if the range is not within this region
+	 */
+	public ByteBuffer slice(long absoluteOffset, int len) {
+		ByteBuffer result = null;
+		if (windows != null) {
+			if (contains(absoluteOffset, len)) {
+				result = windows.slice(absoluteOffset, len);
+			}
+		} else if (contains(absoluteOffset, len)) {
+			int relative = (int) (absoluteOffset - location);
+			ByteBuffer dup = mapped.duplicate();
+			dup.limit(relative + len).position(relative);
+			result = dup.slice().asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("EArcDataRegion [location=");
+		builder.append(location);
+		builder.append(", size=");
+		builder.append(size());
+		builder.append("]");
+		return builder.toString();
+	}
+
+}
@@ -4,10 +4,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -25,8 +27,8 @@ import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.ratzlaff.james.arc.earc.obfus.EntryUnlockKeys;
 import com.ratzlaff.james.arc.earc.obfus.KeyGen;
+import com.ratzlaff.james.util.io.PositionalReads;
 
 /**
  * 
@@ -50,74 +52,78 @@ public class EArcEntry implements Comparable<EArcEntry>{
 	// 0x58 0x18 data_loc long (location of the actual file)
 	// 0x5C 0x1C path_loc long (location of the file path string)
 	public static final Charset DEFAULT_EARC_CHARSET = Charset.forName("UTF-8");
-	private long transientKey;
-	private int extractedSize;
-	private int length;
-	private int type;
-	private int dataUrlLocation;
-	private long dataLocation;
-	private long pathLocation;
-	private short deflateKey;
-	private EntryUnlockKeys unlockKeys;
-	private List<DeflateSegment> deflateSegments;
-	private String dataUrl;
-	private String path;
-	private boolean obfuscated;
-
-	private final Supplier<FileChannel> fileChannelSupplier;
+	/**
+	 * The size (in bytes) of a single entry within the metadata table
+	 */
+	public static final int METADATA_RECORD_SIZE = 40;
+	private final EArcEntryTable table;
+	private final int index;
+	private volatile List<DeflateSegment> deflateSegments;
 
 	public EArcEntry(Supplier<FileChannel> fileChannelSupplier) {
 		this(fileChannelSupplier, null);
 	}
 
+	/**
+	 * Reads the metadata record at the current position of the channel (without
+	 * moving it)
+	 * 
+	 * @param fileChannelSupplier
+	 *            the supplier of the archive's channel
+	 * @param bb
+	 *            the buffer to read the record into, may be {@code null}
+	 * @param keyGen
+	 *            the archive's key generator if the archive is obfuscated,
+	 *            otherwise {@code null}
+	 */
 	public EArcEntry(Supplier<FileChannel> fileChannelSupplier, ByteBuffer bb, KeyGen keyGen) {
-		this.fileChannelSupplier = fileChannelSupplier;
-		long transientObfuscationKey = -1;
-		int extractedSizeToUse = -1;
-		int lengthToUse = -1;
-		int typeToUse = -1;
-		int dataUrlLocationToUse = -1;
-		long dataLocationToUse = -1;
-		long pathLocationToUse = -1;
-		short deflateKeyToUse=0;
-		boolean obfuscationTruth=false;
-		if(keyGen!=null) {
-			obfuscationTruth=true;
-		}
-		if (this.fileChannelSupplier != null) {
+		this(EArcEntryTable.decode(fileChannelSupplier,
+				readMetadataRecord(fileChannelSupplier, getPosition(fileChannelSupplier), bb), 1, keyGen), 0);
+	}
+
+	/**
+	 * Creates a view of a single row of an {@link EArcEntryTable}
+	 * 
+	 * @param table
+	 *            the table that holds this entry's values
+	 * @param index
+	 *            the row of this entry within {@code table}
+	 */
+	EArcEntry(EArcEntryTable table, int index) {
+		this.table = table;
+		this.index = index;
+	}
+	
+	private static long getPosition(Supplier<FileChannel> fileChannelSupplier) {
+		long result = -1;
+		if (fileChannelSupplier != null) {
+			try {
+				result = fileChannelSupplier.get().position();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return result;
+	}
+
+	private static ByteBuffer readMetadataRecord(Supplier<FileChannel> fileChannelSupplier, long recordLocation,
+			ByteBuffer bb) {
+		ByteBuffer result = null;
+		if (fileChannelSupplier != null && recordLocation > -1) {
 			if (bb == null) {
-				bb = ByteBuffer.allocateDirect(40).order(ByteOrder.nativeOrder());
+				bb = ByteBuffer.allocateDirect(METADATA_RECORD_SIZE).order(ByteOrder.nativeOrder());
 			}
-			FileChannel fc = this.fileChannelSupplier.get();
+			bb.clear();
+			bb.limit(Math.min(bb.capacity(), METADATA_RECORD_SIZE));
+			FileChannel fc = fileChannelSupplier.get();
 			try {
-				int bytesRead = fc.read(bb);
-				bb.flip();
-				transientObfuscationKey = bb.getLong();
-				extractedSizeToUse = bb.getInt();
-				lengthToUse = bb.getInt();
-				typeToUse = bb.getInt();
-				dataUrlLocationToUse = bb.getInt();
-				dataLocationToUse = bb.getLong();
-				pathLocationToUse = bb.getInt();
-				bb.getShort();
-				deflateKeyToUse = bb.getShort();
-				bb.flip();
+				PositionalReads.readFullyAndFlip(fc, bb, recordLocation);
+				result = bb;
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
-		transientKey = transientObfuscationKey;
-		extractedSize = extractedSizeToUse;
-		length = lengthToUse;
-		type = typeToUse;
-		dataUrlLocation = dataUrlLocationToUse;
-		dataLocation = dataLocationToUse;
-		pathLocation = pathLocationToUse;
-		deflateKey=deflateKeyToUse;
-		obfuscated=obfuscationTruth;
-		unlockKeys = obfuscated?keyGen.setTransientKeyAndGetEntryUnlockKey(transientKey):KeyGen.createDefaultEntryKeys();
-		
-
+		return result;
 	}
 	public EArcEntry(Supplier<FileChannel> fileChannelSupplier, ByteBuffer bb) {
 		this(fileChannelSupplier, bb, null);
@@ -129,25 +135,18 @@ public class EArcEntry implements Comparable<EArcEntry>{
 		// throw new RuntimeException("offset must be divisible by 8");
 		// }
 		if (dst == null) {
-			dst = ByteBuffer.allocateDirect(1024);
+			dst = ByteBuffer.allocate(1024);
 		}
+		long position = offset;
 		int bytesRead = 0;
 		try {
-			ByteBuffer littleBuffer = ByteBuffer.allocateDirect(8);
-			fc.position(offset);
-			while (bytesRead != -1 && dst.limit() != 0 && dst.remaining() > 0) {
-				bytesRead = fc.read(littleBuffer);
-				if (bytesRead < 0) {
+			while (dst.hasRemaining() && (bytesRead = fc.read(dst, position)) > 0) {
+				int nul = indexOfNul(dst, dst.position() - bytesRead, dst.position());
+				position += bytesRead;
+				if (nul != -1) {
+					dst.position(nul);
 					break;
 				}
-				int lastByte = bytesRead > 0 ? littleBuffer.get((int) bytesRead - 1) : Integer.MAX_VALUE;
-
-				littleBuffer.flip();
-				dst.put(littleBuffer);
-				if (lastByte == 0) {
-					break;
-				}
-				littleBuffer.rewind();
 			}
 
 		} catch (IOException e) {
@@ -158,6 +157,15 @@ public class EArcEntry implements Comparable<EArcEntry>{
 		return result;
 	}
 
+	private static int indexOfNul(ByteBuffer bb, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (bb.get(i) == 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
 	public static String readString(Path p, int offset, ByteBuffer dst) {
 		String result = null;
 		try {
@@ -169,7 +177,7 @@ public class EArcEntry implements Comparable<EArcEntry>{
 	}
 
 	boolean isObfuscated(){
-		return obfuscated; 
+		return table.isObfuscated(); 
 	}
 	
 	public static String readString(String str, int offset, ByteBuffer dst) {
@@ -178,7 +186,7 @@ public class EArcEntry implements Comparable<EArcEntry>{
 	}
 
 	public short getDeflateKey() {
-		return this.deflateKey;
+		return table.getDeflateKey(index);
 	}
 
 	public static String readString(String str, int offset) {
@@ -188,14 +196,24 @@ public class EArcEntry implements Comparable<EArcEntry>{
 	}
 
 	FileChannel getFileChannel() {
-		FileChannel result = null;
-		if (fileChannelSupplier != null) {
-			result = fileChannelSupplier.get();
-		}
-		return result;
+		return table.getFileChannel();
 	}
 
+	/**
+	 * 
+	 * @return the table this entry is a view of
+	 */
+	public EArcEntryTable getTable() {
+		return table;
+	}
 
+	/**
+	 * 
+	 * @return the row of this entry within its {@link #getTable() table}
+	 */
+	public int getIndex() {
+		return index;
+	}
 
 	/**
 	 * 
@@ -204,11 +222,11 @@ public class EArcEntry implements Comparable<EArcEntry>{
 	 *         this number
 	 */
 	public long getTransientKey() {
-		return transientKey;
+		return table.getTransientKey(index);
 	}
 
 	public void setTransientKey(long checksum) {
-		this.transientKey = checksum;
+		table.setTransientKey(index, checksum);
 	}
 
 	/**
@@ -216,11 +234,11 @@ public class EArcEntry implements Comparable<EArcEntry>{
 	 * @return the extracted size (in bytes) of the file
 	 */
 	public int getExtractedSize() {
-		return getUnlockKeys().getSizeOnDiskFrom(extractedSize);
+		return table.getExtractedSize(index);
 	}
 
 	public void setExtractedSize(int extractedSize) {
-		this.extractedSize = extractedSize;
+		table.setExtractedSize(index, extractedSize);
 	}
 
 	/**
@@ -228,11 +246,11 @@ public class EArcEntry implements Comparable<EArcEntry>{
 	 * @return the length of the data entry in the archive
 	 */
 	public int getLength() {
-		return getUnlockKeys().getEntryLengthFrom(length);
+		return table.getLength(index);
 	}
 
 	public void setLength(int length) {
-		this.length = length;
+		table.setLength(index, length);
 	}
 
 	/**
@@ -253,26 +271,31 @@ public class EArcEntry implements Comparable<EArcEntry>{
 	 * @return the metatype of the entry
 	 */
 	public int getType() {
-		return type;
+		return table.getType(index);
 	}
 
 	public void setType(int type) {
-		this.type = type;
+		table.setType(index, type);
 	}
 
 	public int getDataUrlLocation() {
-		return dataUrlLocation;
+		return table.getDataUrlLocation(index);
 	}
 
 	public void setDataUrlLocation(int dataUrlLocation) {
-		this.dataUrlLocation = dataUrlLocation;
+		table.setDataUrlLocation(index, dataUrlLocation);
 	}
 
 	public String getDataUrl(ByteBuffer dst) {
-		if (dataUrl == null && dataUrlLocation != -1) {
-			FileChannel fc = getFileChannel();
-			if (fc != null) {
-				this.dataUrl = readString(fc, (int) dataUrlLocation, dst);
+		String dataUrl = table.getCachedDataUrl(index);
+		if (dataUrl == null && getDataUrlLocation() != -1) {
+			dataUrl = lookupString(getDataUrlLocation());
+			if (dataUrl == null) {
+				FileChannel fc = getFileChannel();
+				if (fc != null) {
+					dataUrl = readString(fc, getDataUrlLocation(), dst);
+					table.setCachedDataUrl(index, dataUrl);
+				}
 			}
 		}
 		return dataUrl;
@@ -284,10 +307,15 @@ public class EArcEntry implements Comparable<EArcEntry>{
 	}
 
 	public String getFilePath(ByteBuffer dst) {
-		if (path == null && dataUrlLocation != -1) {
-			FileChannel fc = getFileChannel();
-			if (fc != null) {
-				path = readString(fc, (int) pathLocation, dst);
+		String path = table.getCachedFilePath(index);
+		if (path == null && getDataUrlLocation() != -1) {
+			path = lookupString(getPathLocation());
+			if (path == null) {
+				FileChannel fc = getFileChannel();
+				if (fc != null) {
+					path = readString(fc, (int) getPathLocation(), dst);
+					table.setCachedFilePath(index, path);
+				}
 			}
 		}
 		return path;
@@ -297,49 +325,144 @@ public class EArcEntry implements Comparable<EArcEntry>{
 		String result = getFilePath(null);
 		return result;
 	}
-	
-	protected EntryUnlockKeys getUnlockKeys() {
-		return unlockKeys;
+
+	private String lookupString(long location) {
+		EArcStringTable strings = table.getStringTable();
+		return strings != null ? strings.getString(location) : null;
+	}
+
+	private String peekString(long location) {
+		EArcStringTable strings = table.peekStringTable();
+		return strings != null ? strings.peekString(location) : null;
 	}
 
 	public long getDataLocation() {
-		return getUnlockKeys().getDataOffsetFrom(dataLocation);
+		return table.getDataLocation(index);
 	}
 
 	public void setDataLocation(long dataLocation) {
-		this.dataLocation = dataLocation;
+		table.setDataLocation(index, dataLocation);
 	}
 
 	public long getPathLocation() {
-		return pathLocation;
+		return table.getPathLocation(index);
 	}
 
 	public void setPathLocation(long pathLocation) {
-		this.pathLocation = pathLocation;
+		table.setPathLocation(index, (int) pathLocation);
 	}
 
 	public File extractTo(Path dir) {
+		return extractTo(dir, null);
+	}
+
+	private void transferRawData(FileChannel outChannel) throws IOException {
+		FileChannel fc = getFileChannel();
+		EArcMetrics metrics = EArcMetrics.DEFAULT_INSTANCE;
+		long writeStart = metrics.getOutputWrite().start();
+		long transferred = 0;
+		long len = getLength();
+		while (transferred < len) {
+			long count = fc.transferTo(getDataLocation() + transferred, len - transferred, outChannel);
+			if (count < 1) {
+				break;
+			}
+			transferred += count;
+		}
+		metrics.getOutputWrite().record(writeStart);
+		metrics.getBytesRead().add(transferred);
+		metrics.getBytesWritten().add(transferred);
+	}
+
+	EArcDataRegion getDataRegion() {
+		return table.getDataRegion();
+	}
+
+	/**
+	 * 
+	 * @param absoluteOffset
+	 *            the absolute offset (from 0x00) of the first byte
+	 * @param len
+	 *            the number of bytes
+	 * @return a read-only view of the given range of the mapped data table, or
+	 *         {@code null} if the archive's data table is not mapped
+	 */
+	ByteBuffer getMappedSlice(long absoluteOffset, int len) {
+		EArcDataRegion region = getDataRegion();
+		return region != null ? region.slice(absoluteOffset, len) : null;
+	}
+
+	/**
+	 * 
+	 * @return the offset within the inflated data of each of this entry's
+	 *         {@link #getDeflateSegments() segments} followed by the total inflated
+	 *         size, computed from each segment's {@link DeflateSegment#getBufferSize()
+	 *         buffer size}
+	 */
+	public long[] getInflatedSegmentOffsets() {
+		List<DeflateSegment> segments = getDeflateSegments();
+		long[] offsets = new long[segments.size() + 1];
+		for (int i = 0; i < segments.size(); i++) {
+			offsets[i + 1] = offsets[i] + Math.max(segments.get(i).getBufferSize(), 0);
+		}
+		return offsets;
+	}
+
+	/**
+	 * Extracts this entry into {@code dir}, inflating its segments concurrently
+	 * with {@code inflater} if it is not {@code null} and the entry has enough
+	 * segments to make that worthwhile
+	 * 
+	 * @param dir
+	 *            the directory to extract to
+	 * @param inflater
+	 *            the inflater to use for multi-segment entries, may be {@code null}
+	 * @return the extracted file
+	 */
+	public File extractTo(Path dir, ParallelSegmentInflater inflater) {
+		try {
+			return extract(dir, inflater);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return (dir != null ? dir : Paths.get("./")).resolve(getPath()).toFile();
+	}
+
+	/**
+	 * The same as {@link #extractTo(Path, ParallelSegmentInflater)} but failures
+	 * are thrown rather than printed
+	 * 
+	 * @param dir
+	 *            the directory to extract to
+	 * @param inflater
+	 *            the inflater to use for multi-segment entries, may be {@code null}
+	 * @return the extracted file
+	 * @throws IOException
+	 *             if the file could not be created or the entry could not be read
+	 */
+	File extract(Path dir, ParallelSegmentInflater inflater) throws IOException {
 		if (dir == null) {
 			dir = Paths.get("./");
 		}
-		Path myPath = getPath();
-		Path resolved = dir.resolve(myPath);
-		try {
-			Files.createDirectories(resolved.getParent());
-			Files.createFile(resolved);
-			FileChannel outChannel = FileChannel.open(resolved, StandardOpenOption.WRITE);
-			if (!EArchDataExtractor.isZipped(this)) {
-				getFileChannel().transferTo(getDataLocation(), getLength(), outChannel);
+		Path resolved = dir.resolve(getPath());
+		Files.createDirectories(resolved.getParent());
+		try (FileChannel outChannel = FileChannel.open(resolved, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE)) {
+			if (inflater != null && inflater.isWorthwhile(this)) {
+				inflater.inflateTo(this, outChannel);
 			} else {
-				ByteBuffer bb = ByteBuffer.wrap(getExtractData());
-				int dataWritten = outChannel.write(bb);
+				List<DeflateSegment> segments = getDeflateSegments();
+				if (segments.isEmpty()) {
+					transferRawData(outChannel);
+				} else {
+					OutputStream os = Channels.newOutputStream(outChannel);
+					for (int i = 0; i < segments.size(); i++) {
+						segments.get(i).writeToOutputStream(os);
+					}
+				}
 			}
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		}
 		return resolved.toFile();
-
 	}
 
 	public Path getPath() {
@@ -348,21 +471,67 @@ public class EArcEntry implements Comparable<EArcEntry>{
 		return asPath;
 	}
 
+	/**
+	 * 
+	 * @return the entire extracted contents of this entry. Prefer
+	 *         {@link #openStream()} for large entries.
+	 * @throws UncheckedIOException
+	 *             if any segment is corrupt or does not inflate to its
+	 *             {@link DeflateSegment#getBufferSize() buffer size}
+	 */
 	public byte[] getExtractData() {
-		return EArchDataExtractor.extract(this);
+		List<DeflateSegment> segments = getDeflateSegments();
+		if (segments.isEmpty()) {
+			return readRawData();
+		}
+		long[] offsets = getInflatedSegmentOffsets();
+		byte[] result = new byte[(int) offsets[segments.size()]];
+		try {
+			for (int i = 0; i < segments.size(); i++) {
+				DeflateSegment segment = segments.get(i);
+				segment.checkInflatedSize(segment.inflateInto(result, (int) offsets[i]));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return result;
+	}
+
+	private byte[] readRawData() {
+		int len = Math.max(getLength(), 0);
+		byte[] result = new byte[len];
+		ByteBuffer mapped = getMappedSlice(getDataLocation(), len);
+		if (mapped != null) {
+			mapped.get(result);
+		} else {
+			FileChannel fc = getFileChannel();
+			try {
+				int read = fc != null ? PositionalReads.readFully(fc, ByteBuffer.wrap(result), getDataLocation()) : 0;
+				if (read < len) {
+					result = Arrays.copyOf(result, Math.max(read, 0));
+				}
+			} catch (IOException e) {
+				LOG.error(e.getLocalizedMessage(), e);
+			}
+		}
+		EArcMetrics.DEFAULT_INSTANCE.getBytesRead().add(result.length);
+		return result;
 	}
 
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
+		long transientKey = getTransientKey();
+		long dataLocation = getDataLocation();
+		long pathLocation = getPathLocation();
 		result = prime * result + (int) (transientKey ^ (transientKey >>> 32));
 		result = prime * result + (int) (dataLocation ^ (dataLocation >>> 32));
-		result = prime * result + dataUrlLocation;
-		result = prime * result + extractedSize;
-		result = prime * result + length;
+		result = prime * result + getDataUrlLocation();
+		result = prime * result + getExtractedSize();
+		result = prime * result + getLength();
 		result = prime * result + (int) (pathLocation ^ (pathLocation >>> 32));
-		result = prime * result + type;
+		result = prime * result + getType();
 		return result;
 	}
 
@@ -375,19 +544,19 @@ public class EArcEntry implements Comparable<EArcEntry>{
 		if (getClass() != obj.getClass())
 			return false;
 		EArcEntry other = (EArcEntry) obj;
-		if (transientKey != other.transientKey)
+		if (getTransientKey() != other.getTransientKey())
 			return false;
-		if (dataLocation != other.dataLocation)
+		if (getDataLocation() != other.getDataLocation())
 			return false;
-		if (dataUrlLocation != other.dataUrlLocation)
+		if (getDataUrlLocation() != other.getDataUrlLocation())
 			return false;
-		if (extractedSize != other.extractedSize)
+		if (getExtractedSize() != other.getExtractedSize())
 			return false;
-		if (length != other.length)
+		if (getLength() != other.getLength())
 			return false;
-		if (pathLocation != other.pathLocation)
+		if (getPathLocation() != other.getPathLocation())
 			return false;
-		if (type != other.type)
+		if (getType() != other.getType())
 			return false;
 		return true;
 	}
@@ -430,25 +599,25 @@ public class EArcEntry implements Comparable<EArcEntry>{
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
 		builder.append("FileMetadataPointers [unknown=");
-		builder.append(divvy(toHexArray(transientKey), 2, " "));
-		builder.append("(").append(transientKey).append(")");
+		builder.append(divvy(toHexArray(getTransientKey()), 2, " "));
+		builder.append("(").append(getTransientKey()).append(")");
 		builder.append(", extractedSize=");
 		builder.append(getExtractedSize());
 		builder.append(", length=");
 		builder.append(getLength());
 		builder.append(", type=");
-		builder.append(type);
+		builder.append(getType());
 		builder.append(", dataUrlLocation=");
-		builder.append(dataUrlLocation);
+		builder.append(getDataUrlLocation());
 		builder.append(", dataLocation=");
 		builder.append(getDataLocation());
 		builder.append(", pathLocation=");
-		builder.append(pathLocation);
-		if (dataUrl != null) {
+		builder.append(getPathLocation());
+		if (table.getCachedDataUrl(index) != null || peekString(getDataUrlLocation()) != null) {
 			builder.append(", dataUrl=");
 			builder.append(getDataUrl());
 		}
-		if (path != null) {
+		if (table.getCachedFilePath(index) != null || peekString(getPathLocation()) != null) {
 			builder.append(", filePath=");
 			builder.append(getFilePath());
 		}
@@ -474,15 +643,7 @@ public class EArcEntry implements Comparable<EArcEntry>{
 		ByteBuffer bb = ByteBuffer.allocateDirect(len).order(ByteOrder.nativeOrder());
 		if (fileChannel != null) {
 			try {
-				if (offset > -1) {
-					fileChannel.position(offset);
-				}
-				int read = 0;
-				int totalRead = 0;
-				while ((read = fileChannel.read(bb)) != -1 && totalRead < len) {
-					totalRead += read;
-				}
-				bb.flip();
+				PositionalReads.readFullyAndFlip(fileChannel, bb, Math.max(offset, 0));
 			} catch (IOException e) {
 				LOG.error(e.getLocalizedMessage(), e);
 			}
@@ -530,141 +691,35 @@ public class EArcEntry implements Comparable<EArcEntry>{
 		return in.resolve(getPath()).toFile();
 	}
 	
-	private class RotatingInflateInputStream extends InputStream {
+	/**
+	 * 
+	 * @return a stream of this entry's extracted contents that inflates one
+	 *         {@link DeflateSegment} at a time, so entries of any size can be
+	 *         read with bounded memory
+	 * @see EArcEntryInputStream
+	 */
+	public InputStream openStream() {
+		return new EArcEntryInputStream(this);
+	}
 
-		
-		InputStream delegate;
-		
-		/**
-		 * 
-		 */
-		public RotatingInflateInputStream() {
-			 delegate = Channels.newInputStream(getFileChannel());
-		}
-		
-		/* (non-Javadoc)
-		 * @see java.io.InputStream#read()
-		 */
-		@Override
-		public int read() throws IOException {
-			// TODO Auto-generated method stub
-			return 0;
-		}
-
-		/* (non-Javadoc)
-		 * @see java.io.InputStream#available()
-		 */
-		@Override
-		public int available() throws IOException {
-			// TODO Auto-generated method stub
-			return super.available();
-		}
-
-		/* (non-Javadoc)
-		 * @see java.io.InputStream#close()
-		 */
-		@Override
-		public void close() throws IOException {
-			// TODO Auto-generated method stub
-			super.close();
-		}
-
-		/* (non-Javadoc)
-		 * @see java.io.InputStream#mark(int)
-		 */
-		@Override
-		public synchronized void mark(int arg0) {
-			// TODO Auto-generated method stub
-			super.mark(arg0);
-		}
-
-		/* (non-Javadoc)
-		 * @see java.io.InputStream#markSupported()
-		 */
-		@Override
-		public boolean markSupported() {
-			// TODO Auto-generated method stub
-			return super.markSupported();
-		}
-
-		/* (non-Javadoc)
-		 * @see java.io.InputStream#read(byte[], int, int)
-		 */
-		@Override
-		public int read(byte[] arg0, int arg1, int arg2) throws IOException {
-			// TODO Auto-generated method stub
-			return super.read(arg0, arg1, arg2);
-		}
-
-		/* (non-Javadoc)
-		 * @see java.io.InputStream#read(byte[])
-		 */
-		@Override
-		public int read(byte[] arg0) throws IOException {
-			// TODO Auto-generated method stub
-			return super.read(arg0);
-		}
-
-		/* (non-Javadoc)
-		 * @see java.io.InputStream#readAllBytes()
-		 */
-		@Override
-		public byte[] readAllBytes() throws IOException {
-			// TODO Auto-generated method stub
-			return super.readAllBytes();
-		}
-
-		/* (non-Javadoc)
-		 * @see java.io.InputStream#readNBytes(byte[], int, int)
-		 */
-		@Override
-		public int readNBytes(byte[] arg0, int arg1, int arg2) throws IOException {
-			// TODO Auto-generated method stub
-			return super.readNBytes(arg0, arg1, arg2);
-		}
-
-		/* (non-Javadoc)
-		 * @see java.io.InputStream#reset()
-		 */
-		@Override
-		public synchronized void reset() throws IOException {
-			// TODO Auto-generated method stub
-			super.reset();
-		}
-
-		/* (non-Javadoc)
-		 * @see java.io.InputStream#skip(long)
-		 */
-		@Override
-		public long skip(long arg0) throws IOException {
-			// TODO Auto-generated method stub
-			return super.skip(arg0);
-		}
-
-		/* (non-Javadoc)
-		 * @see java.io.InputStream#transferTo(java.io.OutputStream)
-		 */
-		@Override
-		public long transferTo(OutputStream arg0) throws IOException {
-			// TODO Auto-generated method stub
-			return super.transferTo(arg0);
-		}
-		
+	/**
+	 * 
+	 * @return the same as {@link #openStream()} as a
+	 *         {@link ReadableByteChannel}
+	 */
+	public ReadableByteChannel openChannel() {
+		return Channels.newChannel(openStream());
+	}
+
+	/**
+	 * 
+	 * @return a random-access view of this entry's extracted contents that only
+	 *         inflates the segments covering the positions that are read
+	 * @see EArcEntrySeekableChannel
+	 */
+	public EArcEntrySeekableChannel openSeekableChannel() {
+		return new EArcEntrySeekableChannel(this);
 	}
-	
-//	public InputStream getAsInputStream() {
-//		FileChannel fc = getFileChannel();
-//		InputStream is = null;
-//		if(fc!=null) {
-//			is = Channels.newInputStream(fc);
-//			if(isProbablyAZipStream()) {
-//				is=new InflaterInputStream(is);
-//				
-//			} else {
-//				
-//			}
-//		}
-//	}
 	
 	private ByteBuffer getByteBufferOfData() {
 		ByteBuffer bb = getByteBuffer(getFileChannel(), getDataLocation(), getLength());
@@ -684,23 +739,20 @@ public class EArcEntry implements Comparable<EArcEntry>{
 
 	public List<DeflateSegment> getDeflateSegments() {
 		if (this.deflateSegments == null) {
-			if (isProbablyAZipStream()) {
-				this.deflateSegments = new ArrayList<DeflateSegment>();
-				FileChannel fileChannel = getFileChannel();
-				try{
-					fileChannel.position(getDataLocation());
-					int totalBytesSought=0;
-					int len = getLength();
-					while(totalBytesSought<len) {
-						DeflateSegment df = new DeflateSegment(this);
-						totalBytesSought+=(df.length());
-						this.deflateSegments.add(df);
+			if (isCompressed()) {
+				ArrayList<DeflateSegment> segments = new ArrayList<DeflateSegment>();
+				int totalBytesSought=0;
+				int len = getLength();
+				while(totalBytesSought<len) {
+					DeflateSegment df = new DeflateSegment(this, totalBytesSought);
+					if(df.length()<=0) {
+						break;
 					}
-					
-				}catch(IOException ioe) {
-					LOG.error(ioe.getLocalizedMessage(),ioe);
+					totalBytesSought+=(df.length());
+					segments.add(df);
 				}
-				((ArrayList<DeflateSegment>) this.deflateSegments).trimToSize();
+				segments.trimToSize();
+				this.deflateSegments = segments;
 			} else {
 				this.deflateSegments = Collections.emptyList();
 			}
@@ -710,38 +762,72 @@ public class EArcEntry implements Comparable<EArcEntry>{
 	
 
 
-	private boolean isProbablyAZipStream() {
-		if(this.deflateSegments!=null&&this.deflateSegments.isEmpty()) {
-			return false;
+	/**
+	 * 
+	 * @return {@code true} if this entry's data is a sequence of
+	 *         {@link DeflateSegment}s. The answer is worked out from the first
+	 *         {@link #COMPRESSION_HEADER_SIZE} bytes of the data the first time it
+	 *         is needed and cached in the {@link EArcEntryTable entry table}.
+	 */
+	public boolean isCompressed() {
+		if (this.deflateSegments != null) {
+			return !this.deflateSegments.isEmpty();
 		}
-		boolean zipped = false;
-		FileChannel fc = getFileChannel();
-		int targetLen = (Integer.BYTES<<1) + 2;
-		ByteBuffer bb = getByteBuffer(fc, getDataLocation(), targetLen);
-		zipped = bb.remaining() == targetLen;
+		byte compression = table.getCompression(index);
+		if (compression == EArcEntryTable.COMPRESSION_UNKNOWN) {
+			ByteBuffer bb = getMappedSlice(getDataLocation(), COMPRESSION_HEADER_SIZE);
+			if (bb == null) {
+				bb = getByteBuffer(getFileChannel(), getDataLocation(), COMPRESSION_HEADER_SIZE);
+			}
+			compression = classifyCompression(bb, getDeflateKey());
+			table.setCompression(index, compression);
+		}
+		return compression == EArcEntryTable.COMPRESSION_DEFLATE;
+	}
+
+	/**
+	 * The number of bytes at the start of an entry's data needed to tell whether
+	 * it is compressed (the first segment's sizes and the two zlib header bytes)
+	 */
+	static final int COMPRESSION_HEADER_SIZE = (Integer.BYTES << 1) + 2;
+
+	/**
+	 * 
+	 * @param bb
+	 *            the first {@link #COMPRESSION_HEADER_SIZE} bytes of an entry's
+	 *            data, starting at its position
+	 * @param deflateKey
+	 *            the entry's {@link #getDeflateKey() deflate key}
+	 * @return {@link EArcEntryTable#COMPRESSION_DEFLATE} if the bytes look like
+	 *         the header of a {@link DeflateSegment}, otherwise
+	 *         {@link EArcEntryTable#COMPRESSION_NONE}
+	 */
+	static byte classifyCompression(ByteBuffer bb, short deflateKey) {
+		boolean zipped = bb != null && bb.remaining() >= COMPRESSION_HEADER_SIZE;
 		if (!zipped) {
-			LOG.debug("Not zipped. Expected to read %d bytes but only read %d", targetLen, bb.remaining());
+			LOG.debug("Not zipped. Expected to read {} bytes but only read {}", COMPRESSION_HEADER_SIZE,
+					bb != null ? bb.remaining() : 0);
 		} else {
-			int compressedSize = bb.getInt();
-			int inflatedSize = bb.getInt();
-			byte firstByte = bb.get();
-			byte secondByte = bb.get();
+			int start = bb.position();
+			int compressedSize = bb.getInt(start);
+			int inflatedSize = bb.getInt(start + Integer.BYTES);
+			byte firstByte = bb.get(start + (Integer.BYTES << 1));
+			byte secondByte = bb.get(start + (Integer.BYTES << 1) + 1);
 			boolean compressAndDeflateAreLegit = compressedSizeAndInflatedSizeAreLegit(compressedSize, inflatedSize);
 			boolean firstByteIsCorrect = byteIsValidFirstInflateByte(firstByte);
 			boolean secondByteIsCorrect = byteIsValidSecondInflateByte(secondByte);
 
 			if (!firstByteIsCorrect) {
-				LOG.debug("The first inflate header byte is not correct. Expected %x but was given %x",
+				LOG.debug("The first inflate header byte is not correct. Expected {} but was given {}",
 						ZLIB_FIRST_MAGIC_VALUE, firstByte);
 			}
 			if (!secondByteIsCorrect) {
-				LOG.debug(
-						"The second inflate header byte is not correct. Expected %x, %x, %x, or %x but was given %x",
+				LOG.debug("The second inflate header byte is not correct. Expected {}, {}, {}, or {} but was given {}",
 						x01, x5A, x9C, xDA, secondByte);
 			}
-			zipped = (compressAndDeflateAreLegit||deflateKey!=0) && firstByteIsCorrect && secondByteIsCorrect;
+			zipped = (compressAndDeflateAreLegit || deflateKey != 0) && firstByteIsCorrect && secondByteIsCorrect;
 		}
-		return zipped;
+		return zipped ? EArcEntryTable.COMPRESSION_DEFLATE : EArcEntryTable.COMPRESSION_NONE;
 	}
 
 	private static final int MIN_COMPRESSED_SIZE = 2;
@@ -767,11 +853,11 @@ public class EArcEntry implements Comparable<EArcEntry>{
 			inflatedSizeIsValid = inflatedSizeIsValid(inflatedSize);
 			valid = inflatedSizeIsValid;
 			if (!valid) {
-				LOG.debug("The 'inflatedSize' value %d, is not valid because it is greater than %d",
+				LOG.debug("The 'inflatedSize' value {}, is not valid because it is greater than {}",
 						inflatedSize, MAX_INFLATE_BUFFER_SIZE);
 			}
 		} else {
-			LOG.debug("The 'compressedSize' value %d, is not valid because it is less than %d",
+			LOG.debug("The 'compressedSize' value {}, is not valid because it is less than {}",
 					compressedSize, MIN_COMPRESSED_SIZE);
 		}
 		if (valid) {
@@ -779,7 +865,7 @@ public class EArcEntry implements Comparable<EArcEntry>{
 			valid = coherent;
 			if (!valid) {
 				LOG.debug(
-						"The 'compressedSize' and 'inflateSize' are not coherent. Expected compressSize<=inflatedSize, but got %d and %d respectively",
+						"The 'compressedSize' and 'inflateSize' are not coherent. Expected compressSize<=inflatedSize, but got {} and {} respectively",
 						compressedSize, inflatedSize);
 			}
 		}
@@ -0,0 +1,211 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import com.ratzlaff.james.util.io.PositionalReads;
+
+/**
+ * Streams the extracted contents of an {@link EArcEntry}. Compressed entries
+ * are inflated one {@link DeflateSegment} at a time into a single buffer of at
+ * most {@link EArcEntry#MAX_INFLATE_BUFFER_SIZE} bytes, and uncompressed entries
+ * are read in chunks of {@link #RAW_CHUNK_SIZE} bytes, so the memory used does
+ * not depend on the size of the entry.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class EArcEntryInputStream extends InputStream {
+	/**
+	 * The number of bytes read at a time from uncompressed entries
+	 */
+	public static final int RAW_CHUNK_SIZE = 0x10000;
+
+	private final EArcEntry entry;
+	private final List<DeflateSegment> segments;
+	private final long rawLength;
+	private int segmentIndex;
+	private long rawPosition;
+	private byte[] buffer;
+	private int bufferPosition;
+	private int bufferLimit;
+	private boolean closed;
+
+	/**
+	 *
+	 * @param entry
+	 *            the entry to stream
+	 */
+	public EArcEntryInputStream(EArcEntry entry) {
+		this.entry = entry;
+		this.segments = entry.getDeflateSegments();
+		this.rawLength = segments.isEmpty() ? Math.max(entry.getLength(), 0) : 0;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	private byte[] getBuffer(int minSize) {
+		if (buffer == null || buffer.length < minSize) {
+			buffer = new byte[minSize];
+		}
+		return buffer;
+	}
+
+	/**
+	 * Makes sure there is at least one unread byte in the buffer
+	 *
+	 * @return {@code false} if the end of the entry has been reached
+	 * @throws IOException
+	 *             if the entry could not be read, a segment is corrupt or did not
+	 *             inflate to its {@link DeflateSegment#getBufferSize() buffer size},
+	 *             or the archive ends before the entry does
+	 */
+	private boolean fill() throws IOException {
+		ensureOpen();
+		while (bufferPosition >= bufferLimit) {
+			bufferPosition = 0;
+			bufferLimit = 0;
+			if (!segments.isEmpty()) {
+				if (segmentIndex >= segments.size()) {
+					return false;
+				}
+				DeflateSegment segment = segments.get(segmentIndex++);
+				bufferLimit = segment.inflateInto(getBuffer(Math.max(segment.getBufferSize(), 1)), 0);
+				segment.checkInflatedSize(bufferLimit);
+			} else {
+				if (rawPosition >= rawLength) {
+					return false;
+				}
+				int len = (int) Math.min(RAW_CHUNK_SIZE, rawLength - rawPosition);
+				bufferLimit = readRaw(entry.getDataLocation() + rawPosition, getBuffer(len), len);
+				if (bufferLimit < len) {
+					throw new IOException(String.format("\"%s\" ended after %d of %d bytes", entry.getFilePath(),
+							rawPosition + Math.max(bufferLimit, 0), rawLength));
+				}
+				rawPosition += bufferLimit;
+			}
+		}
+		return true;
+	}
+
+	private int readRaw(long absoluteOffset, byte[] dst, int len) throws IOException {
+		ByteBuffer mapped = entry.getMappedSlice(absoluteOffset, len);
+		int read = 0;
+		if (mapped != null) {
+			mapped.get(dst, 0, len);
+			read = len;
+		} else {
+			FileChannel fc = entry.getFileChannel();
+			read = fc != null ? PositionalReads.readFully(fc, ByteBuffer.wrap(dst, 0, len), absoluteOffset) : 0;
+		}
+		EArcMetrics.DEFAULT_INSTANCE.getBytesRead().add(Math.max(read, 0));
+		return read;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.InputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return buffer[bufferPosition++] & 0xFF;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int count = Math.min(len, bufferLimit - bufferPosition);
+		System.arraycopy(buffer, bufferPosition, b, off, count);
+		bufferPosition += count;
+		return count;
+	}
+
+	/**
+	 * Skips whole segments (and raw chunks) without inflating or reading them
+	 * whenever possible
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		ensureOpen();
+		long remaining = n;
+		while (remaining > 0) {
+			int buffered = bufferLimit - bufferPosition;
+			if (buffered > 0) {
+				int count = (int) Math.min(buffered, remaining);
+				bufferPosition += count;
+				remaining -= count;
+			} else if (!segments.isEmpty()) {
+				if (segmentIndex >= segments.size()) {
+					break;
+				}
+				int segmentSize = Math.max(segments.get(segmentIndex).getBufferSize(), 0);
+				if (segmentSize <= remaining) {
+					segmentIndex++;
+					remaining -= segmentSize;
+				} else if (!fill()) {
+					break;
+				}
+			} else {
+				long count = Math.min(rawLength - rawPosition, remaining);
+				if (count < 1) {
+					break;
+				}
+				rawPosition += count;
+				remaining -= count;
+			}
+		}
+		return n - remaining;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.InputStream#available()
+	 */
+	@Override
+	public int available() throws IOException {
+		ensureOpen();
+		return bufferLimit - bufferPosition;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.InputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		buffer = null;
+		bufferPosition = 0;
+		bufferLimit = 0;
+	}
+
+}
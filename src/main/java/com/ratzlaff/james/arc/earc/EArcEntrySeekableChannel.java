@@ -0,0 +1,257 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ratzlaff.james.util.io.PositionalReads;
+
+/**
+ * A read-only, random-access view of the extracted contents of an
+ * {@link EArcEntry}. The inflated size of every {@link DeflateSegment} is known
+ * up front, so a read at any position only inflates the segments that cover it.
+ * The most recently used inflated segments are kept in a small LRU so that
+ * neighbouring reads do not inflate the same segment twice. Uncompressed entries
+ * are read straight from the archive.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class EArcEntrySeekableChannel implements SeekableByteChannel {
+	/**
+	 * The number of inflated segments kept by default (512 KB at most)
+	 */
+	public static final int DEFAULT_CACHED_SEGMENTS = 4;
+
+	private final EArcEntry entry;
+	private final List<DeflateSegment> segments;
+	private final long[] offsets;
+	private final long size;
+	private final Map<Integer, byte[]> inflated;
+	private byte[] spare;
+	private long position;
+	private boolean open = true;
+
+	/**
+	 *
+	 * @param entry
+	 *            the entry to read
+	 */
+	public EArcEntrySeekableChannel(EArcEntry entry) {
+		this(entry, DEFAULT_CACHED_SEGMENTS);
+	}
+
+	/**
+	 *
+	 * @param entry
+	 *            the entry to read
+	 * @param cachedSegments
+	 *            the number of inflated segments to keep
+	 */
+	public EArcEntrySeekableChannel(EArcEntry entry, int cachedSegments) {
+		this.entry = entry;
+		this.segments = entry.getDeflateSegments();
+		this.offsets = entry.getInflatedSegmentOffsets();
+		this.size = segments.isEmpty() ? Math.max(entry.getLength(), 0) : offsets[segments.size()];
+		int capacity = Math.max(1, cachedSegments);
+		this.inflated = new LinkedHashMap<Integer, byte[]>(capacity * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+				boolean remove = size() > capacity;
+				if (remove) {
+					spare = eldest.getValue();
+				}
+				return remove;
+			}
+		};
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	/**
+	 *
+	 * @param pos
+	 *            a position within the extracted contents
+	 * @return the index of the segment that contains {@code pos}
+	 */
+	int segmentIndexOf(long pos) {
+		int index = Arrays.binarySearch(offsets, 0, segments.size(), pos);
+		if (index < 0) {
+			index = -index - 2;
+		}
+		while (index + 1 < segments.size() && offsets[index + 1] <= pos) {
+			index++;
+		}
+		return index;
+	}
+
+	/**
+	 *
+	 * @param index
+	 *            the index of the segment
+	 * @return the inflated contents of the segment
+	 * @throws IOException
+	 *             if the segment did not inflate to its
+	 *             {@link DeflateSegment#getBufferSize() buffer size}
+	 */
+	private byte[] getInflatedSegment(int index) throws IOException {
+		byte[] result = inflated.get(index);
+		if (result == null) {
+			DeflateSegment segment = segments.get(index);
+			int len = Math.max(segment.getBufferSize(), 0);
+			result = spare != null && spare.length >= len ? spare : new byte[len];
+			spare = null;
+			int count = segment.inflateInto(result, 0);
+			if (count != len) {
+				spare = result;
+				throw new IOException(String.format("Segment %d of \"%s\" inflated to %d bytes but should have been %d",
+						index, entry.getFilePath(), count, len));
+			}
+			inflated.put(index, result);
+		}
+		return result;
+	}
+
+	private int readInflated(ByteBuffer dst) throws IOException {
+		int total = 0;
+		while (dst.hasRemaining() && position < size) {
+			int index = segmentIndexOf(position);
+			byte[] data = getInflatedSegment(index);
+			int rel = (int) (position - offsets[index]);
+			int count = (int) Math.min(dst.remaining(), offsets[index + 1] - position);
+			dst.put(data, rel, count);
+			position += count;
+			total += count;
+		}
+		return total;
+	}
+
+	private int readRaw(ByteBuffer dst) throws IOException {
+		int count = (int) Math.min(dst.remaining(), size - position);
+		long absolute = entry.getDataLocation() + position;
+		ByteBuffer mapped = entry.getMappedSlice(absolute, count);
+		if (mapped != null) {
+			dst.put(mapped);
+		} else {
+			FileChannel fc = entry.getFileChannel();
+			int limit = dst.limit();
+			dst.limit(dst.position() + count);
+			try {
+				count = fc != null ? PositionalReads.readFully(fc, dst, absolute) : 0;
+			} finally {
+				dst.limit(limit);
+			}
+		}
+		position += count;
+		EArcMetrics.DEFAULT_INSTANCE.getBytesRead().add(Math.max(count, 0));
+		return count;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.SeekableByteChannel#read(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		if (position >= size) {
+			return dst.hasRemaining() ? -1 : 0;
+		}
+		return segments.isEmpty() ? readRaw(dst) : readInflated(dst);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.SeekableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.SeekableByteChannel#position()
+	 */
+	@Override
+	public long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.SeekableByteChannel#position(long)
+	 */
+	@Override
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position: " + newPosition);
+		}
+		this.position = newPosition;
+		return this;
+	}
+
+	/**
+	 * @return the extracted size of the entry
+	 */
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return size;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.SeekableByteChannel#truncate(long)
+	 */
+	@Override
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.Channel#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		open = false;
+		inflated.clear();
+		spare = null;
+	}
+
+}
@@ -0,0 +1,516 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ratzlaff.james.arc.earc.obfus.KeyGen;
+import com.ratzlaff.james.util.io.PositionalReads;
+
+/**
+ * A compact, column oriented copy of an earc's metadata table. Every field of
+ * every entry is kept in a primitive array indexed by the entry's row, with the
+ * obfuscation (if any) already removed. {@link EArcEntry} objects are only
+ * light-weight views over a row of this table.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class EArcEntryTable {
+	private static final transient Logger LOG = LoggerFactory.getLogger(EArcEntryTable.class);
+	/**
+	 * The compression of an entry has not been worked out yet
+	 */
+	static final byte COMPRESSION_UNKNOWN = 0;
+	/**
+	 * The entry's data is stored as is
+	 */
+	static final byte COMPRESSION_NONE = 1;
+	/**
+	 * The entry's data is a sequence of {@link DeflateSegment}s
+	 */
+	static final byte COMPRESSION_DEFLATE = 2;
+
+	private final transient Supplier<FileChannel> fileChannelSupplier;
+	private final transient Supplier<EArcStringTable> stringTableSupplier;
+	private transient EArcStringTable stringTable;
+	private transient Supplier<EArcDataRegion> dataRegionSupplier;
+	private final boolean obfuscated;
+	private final long[] transientKeys;
+	private final int[] extractedSizes;
+	private final int[] lengths;
+	private final int[] types;
+	private final int[] dataUrlLocations;
+	private final long[] dataLocations;
+	private final int[] pathLocations;
+	private final short[] deflateKeys;
+	private final byte[] compressions;
+	private String[] dataUrls;
+	private String[] filePaths;
+
+	private EArcEntryTable(Supplier<FileChannel> fileChannelSupplier, Supplier<EArcStringTable> stringTableSupplier,
+			int size, boolean obfuscated) {
+		this.fileChannelSupplier = fileChannelSupplier;
+		this.stringTableSupplier = stringTableSupplier;
+		this.obfuscated = obfuscated;
+		this.transientKeys = new long[size];
+		this.extractedSizes = new int[size];
+		this.lengths = new int[size];
+		this.types = new int[size];
+		this.dataUrlLocations = new int[size];
+		this.dataLocations = new long[size];
+		this.pathLocations = new int[size];
+		this.deflateKeys = new short[size];
+		this.compressions = new byte[size];
+	}
+
+	/**
+	 * Decodes {@code count} consecutive metadata records from {@code metadata}
+	 * (starting at its current position). Rows that cannot be decoded because the
+	 * buffer is too short have all of their values set to {@code -1}.
+	 *
+	 * @param fileChannelSupplier
+	 *            the supplier of the archive's channel
+	 * @param metadata
+	 *            the buffer containing the metadata records, may be {@code null}
+	 * @param count
+	 *            the number of records to decode
+	 * @param keyGen
+	 *            the archive's key generator if the archive is obfuscated,
+	 *            otherwise {@code null}
+	 * @return a new table with {@code count} rows
+	 */
+	public static EArcEntryTable decode(Supplier<FileChannel> fileChannelSupplier, ByteBuffer metadata, int count,
+			KeyGen keyGen) {
+		return decode(fileChannelSupplier, null, metadata, count, keyGen);
+	}
+
+	/**
+	 * The same as {@link #decode(Supplier, ByteBuffer, int, KeyGen)} but data urls
+	 * and file paths will be looked up in the {@link EArcStringTable} given by
+	 * {@code stringTableSupplier} (which is not invoked until a string is first
+	 * needed)
+	 *
+	 * @param fileChannelSupplier
+	 *            the supplier of the archive's channel
+	 * @param stringTableSupplier
+	 *            the supplier of the archive's string table, may be {@code null}
+	 * @param metadata
+	 *            the buffer containing the metadata records, may be {@code null}
+	 * @param count
+	 *            the number of records to decode
+	 * @param keyGen
+	 *            the archive's key generator if the archive is obfuscated,
+	 *            otherwise {@code null}
+	 * @return a new table with {@code count} rows
+	 */
+	public static EArcEntryTable decode(Supplier<FileChannel> fileChannelSupplier,
+			Supplier<EArcStringTable> stringTableSupplier, ByteBuffer metadata, int count, KeyGen keyGen) {
+		EArcEntryTable table = new EArcEntryTable(fileChannelSupplier, stringTableSupplier, Math.max(count, 0),
+				keyGen != null);
+		int decodable = metadata != null ? Math.min(table.size(), metadata.remaining() / EArcEntry.METADATA_RECORD_SIZE)
+				: 0;
+		for (int row = 0; row < decodable; row++) {
+			table.readRow(row, metadata);
+		}
+		if (keyGen != null) {
+			table.unlock(decodable, keyGen);
+		}
+		for (int row = decodable; row < table.size(); row++) {
+			table.clearRow(row);
+		}
+		return table;
+	}
+
+	/**
+	 * 
+	 * @return the number of bytes {@link #writeColumns(ByteBuffer)} will write
+	 */
+	int getColumnsSize() {
+		int rowSize = Long.BYTES + Integer.BYTES + Integer.BYTES + Integer.BYTES + Integer.BYTES + Long.BYTES
+				+ Integer.BYTES + Short.BYTES + Byte.BYTES;
+		return Integer.BYTES + Byte.BYTES + (rowSize * size());
+	}
+
+	/**
+	 * Writes every (already decoded) column of this table to {@code dst} so that
+	 * it can be restored with {@link #readColumns(Supplier, Supplier, ByteBuffer)}
+	 * without decoding the metadata table again
+	 *
+	 * @param dst
+	 *            the buffer to write to, which must have at least
+	 *            {@link #getColumnsSize()} bytes remaining
+	 */
+	void writeColumns(ByteBuffer dst) {
+		dst.putInt(size());
+		dst.put((byte) (obfuscated ? 1 : 0));
+		dst.asLongBuffer().put(transientKeys);
+		dst.position(dst.position() + (transientKeys.length * Long.BYTES));
+		putInts(dst, extractedSizes);
+		putInts(dst, lengths);
+		putInts(dst, types);
+		putInts(dst, dataUrlLocations);
+		dst.asLongBuffer().put(dataLocations);
+		dst.position(dst.position() + (dataLocations.length * Long.BYTES));
+		putInts(dst, pathLocations);
+		dst.asShortBuffer().put(deflateKeys);
+		dst.position(dst.position() + (deflateKeys.length * Short.BYTES));
+		dst.put(compressions);
+	}
+
+	private static void putInts(ByteBuffer dst, int[] values) {
+		dst.asIntBuffer().put(values);
+		dst.position(dst.position() + (values.length * Integer.BYTES));
+	}
+
+	private static void getInts(ByteBuffer src, int[] values) {
+		src.asIntBuffer().get(values);
+		src.position(src.position() + (values.length * Integer.BYTES));
+	}
+
+	/**
+	 * Restores a table written by {@link #writeColumns(ByteBuffer)}
+	 *
+	 * @param fileChannelSupplier
+	 *            the supplier of the archive's channel
+	 * @param stringTableSupplier
+	 *            the supplier of the archive's string table, may be {@code null}
+	 * @param src
+	 *            the buffer to read from
+	 * @return the restored table
+	 */
+	static EArcEntryTable readColumns(Supplier<FileChannel> fileChannelSupplier,
+			Supplier<EArcStringTable> stringTableSupplier, ByteBuffer src) {
+		int size = src.getInt();
+		boolean obfuscated = src.get() != 0;
+		EArcEntryTable table = new EArcEntryTable(fileChannelSupplier, stringTableSupplier, size, obfuscated);
+		src.asLongBuffer().get(table.transientKeys);
+		src.position(src.position() + (size * Long.BYTES));
+		getInts(src, table.extractedSizes);
+		getInts(src, table.lengths);
+		getInts(src, table.types);
+		getInts(src, table.dataUrlLocations);
+		src.asLongBuffer().get(table.dataLocations);
+		src.position(src.position() + (size * Long.BYTES));
+		getInts(src, table.pathLocations);
+		src.asShortBuffer().get(table.deflateKeys);
+		src.position(src.position() + (size * Short.BYTES));
+		src.get(table.compressions);
+		return table;
+	}
+
+	private void readRow(int row, ByteBuffer metadata) {
+		transientKeys[row] = metadata.getLong();
+		extractedSizes[row] = metadata.getInt();
+		lengths[row] = metadata.getInt();
+		types[row] = metadata.getInt();
+		dataUrlLocations[row] = metadata.getInt();
+		dataLocations[row] = metadata.getLong();
+		pathLocations[row] = metadata.getInt();
+		metadata.getShort();
+		deflateKeys[row] = metadata.getShort();
+	}
+
+	/**
+	 * Removes the obfuscation from the first {@code count} rows. The unlock keys
+	 * of every row are derived up front by
+	 * {@link KeyGen#deriveUnlockKeys(long[], int, long[], long[])} and then
+	 * applied to the columns in a second loop.
+	 *
+	 * @param count
+	 *            the number of rows that were read
+	 * @param keyGen
+	 *            the archive's key generator
+	 */
+	private void unlock(int count, KeyGen keyGen) {
+		long[] lengthKeys = new long[count];
+		long[] offsetKeys = new long[count];
+		keyGen.deriveUnlockKeys(transientKeys, count, lengthKeys, offsetKeys);
+		for (int row = 0; row < count; row++) {
+			long lengthKey = lengthKeys[row];
+			extractedSizes[row] ^= (int) (lengthKey >> 0x20);
+			lengths[row] ^= (int) lengthKey;
+			dataLocations[row] ^= offsetKeys[row];
+		}
+	}
+
+	private void clearRow(int row) {
+		transientKeys[row] = -1;
+		extractedSizes[row] = -1;
+		lengths[row] = -1;
+		types[row] = -1;
+		dataUrlLocations[row] = -1;
+		dataLocations[row] = -1;
+		pathLocations[row] = -1;
+		deflateKeys[row] = 0;
+	}
+
+	/**
+	 *
+	 * @return the number of rows (entries) in this table
+	 */
+	public int size() {
+		return transientKeys.length;
+	}
+
+	public boolean isObfuscated() {
+		return obfuscated;
+	}
+
+	FileChannel getFileChannel() {
+		FileChannel result = null;
+		if (fileChannelSupplier != null) {
+			result = fileChannelSupplier.get();
+		}
+		return result;
+	}
+
+	/**
+	 * 
+	 * @return the string table of the archive or {@code null} if this table was
+	 *         not created with one
+	 */
+	EArcStringTable getStringTable() {
+		if (stringTable == null && stringTableSupplier != null) {
+			stringTable = stringTableSupplier.get();
+		}
+		return stringTable;
+	}
+
+	/**
+	 * 
+	 * @return the string table of the archive only if it has already been loaded
+	 */
+	EArcStringTable peekStringTable() {
+		return stringTable;
+	}
+
+	/**
+	 * 
+	 * @return the mapped data table of the archive or {@code null} if it is not
+	 *         available
+	 */
+	EArcDataRegion getDataRegion() {
+		return dataRegionSupplier != null ? dataRegionSupplier.get() : null;
+	}
+
+	void setDataRegionSupplier(Supplier<EArcDataRegion> dataRegionSupplier) {
+		this.dataRegionSupplier = dataRegionSupplier;
+	}
+
+	/**
+	 * Works out the compression of every row that has not been classified yet
+	 * from the first {@link EArcEntry#COMPRESSION_HEADER_SIZE} bytes of its data.
+	 * The header is taken from {@code region} when it is within it and is
+	 * otherwise read from the archive's channel. Rows whose header cannot be read
+	 * are left to be classified when they are first used.
+	 *
+	 * @param region
+	 *            the mapped data table of the archive, may be {@code null}
+	 * @return the number of rows that were classified
+	 */
+	int classifyCompression(EArcDataRegion region) {
+		int classified = 0;
+		ByteBuffer scratch = null;
+		for (int row = 0; row < size(); row++) {
+			if (compressions[row] == COMPRESSION_UNKNOWN && dataLocations[row] > -1) {
+				ByteBuffer header = region != null
+						? region.slice(dataLocations[row], EArcEntry.COMPRESSION_HEADER_SIZE)
+						: null;
+				if (header == null) {
+					if (scratch == null) {
+						scratch = ByteBuffer.allocate(EArcEntry.COMPRESSION_HEADER_SIZE).order(ByteOrder.nativeOrder());
+					}
+					header = readCompressionHeader(dataLocations[row], scratch);
+				}
+				if (header != null) {
+					compressions[row] = EArcEntry.classifyCompression(header, deflateKeys[row]);
+					classified++;
+				}
+			}
+		}
+		return classified;
+	}
+
+	private ByteBuffer readCompressionHeader(long dataLocation, ByteBuffer scratch) {
+		FileChannel fc = getFileChannel();
+		if (fc == null) {
+			return null;
+		}
+		scratch.clear();
+		try {
+			PositionalReads.readFullyAndFlip(fc, scratch, dataLocation);
+		} catch (IOException e) {
+			LOG.error(e.getLocalizedMessage(), e);
+			return null;
+		}
+		return scratch;
+	}
+
+	public long getTransientKey(int row) {
+		return transientKeys[row];
+	}
+
+	void setTransientKey(int row, long transientKey) {
+		transientKeys[row] = transientKey;
+	}
+
+	public int getExtractedSize(int row) {
+		return extractedSizes[row];
+	}
+
+	void setExtractedSize(int row, int extractedSize) {
+		extractedSizes[row] = extractedSize;
+	}
+
+	public int getLength(int row) {
+		return lengths[row];
+	}
+
+	void setLength(int row, int length) {
+		lengths[row] = length;
+	}
+
+	public int getType(int row) {
+		return types[row];
+	}
+
+	void setType(int row, int type) {
+		types[row] = type;
+	}
+
+	public int getDataUrlLocation(int row) {
+		return dataUrlLocations[row];
+	}
+
+	void setDataUrlLocation(int row, int dataUrlLocation) {
+		dataUrlLocations[row] = dataUrlLocation;
+	}
+
+	public long getDataLocation(int row) {
+		return dataLocations[row];
+	}
+
+	void setDataLocation(int row, long dataLocation) {
+		dataLocations[row] = dataLocation;
+	}
+
+	public int getPathLocation(int row) {
+		return pathLocations[row];
+	}
+
+	void setPathLocation(int row, int pathLocation) {
+		pathLocations[row] = pathLocation;
+	}
+
+	public short getDeflateKey(int row) {
+		return deflateKeys[row];
+	}
+
+	byte getCompression(int row) {
+		return compressions[row];
+	}
+
+	void setCompression(int row, byte compression) {
+		compressions[row] = compression;
+	}
+
+	String getCachedDataUrl(int row) {
+		return dataUrls != null ? dataUrls[row] : null;
+	}
+
+	void setCachedDataUrl(int row, String dataUrl) {
+		if (dataUrls == null) {
+			dataUrls = new String[size()];
+		}
+		dataUrls[row] = dataUrl;
+	}
+
+	String getCachedFilePath(int row) {
+		return filePaths != null ? filePaths[row] : null;
+	}
+
+	void setCachedFilePath(int row, String filePath) {
+		if (filePaths == null) {
+			filePaths = new String[size()];
+		}
+		filePaths[row] = filePath;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + Arrays.hashCode(dataLocations);
+		result = prime * result + Arrays.hashCode(dataUrlLocations);
+		result = prime * result + Arrays.hashCode(extractedSizes);
+		result = prime * result + Arrays.hashCode(lengths);
+		result = prime * result + Arrays.hashCode(pathLocations);
+		result = prime * result + Arrays.hashCode(transientKeys);
+		result = prime * result + Arrays.hashCode(types);
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null) {
+			return false;
+		}
+		if (!(obj instanceof EArcEntryTable)) {
+			return false;
+		}
+		EArcEntryTable other = (EArcEntryTable) obj;
+		if (!Arrays.equals(dataLocations, other.dataLocations)) {
+			return false;
+		}
+		if (!Arrays.equals(dataUrlLocations, other.dataUrlLocations)) {
+			return false;
+		}
+		if (!Arrays.equals(extractedSizes, other.extractedSizes)) {
+			return false;
+		}
+		if (!Arrays.equals(lengths, other.lengths)) {
+			return false;
+		}
+		if (!Arrays.equals(pathLocations, other.pathLocations)) {
+			return false;
+		}
+		if (!Arrays.equals(transientKeys, other.transientKeys)) {
+			return false;
+		}
+		if (!Arrays.equals(types, other.types)) {
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("EArcEntryTable [size=");
+		builder.append(size());
+		builder.append(", obfuscated=");
+		builder.append(obfuscated);
+		builder.append("]");
+		return builder.toString();
+	}
+
+}
@@ -4,10 +4,14 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.function.Supplier;
+import java.util.zip.CRC32;
 
 import com.ratzlaff.james.arc.earc.obfus.KeyGen;
+import com.ratzlaff.james.util.io.MappedWindows;
+import com.ratzlaff.james.util.io.PositionalReads;
 
 /**
  * 
@@ -31,8 +35,13 @@ public class EArcHeader {
 	// 0x24 ? int (always has the value 0x80)
 	// 0x28 obfuscation key (64-bits)
 	private static final EArcEntry[] EMPTY_FILEPOINTERS = new EArcEntry[0];
+	/**
+	 * The number of bytes in the header of an earc
+	 */
+	public static final int HEADER_SIZE = 64;
 
 	private final transient Supplier<FileChannel> fileChannelSupplier;
+	private final transient MappedWindows windows;
 	private final int magic;
 	private final int version;
 	private final boolean obfuscated;
@@ -45,10 +54,52 @@ public class EArcHeader {
 	private final boolean unknownBoolean;
 	private final long fileSize;
 	private final long obfuscationKey;
+	private final long headerChecksum;
+	private transient EArcIndexCache indexCache;
+	private transient Path indexedPath;
+	private EArcEntryTable entryTable;
+	private EArcStringTable stringTable;
+	private EArcDataRegion dataRegion;
+	private boolean dataRegionMapped;
 	private EArcEntry[] entries;
 
 	public EArcHeader(Supplier<FileChannel> fileChannelSupplier) {
+		this(fileChannelSupplier, null);
+	}
+
+	/**
+	 * 
+	 * @param fileChannelSupplier
+	 *            the supplier of the archive's channel
+	 * @param windows
+	 *            the mapping of the entire archive, if not {@code null} the header,
+	 *            metadata, string tables and data are all read from it rather than
+	 *            from the channel
+	 */
+	public EArcHeader(Supplier<FileChannel> fileChannelSupplier, MappedWindows windows) {
+		this(fileChannelSupplier, windows, readHeaderBytes(fileChannelSupplier, windows),
+				sizeOf(fileChannelSupplier, windows));
+	}
+
+	/**
+	 * Creates a header from bytes that have already been read, so that checking
+	 * the magic number and parsing the header only take one read
+	 * 
+	 * @param fileChannelSupplier
+	 *            the supplier of the archive's channel
+	 * @param windows
+	 *            the mapping of the entire archive, may be {@code null}
+	 * @param headerBytes
+	 *            the first {@link #HEADER_SIZE} bytes of the archive (from its
+	 *            position to its limit)
+	 * @param fileSize
+	 *            the size of the archive
+	 */
+	public EArcHeader(Supplier<FileChannel> fileChannelSupplier, MappedWindows windows, ByteBuffer headerBytes,
+			long fileSize) {
+		long parseStart = EArcMetrics.DEFAULT_INSTANCE.getHeaderParse().start();
 		this.fileChannelSupplier = fileChannelSupplier;
+		this.windows = windows;
 
 		int magicToUse = -1;
 		int versionToUse = -1;
@@ -58,38 +109,29 @@ public class EArcHeader {
 		int urlTableLocationToUse = -1;
 		int pathTableLocationToUse = -1;
 		int dataTableLocationToUse = -1;
-		long fileSizeToUse = -1;
+		long fileSizeToUse = fileSize;
 		boolean unknownBooleanToUse = false;
 		boolean obfuscationTruthToUse = false;
 		long obfuscationkeyToUse = 0;
-		FileChannel fc = getFileChannel();
-		if (fc != null) {
-			ByteBuffer bb = ByteBuffer.allocateDirect(64).order(ByteOrder.nativeOrder());
-			try {
-				fc.position(0);
-				fileSizeToUse = fc.size();
-				if (fileSizeToUse > 40) {
-					fc.read(bb);
-					bb.flip();
-					magicToUse = bb.getInt();
-					versionToUse = bb.getInt();
-					fileCountToUse = bb.getInt();
-					minDataBlockSizeToUse = bb.getInt();
-					metaDataStartToUse = bb.getInt();
-					urlTableLocationToUse = bb.getInt();
-					pathTableLocationToUse = bb.getInt();
-					dataTableLocationToUse = bb.getInt();
-					unknownBooleanToUse = bb.getInt() != 0;
-					obfuscationTruthToUse=(versionToUse&0x80_00_00_00)!=0;
-					if(obfuscationTruthToUse) {
-						bb.getInt();
-						obfuscationkeyToUse=bb.getLong();
-					}
-					
-				}
-
-			} catch (IOException ioe) {
-				ioe.printStackTrace();
+		long headerChecksumToUse = 0;
+		if (headerBytes != null && fileSizeToUse > 40) {
+			ByteBuffer bb = headerBytes.duplicate().order(ByteOrder.nativeOrder());
+			CRC32 crc = new CRC32();
+			crc.update(bb.duplicate());
+			headerChecksumToUse = crc.getValue();
+			magicToUse = bb.getInt();
+			versionToUse = bb.getInt();
+			fileCountToUse = bb.getInt();
+			minDataBlockSizeToUse = bb.getInt();
+			metaDataStartToUse = bb.getInt();
+			urlTableLocationToUse = bb.getInt();
+			pathTableLocationToUse = bb.getInt();
+			dataTableLocationToUse = bb.getInt();
+			unknownBooleanToUse = bb.getInt() != 0;
+			obfuscationTruthToUse=(versionToUse&0x80_00_00_00)!=0;
+			if(obfuscationTruthToUse) {
+				bb.getInt();
+				obfuscationkeyToUse=bb.getLong();
 			}
 		}
 
@@ -105,7 +147,52 @@ public class EArcHeader {
 		this.unknownBoolean = unknownBooleanToUse;
 		this.fileSize = fileSizeToUse;
 		this.obfuscationKey=obfuscationkeyToUse;
+		this.headerChecksum=headerChecksumToUse;
+		EArcMetrics.DEFAULT_INSTANCE.getHeaderParse().record(parseStart);
+
+	}
+
+	/**
+	 * 
+	 * @return the first {@link #HEADER_SIZE} bytes of the archive, read from
+	 *         {@code windows} if it is not {@code null}, otherwise from the channel
+	 */
+	private static ByteBuffer readHeaderBytes(Supplier<FileChannel> fileChannelSupplier, MappedWindows windows) {
+		ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+		if (windows != null) {
+			windows.read(0, bb);
+			bb.flip();
+		} else {
+			FileChannel fc = fileChannelSupplier != null ? fileChannelSupplier.get() : null;
+			if (fc == null) {
+				return null;
+			}
+			try {
+				PositionalReads.readFullyAndFlip(fc, bb, 0);
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+				return null;
+			}
+		}
+		EArcMetrics.DEFAULT_INSTANCE.getBytesRead().add(bb.remaining());
+		return bb;
+	}
 
+	private static long sizeOf(Supplier<FileChannel> fileChannelSupplier, MappedWindows windows) {
+		long size = -1;
+		if (windows != null) {
+			size = windows.size();
+		} else {
+			FileChannel fc = fileChannelSupplier != null ? fileChannelSupplier.get() : null;
+			if (fc != null) {
+				try {
+					size = fc.size();
+				} catch (IOException ioe) {
+					ioe.printStackTrace();
+				}
+			}
+		}
+		return size;
 	}
 
 	public boolean isObfuscated() {
@@ -120,10 +207,56 @@ public class EArcHeader {
 		return version;
 	}
 
+	/**
+	 * 
+	 * @return a CRC-32 of the raw 64 byte header
+	 */
+	public long getHeaderChecksum() {
+		return headerChecksum;
+	}
+
+	/**
+	 * Has the entry and string tables of this header restored from (and, if they
+	 * are not there or are out of date, saved to) {@code indexCache} the first
+	 * time they are needed
+	 * 
+	 * @param indexCache
+	 *            the cache to use, {@code null} to not use one
+	 * @param archivePath
+	 *            the path of the archive this header was read from
+	 * @return this instance
+	 */
+	public synchronized EArcHeader setIndexCache(EArcIndexCache indexCache, Path archivePath) {
+		this.indexCache = indexCache;
+		this.indexedPath = archivePath;
+		return this;
+	}
+
+	/**
+	 * Used by {@link EArcIndexCache} to hand over tables it has restored
+	 */
+	synchronized void restoreTables(EArcEntryTable entryTable, EArcStringTable stringTable) {
+		this.entryTable = entryTable;
+		this.stringTable = stringTable;
+	}
+
+	/**
+	 * 
+	 * @return the mapping of the entire archive or {@code null} if the archive was
+	 *         not opened in mapped mode
+	 */
+	public MappedWindows getWindows() {
+		return windows;
+	}
+
 	public int getMagic() {
 		return magic;
 	}
 
+	Supplier<FileChannel> getFileChannelSupplier() {
+		return fileChannelSupplier;
+	}
+
 	protected FileChannel getFileChannel() {
 		FileChannel result = this.fileChannelSupplier.get();
 		if (this.fileChannelSupplier != null) {
@@ -206,6 +339,15 @@ public class EArcHeader {
 		return getSizeAsInt()-getDataTableLocation();
 	}
 
+	/**
+	 * 
+	 * @return the size of the data table, which unlike {@link #getDataTableSize()}
+	 *         is not limited to {@link Integer#MAX_VALUE}
+	 */
+	public long getDataTableSizeAsLong() {
+		return size() - getDataTableLocation();
+	}
+
 	public int getSizeAsInt() {
 		long size = size();
 		int intSize = (int)size; 
@@ -304,7 +446,7 @@ public class EArcHeader {
 		return true;
 	}
 
-	private String generateFileMetadataList() {
+	private synchronized String generateFileMetadataList() {
 		String result = null;
 		if (this.entries != null) {
 			String[] asArray = Arrays.stream(this.entries).filter(fmp -> fmp != null)
@@ -360,43 +502,117 @@ public class EArcHeader {
 		}
 	}
 
-	public EArcEntry getEntryAt(int index) {
-		EArcEntry result = getEntryAt(index, null);
-		return result;
-	}
-
-	
-	public EArcEntry getEntryAt(int index, ByteBuffer bb) {
-		return getEntryAt(index, bb, null);
-	}
-	public EArcEntry getEntryAt(int index, ByteBuffer bb, KeyGen kg) {
+	/**
+	 * 
+	 * @param index
+	 *            the index of the entry
+	 * @return a view of the entry's row in {@link #getEntryTable()}, decoding
+	 *         (and deobfuscating) the whole metadata table first if it has not
+	 *         been yet
+	 */
+	public synchronized EArcEntry getEntryAt(int index) {
 		initializeEntriesArray();
 		EArcEntry result = null;
 		if (entries != null) {
+			EArcEntryTable table = getEntryTable();
 			result = entries[index];
-			if (result == null) {
-				try {
-					fileChannelSupplier.get().position(getMetadataLocation() + (40 * index));
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-				result = new EArcEntry(fileChannelSupplier, bb, kg);
+			if (result == null || result.getTable() != table) {
+				result = new EArcEntry(table, index);
 				entries[index] = result;
 			}
 		}
 		return result;
 	}
 
-	public EArcEntry[] getEntries() {
+	/**
+	 * 
+	 * @param index
+	 *            the index of the entry
+	 * @param bb
+	 *            no longer used, entries are always views of
+	 *            {@link #getEntryTable()}
+	 * @return the same as {@link #getEntryAt(int)}
+	 */
+	public EArcEntry getEntryAt(int index, ByteBuffer bb) {
+		return getEntryAt(index);
+	}
+
+	/**
+	 * 
+	 * @return the decoded metadata table of this archive, reading it if it has not
+	 *         yet been read
+	 */
+	public synchronized EArcEntryTable getEntryTable() {
+		if (entryTable == null) {
+			boolean restored = indexCache != null && indexCache.restore(indexedPath, this);
+			if (restored) {
+				EArcMetrics.DEFAULT_INSTANCE.getIndexCacheHits().increment();
+			} else {
+				if (indexCache != null) {
+					EArcMetrics.DEFAULT_INSTANCE.getIndexCacheMisses().increment();
+				}
+				long decodeStart = EArcMetrics.DEFAULT_INSTANCE.getMetadataDecode().start();
+				KeyGen kg = isObfuscated()?new KeyGen(getObfuscationKey()):null;
+				ByteBuffer metadata = readMetadataTable();
+				entryTable = EArcEntryTable.decode(fileChannelSupplier, this::getStringTable, metadata,
+						Math.max(getFileCount(), 0), kg);
+				EArcMetrics.DEFAULT_INSTANCE.getMetadataDecode().record(decodeStart);
+			}
+			entryTable.setDataRegionSupplier(this::getDataRegion);
+			int classified = entryTable.classifyCompression(getDataRegion());
+			if (indexCache != null && (!restored || classified > 0)) {
+				indexCache.save(indexedPath, this);
+			}
+		}
+		return entryTable;
+	}
+
+	/**
+	 * 
+	 * @return the url and file path tables of this archive (everything from
+	 *         {@link #getUrlTableLocation()} up to {@link #getDataTableLocation()}),
+	 *         reading them with a single read if they have not yet been read
+	 */
+	public synchronized EArcStringTable getStringTable() {
+		if (stringTable == null) {
+			if (windows != null) {
+				stringTable = EArcStringTable.read(windows, getUrlTableLocation(), getDataTableLocation());
+			} else {
+				stringTable = EArcStringTable.read(getFileChannel(), getUrlTableLocation(), getDataTableLocation());
+			}
+			EArcMetrics.DEFAULT_INSTANCE.getBytesRead().add(stringTable.getData().length);
+		}
+		return stringTable;
+	}
+
+	/**
+	 * 
+	 * @return the memory mapped data table of this archive, mapping it the first
+	 *         time this is called, or {@code null} if it could not be mapped
+	 */
+	public synchronized EArcDataRegion getDataRegion() {
+		if (!dataRegionMapped) {
+			dataRegionMapped = true;
+			if (windows != null) {
+				dataRegion = EArcDataRegion.of(windows, getDataTableLocation());
+			} else {
+				dataRegion = EArcDataRegion.map(getFileChannel(), getDataTableLocation());
+			}
+		}
+		return dataRegion;
+	}
+
+	public synchronized EArcEntry[] getEntries() {
 		EArcEntry[] result = EMPTY_FILEPOINTERS;
 		if (entries == null) {
 			initializeEntriesArray();
 		}
 		if (entries != null) {
-			KeyGen kg = isObfuscated()?new KeyGen(getObfuscationKey()):null;
-			ByteBuffer bb = ByteBuffer.allocateDirect(40).order(ByteOrder.nativeOrder());
-			for (int i = 0; i < getFileCount(); i++) {
-				getEntryAt(i, bb, kg);
+			EArcEntryTable table = getEntryTable();
+			for (int i = 0; i < entries.length; i++) {
+				if (entries[i] == null || entries[i].getTable() != table) {
+					entries[i] = new EArcEntry(table, i);
+				}
 			}
 			result = entries;
 		}
@@ -404,7 +620,37 @@ public class EArcHeader {
 
 	}
 
-	public void setEntries(EArcEntry[] metadataPointers) {
+	/**
+	 * Reads the entire metadata table (from {@link #getMetadataLocation()} up to
+	 * {@link #getUrlTableLocation()}) with a single read so that every entry can be
+	 * decoded from the same buffer.
+	 * 
+	 * @return a flipped buffer containing the metadata table
+	 */
+	private ByteBuffer readMetadataTable() {
+		int tableSize = Math.max(getMetadataSize(), getFileCount() * EArcEntry.METADATA_RECORD_SIZE);
+		if (windows != null) {
+			ByteBuffer mapped = windows.slice(getMetadataLocation(), Math.max(tableSize, 0));
+			if (mapped != null) {
+				EArcMetrics.DEFAULT_INSTANCE.getBytesRead().add(mapped.remaining());
+				return mapped;
+			}
+		}
+		ByteBuffer bb = ByteBuffer.allocateDirect(Math.max(tableSize, 0)).order(ByteOrder.nativeOrder());
+		FileChannel fc = getFileChannel();
+		if (fc != null) {
+			try {
+				PositionalReads.readFully(fc, bb, getMetadataLocation());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		bb.flip();
+		EArcMetrics.DEFAULT_INSTANCE.getBytesRead().add(bb.remaining());
+		return bb;
+	}
+
+	public synchronized void setEntries(EArcEntry[] metadataPointers) {
 		this.entries = metadataPointers;
 	}
 	
@@ -0,0 +1,232 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ratzlaff.james.arc.earc.ui.Configuration;
+
+/**
+ * A persistent cache of decoded {@link EArcEntryTable entry tables} and
+ * {@link EArcStringTable string tables}, one small binary file per archive, so
+ * that an archive that has been opened before does not need its metadata
+ * decoded (or its string tables read) again. Each file records the archive's
+ * path, size, last modified time and {@link EArcHeader#getHeaderChecksum()
+ * header checksum}; if any of them no longer match the archive the file is
+ * ignored and rewritten.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class EArcIndexCache {
+	private static final transient Logger LOG = LoggerFactory.getLogger(EArcIndexCache.class);
+
+	/**
+	 * The name of the folder (within {@link Configuration#getConfigFolder()}) the
+	 * default cache is kept in
+	 */
+	public static final String INDEX_FOLDER_NAME = "index";
+	public static final String INDEX_FILE_EXTENSION = ".idx";
+	/**
+	 * Whether {@link com.ratzlaff.james.arc.Earchive}s use
+	 * {@link #DEFAULT_INSTANCE} to begin with. Off by default, since it writes a
+	 * file for every archive opened; see {@link #setEnabled(boolean)}.
+	 */
+	public static final boolean ENABLED = Configuration.get().getOrDefault(EArcIndexCache.class, "ENABLED",
+			Boolean::valueOf, Boolean.FALSE);
+	/**
+	 * The cache kept in the application's configuration folder
+	 */
+	public static final EArcIndexCache DEFAULT_INSTANCE = new EArcIndexCache(
+			Configuration.getConfigFolder().resolve(INDEX_FOLDER_NAME)).setEnabled(ENABLED);
+
+	private static final int MAGIC = 0x58444945;// ASCII VALUE:EIDX
+	private static final int FORMAT_VERSION = 1;
+
+	private final Path folder;
+	private volatile boolean enabled = true;
+
+	/**
+	 *
+	 * @param folder
+	 *            the folder to keep index files in, created when the first one is
+	 *            saved
+	 */
+	public EArcIndexCache(Path folder) {
+		this.folder = folder;
+	}
+
+	public Path getFolder() {
+		return folder;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 *
+	 * @param enabled
+	 *            whether archives opened from now on should use this cache
+	 * @return this instance
+	 */
+	public EArcIndexCache setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		return this;
+	}
+
+	/**
+	 *
+	 * @param archivePath
+	 *            the path of an archive
+	 * @return the path of the index file for {@code archivePath}
+	 */
+	public Path getIndexPath(Path archivePath) {
+		String key = archivePath.toAbsolutePath().normalize().toString();
+		return folder.resolve(UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + INDEX_FILE_EXTENSION);
+	}
+
+	/**
+	 * Restores the entry and string tables of {@code header} from this cache
+	 *
+	 * @param archivePath
+	 *            the path of the archive {@code header} was read from
+	 * @param header
+	 *            the header to restore the tables of
+	 * @return {@code true} if there was an up to date index for the archive
+	 */
+	boolean restore(Path archivePath, EArcHeader header) {
+		if (archivePath == null) {
+			return false;
+		}
+		Path indexPath = getIndexPath(archivePath);
+		if (!Files.isRegularFile(indexPath)) {
+			return false;
+		}
+		boolean restored = false;
+		try {
+			ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(indexPath)).order(ByteOrder.nativeOrder());
+			if (isCurrent(bb, archivePath, header)) {
+				EArcEntryTable entryTable = EArcEntryTable.readColumns(header.getFileChannelSupplier(),
+						header::getStringTable, bb);
+				long stringTableLocation = bb.getLong();
+				byte[] strings = new byte[bb.getInt()];
+				bb.get(strings);
+				if (entryTable.size() == Math.max(header.getFileCount(), 0)) {
+					header.restoreTables(entryTable, new EArcStringTable(stringTableLocation, strings));
+					restored = true;
+				}
+			} else {
+				LOG.debug("The index of {} is out of date", archivePath);
+			}
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Could not read the index of {} from {}", archivePath, indexPath, e);
+		}
+		return restored;
+	}
+
+	private static boolean isCurrent(ByteBuffer bb, Path archivePath, EArcHeader header) throws IOException {
+		if (bb.remaining() < (Integer.BYTES << 1) || bb.getInt() != MAGIC || bb.getInt() != FORMAT_VERSION) {
+			return false;
+		}
+		BasicFileAttributes attributes = Files.readAttributes(archivePath, BasicFileAttributes.class);
+		long size = bb.getLong();
+		long lastModified = bb.getLong();
+		long headerChecksum = bb.getLong();
+		byte[] pathBytes = new byte[bb.getInt()];
+		bb.get(pathBytes);
+		String path = new String(pathBytes, StandardCharsets.UTF_8);
+		return size == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis()
+				&& headerChecksum == header.getHeaderChecksum()
+				&& path.equals(archivePath.toAbsolutePath().normalize().toString());
+	}
+
+	/**
+	 * Saves the entry and string tables of {@code header} to this cache, replacing
+	 * any index already there
+	 *
+	 * @param archivePath
+	 *            the path of the archive {@code header} was read from
+	 * @param header
+	 *            the header to save the tables of
+	 */
+	void save(Path archivePath, EArcHeader header) {
+		if (archivePath == null) {
+			return;
+		}
+		Path indexPath = getIndexPath(archivePath);
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(archivePath, BasicFileAttributes.class);
+			EArcEntryTable entryTable = header.getEntryTable();
+			EArcStringTable stringTable = header.getStringTable();
+			byte[] pathBytes = archivePath.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8);
+			byte[] strings = stringTable.getData();
+			int size = (Integer.BYTES << 1) + (Long.BYTES * 3) + Integer.BYTES + pathBytes.length
+					+ entryTable.getColumnsSize() + Long.BYTES + Integer.BYTES + strings.length;
+			ByteBuffer bb = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+			bb.putInt(MAGIC);
+			bb.putInt(FORMAT_VERSION);
+			bb.putLong(attributes.size());
+			bb.putLong(attributes.lastModifiedTime().toMillis());
+			bb.putLong(header.getHeaderChecksum());
+			bb.putInt(pathBytes.length);
+			bb.put(pathBytes);
+			entryTable.writeColumns(bb);
+			bb.putLong(stringTable.getLocation());
+			bb.putInt(strings.length);
+			bb.put(strings);
+
+			Files.createDirectories(folder);
+			Path temp = Files.createTempFile(folder, indexPath.getFileName().toString(), ".tmp");
+			try {
+				Files.write(temp, bb.array());
+				try {
+					Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Could not save the index of {} to {}", archivePath, indexPath, e);
+		}
+	}
+
+	/**
+	 * Deletes the index of {@code archivePath}, if there is one
+	 *
+	 * @param archivePath
+	 *            the path of an archive
+	 */
+	public void invalidate(Path archivePath) {
+		try {
+			Files.deleteIfExists(getIndexPath(archivePath));
+		} catch (IOException e) {
+			LOG.error(e.getLocalizedMessage(), e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("EArcIndexCache [folder=");
+		builder.append(folder);
+		builder.append("]");
+		return builder.toString();
+	}
+
+}
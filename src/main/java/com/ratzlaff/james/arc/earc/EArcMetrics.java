@@ -0,0 +1,413 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.ratzlaff.james.arc.ArchiveHandlePool;
+import com.ratzlaff.james.arc.earc.ui.Configuration;
+
+/**
+ * Counters and timers for the parts of opening and extracting archives that
+ * take the most time. Everything is recorded into {@link LongAdder}s so that
+ * the many threads of a {@link ParallelExtractor} do not contend with each
+ * other. The hit counts of {@link InflaterPool#DEFAULT_INSTANCE} and
+ * {@link ArchiveHandlePool#DEFAULT_INSTANCE} are read from the pools themselves
+ * when the metrics are {@link #format(Format) formatted}.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class EArcMetrics {
+	/**
+	 * Whether {@link #DEFAULT_INSTANCE} records anything to begin with. Off by
+	 * default so that nothing pays for reading the clock unless the metrics are
+	 * wanted; see {@link #setEnabled(boolean)}.
+	 */
+	public static final boolean ENABLED = Configuration.get().getOrDefault(EArcMetrics.class, "ENABLED",
+			Boolean::valueOf, Boolean.FALSE);
+	/**
+	 * The metrics recorded by the extractor
+	 */
+	public static final EArcMetrics DEFAULT_INSTANCE = new EArcMetrics(ENABLED);
+
+	private static final double NANOS_PER_SECOND = 1_000_000_000d;
+
+	/**
+	 * How {@link #format(Format)} writes the metrics
+	 */
+	public static enum Format {
+		/**
+		 * A single JSON object keyed by metric name. Timers are objects with a
+		 * count, total and maximum in nanoseconds.
+		 */
+		JSON,
+		/**
+		 * The Prometheus text exposition format. Timers are summaries in seconds.
+		 */
+		PROMETHEUS;
+	}
+
+	/**
+	 * A named value that can be formatted
+	 */
+	public abstract static class Metric {
+		private final String name;
+		private final String help;
+
+		private Metric(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getHelp() {
+			return help;
+		}
+
+		abstract void reset();
+
+		abstract void appendJson(StringBuilder sb);
+
+		abstract void appendPrometheus(StringBuilder sb);
+	}
+
+	/**
+	 * A count that only goes up
+	 */
+	public static class Counter extends Metric {
+		private final LongAdder value = new LongAdder();
+		private final EArcMetrics owner;
+
+		private Counter(String name, String help, EArcMetrics owner) {
+			super(name, help);
+			this.owner = owner;
+		}
+
+		public void increment() {
+			if (owner.enabled) {
+				value.increment();
+			}
+		}
+
+		public void add(long amount) {
+			if (owner.enabled) {
+				value.add(amount);
+			}
+		}
+
+		public long get() {
+			return value.sum();
+		}
+
+		@Override
+		void reset() {
+			value.reset();
+		}
+
+		@Override
+		void appendJson(StringBuilder sb) {
+			sb.append(get());
+		}
+
+		@Override
+		void appendPrometheus(StringBuilder sb) {
+			sb.append("# TYPE ").append(getName()).append(" counter\n");
+			sb.append(getName()).append(' ').append(get()).append('\n');
+		}
+	}
+
+	/**
+	 * A count that is kept somewhere else (such as the hits of a pool)
+	 */
+	public static class ExternalCounter extends Metric {
+		private final LongSupplier value;
+
+		private ExternalCounter(String name, String help, LongSupplier value) {
+			super(name, help);
+			this.value = value;
+		}
+
+		public long get() {
+			return value.getAsLong();
+		}
+
+		@Override
+		void reset() {
+		}
+
+		@Override
+		void appendJson(StringBuilder sb) {
+			sb.append(get());
+		}
+
+		@Override
+		void appendPrometheus(StringBuilder sb) {
+			sb.append("# TYPE ").append(getName()).append(" counter\n");
+			sb.append(getName()).append(' ').append(get()).append('\n');
+		}
+	}
+
+	/**
+	 * The number, total and longest of some timed operation
+	 */
+	public static class Timer extends Metric {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0l);
+		private final EArcMetrics owner;
+
+		private Timer(String name, String help, EArcMetrics owner) {
+			super(name, help);
+			this.owner = owner;
+		}
+
+		/**
+		 *
+		 * @return the value to hand to {@link #record(long)} once the operation is
+		 *         done, or {@code 0} if this timer is disabled (in which case the
+		 *         clock is not read)
+		 */
+		public long start() {
+			return owner.enabled ? System.nanoTime() : 0l;
+		}
+
+		/**
+		 *
+		 * @param start
+		 *            the value {@link #start()} returned when the operation began,
+		 *            nothing is recorded if it was {@code 0} (the timer was
+		 *            disabled when the operation began)
+		 */
+		public void record(long start) {
+			if (owner.enabled && start != 0l) {
+				recordNanos(System.nanoTime() - start);
+			}
+		}
+
+		public void recordNanos(long nanos) {
+			if (owner.enabled) {
+				count.increment();
+				totalNanos.add(nanos);
+				maxNanos.accumulate(nanos);
+			}
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.sum();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		@Override
+		void reset() {
+			count.reset();
+			totalNanos.reset();
+			maxNanos.reset();
+		}
+
+		@Override
+		void appendJson(StringBuilder sb) {
+			sb.append("{\"count\":").append(getCount());
+			sb.append(",\"totalNanos\":").append(getTotalNanos());
+			sb.append(",\"maxNanos\":").append(getMaxNanos()).append('}');
+		}
+
+		@Override
+		void appendPrometheus(StringBuilder sb) {
+			sb.append("# TYPE ").append(getName()).append(" summary\n");
+			sb.append(getName()).append("_count ").append(getCount()).append('\n');
+			sb.append(getName()).append("_sum ").append(seconds(getTotalNanos())).append('\n');
+			sb.append("# HELP ").append(getName()).append("_max The longest ").append(lowerFirst(getHelp()))
+					.append('\n');
+			sb.append("# TYPE ").append(getName()).append("_max gauge\n");
+			sb.append(getName()).append("_max ").append(seconds(getMaxNanos())).append('\n');
+		}
+
+		private static String seconds(long nanos) {
+			return String.format(Locale.ROOT, "%.9f", nanos / NANOS_PER_SECOND);
+		}
+
+		private static String lowerFirst(String str) {
+			return str.isEmpty() ? str : Character.toLowerCase(str.charAt(0)) + str.substring(1);
+		}
+	}
+
+	private volatile boolean enabled;
+	private final List<Metric> metrics = new ArrayList<Metric>();
+
+	private final Counter archivesOpened;
+	private final Timer headerParse;
+	private final Timer metadataDecode;
+	private final Counter indexCacheHits;
+	private final Counter indexCacheMisses;
+	private final Counter bytesRead;
+	private final Counter bytesInflated;
+	private final Timer segmentInflate;
+	private final Counter bytesWritten;
+	private final Timer outputWrite;
+
+	/**
+	 *
+	 * @param enabled
+	 *            if {@code false} nothing is recorded and the clock is never read
+	 *            until {@link #setEnabled(boolean)} turns recording on
+	 */
+	public EArcMetrics(boolean enabled) {
+		this.enabled = enabled;
+		archivesOpened = register(new Counter("earc_archives_opened_total", "Archives opened", this));
+		headerParse = register(new Timer("earc_header_parse_seconds", "Time spent parsing headers",
+				this));
+		metadataDecode = register(new Timer("earc_metadata_decode_seconds",
+				"Time spent reading and decoding metadata tables", this));
+		indexCacheHits = register(new Counter("earc_index_cache_hits_total",
+				"Metadata tables restored from the index cache", this));
+		indexCacheMisses = register(new Counter("earc_index_cache_misses_total",
+				"Metadata tables that were not in the index cache", this));
+		bytesRead = register(new Counter("earc_bytes_read_total", "Bytes read from archives", this));
+		bytesInflated = register(new Counter("earc_bytes_inflated_total", "Bytes inflated", this));
+		segmentInflate = register(new Timer("earc_segment_inflate_seconds", "Time spent inflating a segment",
+				this));
+		bytesWritten = register(new Counter("earc_bytes_written_total", "Bytes written to extracted files", this));
+		outputWrite = register(new Timer("earc_output_write_seconds", "Time spent writing extracted files", this));
+		register(new ExternalCounter("earc_inflater_pool_hits_total", "Inflaters reused from the pool",
+				InflaterPool.DEFAULT_INSTANCE::getHits));
+		register(new ExternalCounter("earc_inflater_pool_misses_total", "Inflaters that had to be created",
+				InflaterPool.DEFAULT_INSTANCE::getMisses));
+		register(new ExternalCounter("earc_handle_pool_hits_total", "Archive channels reused from the pool",
+				ArchiveHandlePool.DEFAULT_INSTANCE::getHits));
+		register(new ExternalCounter("earc_handle_pool_opens_total", "Archive channels opened",
+				ArchiveHandlePool.DEFAULT_INSTANCE::getOpens));
+		register(new ExternalCounter("earc_handle_pool_evictions_total", "Archive channels closed to make room",
+				ArchiveHandlePool.DEFAULT_INSTANCE::getEvictions));
+	}
+
+	private <T extends Metric> T register(T metric) {
+		metrics.add(metric);
+		return metric;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 *
+	 * @param enabled
+	 *            whether anything should be recorded from now on, what has
+	 *            already been recorded is kept
+	 * @return this instance
+	 */
+	public EArcMetrics setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		return this;
+	}
+
+	/**
+	 *
+	 * @return every metric in the order they are formatted
+	 */
+	public List<Metric> getMetrics() {
+		return Collections.unmodifiableList(metrics);
+	}
+
+	public Counter getArchivesOpened() {
+		return archivesOpened;
+	}
+
+	public Timer getHeaderParse() {
+		return headerParse;
+	}
+
+	public Timer getMetadataDecode() {
+		return metadataDecode;
+	}
+
+	public Counter getIndexCacheHits() {
+		return indexCacheHits;
+	}
+
+	public Counter getIndexCacheMisses() {
+		return indexCacheMisses;
+	}
+
+	public Counter getBytesRead() {
+		return bytesRead;
+	}
+
+	public Counter getBytesInflated() {
+		return bytesInflated;
+	}
+
+	public Timer getSegmentInflate() {
+		return segmentInflate;
+	}
+
+	public Counter getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public Timer getOutputWrite() {
+		return outputWrite;
+	}
+
+	/**
+	 * Sets every counter and timer kept by this instance back to zero (counts
+	 * kept by the pools are left alone)
+	 */
+	public void reset() {
+		for (Metric metric : metrics) {
+			metric.reset();
+		}
+	}
+
+	/**
+	 *
+	 * @param format
+	 *            the format to write in
+	 * @return the current value of every metric
+	 */
+	public String format(Format format) {
+		StringBuilder sb = new StringBuilder();
+		if (Format.PROMETHEUS.equals(format)) {
+			for (Metric metric : metrics) {
+				sb.append("# HELP ").append(metric.getName()).append(' ').append(metric.getHelp()).append('\n');
+				metric.appendPrometheus(sb);
+			}
+		} else {
+			sb.append('{');
+			for (int i = 0; i < metrics.size(); i++) {
+				Metric metric = metrics.get(i);
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append('"').append(metric.getName()).append("\":");
+				metric.appendJson(sb);
+			}
+			sb.append('}');
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return format(Format.JSON);
+	}
+
+}
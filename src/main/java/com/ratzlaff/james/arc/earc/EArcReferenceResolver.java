@@ -0,0 +1,331 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ratzlaff.james.arc.Earchive;
+
+/**
+ * Follows type 5 entries (see {@link EArcEntry#getType()}) to the entries they
+ * refer to. A reference's file path names the archive that holds the real data
+ * (for example {@code $archives/character/nh/common/script/seq/nh_common_script.earc})
+ * and its data url, without the trailing {@code @}, is the data url of the
+ * entry within that archive (for example
+ * {@code data://character/nh/common/script/seq/nh_common_script.ebex@}).
+ * <p>
+ * Target archives are kept open in a bounded, least recently used cache along
+ * with a lookup of their entries by data url, so any number of references into
+ * the same archive share one open and one metadata load. An evicted archive is
+ * {@link Earchive#close() closed}, closing its pooled channel unless something
+ * is reading it; entries already resolved from it open the channel again if
+ * they are read afterwards.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class EArcReferenceResolver implements Closeable {
+	private static final transient Logger LOG = LoggerFactory.getLogger(EArcReferenceResolver.class);
+
+	public static final int REFERENCE_TYPE = 5;
+	public static final String ARCHIVES_PREFIX = "$archives/";
+	public static final String REFERENCE_SUFFIX = "@";
+	/**
+	 * The number of target archives kept open by default
+	 */
+	public static final int DEFAULT_MAX_OPEN_ARCHIVES = 16;
+	/**
+	 * The most references that will be followed from one entry (in case a target
+	 * is itself a reference)
+	 */
+	public static final int MAX_DEPTH = 8;
+
+	private static class Target {
+		private final Earchive earchive;
+		private Map<String, EArcEntry> byDataUrl;
+
+		private Target(Earchive earchive) {
+			this.earchive = earchive;
+		}
+
+		private EArcEntry find(String dataUrl) {
+			if (byDataUrl == null) {
+				EArcEntry[] entries = earchive.getEntries();
+				byDataUrl = new HashMap<String, EArcEntry>(entries.length << 1);
+				for (EArcEntry entry : entries) {
+					String url = entry.getDataUrl();
+					if (url != null) {
+						byDataUrl.putIfAbsent(url, entry);
+					}
+				}
+			}
+			return byDataUrl.get(dataUrl);
+		}
+
+		private void close() {
+			try {
+				earchive.close();
+			} catch (IOException e) {
+				LOG.error(e.getLocalizedMessage(), e);
+			}
+		}
+	}
+
+	private final Path root;
+	private final int maxOpenArchives;
+	private final LinkedHashMap<Path, Target> targets;
+	private long opened;
+
+	/**
+	 *
+	 * @param root
+	 *            the directory {@code $archives/} refers to (the data folder of
+	 *            the install), if {@code null} each reference is looked for in
+	 *            the ancestors of the archive it came from
+	 */
+	public EArcReferenceResolver(Path root) {
+		this(root, DEFAULT_MAX_OPEN_ARCHIVES);
+	}
+
+	/**
+	 *
+	 * @param root
+	 *            the directory {@code $archives/} refers to
+	 * @param maxOpenArchives
+	 *            the number of target archives to keep open
+	 */
+	public EArcReferenceResolver(Path root, int maxOpenArchives) {
+		this.root = root;
+		this.maxOpenArchives = Math.max(1, maxOpenArchives);
+		this.targets = new LinkedHashMap<Path, Target>(this.maxOpenArchives * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Path, Target> eldest) {
+				boolean remove = size() > EArcReferenceResolver.this.maxOpenArchives;
+				if (remove) {
+					eldest.getValue().close();
+				}
+				return remove;
+			}
+		};
+	}
+
+	public Path getRoot() {
+		return root;
+	}
+
+	/**
+	 *
+	 * @param entry
+	 *            the entry to check
+	 * @return {@code true} if {@code entry} is a reference into another archive
+	 */
+	public static boolean isReference(EArcEntry entry) {
+		return entry != null && entry.getType() == REFERENCE_TYPE;
+	}
+
+	/**
+	 *
+	 * @param reference
+	 *            a reference entry
+	 * @return the data url of the entry {@code reference} refers to
+	 */
+	public static String getTargetDataUrl(EArcEntry reference) {
+		String url = reference.getDataUrl();
+		if (url != null && url.endsWith(REFERENCE_SUFFIX)) {
+			url = url.substring(0, url.length() - REFERENCE_SUFFIX.length());
+		}
+		return url;
+	}
+
+	/**
+	 *
+	 * @param reference
+	 *            a reference entry
+	 * @return the path (relative to the data folder) of the archive
+	 *         {@code reference} refers to
+	 */
+	public static String getTargetArchiveName(EArcEntry reference) {
+		String path = reference.getFilePath();
+		if (path != null && path.startsWith(ARCHIVES_PREFIX)) {
+			path = path.substring(ARCHIVES_PREFIX.length());
+		}
+		return path;
+	}
+
+	/**
+	 *
+	 * @param sourceArchive
+	 *            the archive {@code reference} came from, may be {@code null} if
+	 *            this resolver has a {@link #getRoot() root}
+	 * @param reference
+	 *            a reference entry
+	 * @return the archive {@code reference} refers to or {@code null} if it can
+	 *         not be found
+	 */
+	public Path getTargetArchivePath(Path sourceArchive, EArcEntry reference) {
+		String name = getTargetArchiveName(reference);
+		if (name == null || name.isEmpty()) {
+			return null;
+		}
+		if (root != null) {
+			Path candidate = root.resolve(name).normalize();
+			return Files.isRegularFile(candidate) ? candidate : null;
+		}
+		Path dir = sourceArchive != null ? sourceArchive.toAbsolutePath().getParent() : null;
+		while (dir != null) {
+			Path candidate = dir.resolve(name).normalize();
+			if (Files.isRegularFile(candidate)) {
+				return candidate;
+			}
+			dir = dir.getParent();
+		}
+		return null;
+	}
+
+	private Target getTarget(Path archivePath) {
+		Path key = archivePath.toAbsolutePath().normalize();
+		Target target = targets.get(key);
+		if (target == null) {
+			Earchive earchive = Earchive.create(key);
+			if (earchive != null) {
+				target = new Target(earchive);
+				targets.put(key, target);
+				opened++;
+			}
+		}
+		return target;
+	}
+
+	/**
+	 * Follows {@code reference} (and, if what it refers to is also a reference,
+	 * that one too) to the entry holding the real data
+	 *
+	 * @param sourceArchive
+	 *            the archive {@code reference} came from, may be {@code null} if
+	 *            this resolver has a {@link #getRoot() root}
+	 * @param reference
+	 *            the entry to resolve
+	 * @return the entry holding the data, {@code reference} itself if it is not a
+	 *         reference, or {@code null} if it could not be resolved
+	 */
+	public synchronized EArcEntry resolve(Path sourceArchive, EArcEntry reference) {
+		EArcEntry current = reference;
+		Path currentArchive = sourceArchive;
+		for (int depth = 0; isReference(current); depth++) {
+			if (depth >= MAX_DEPTH) {
+				LOG.warn("Gave up resolving {} after {} references", reference.getDataUrl(), depth);
+				return null;
+			}
+			Path targetPath = getTargetArchivePath(currentArchive, current);
+			Target target = targetPath != null ? getTarget(targetPath) : null;
+			EArcEntry next = target != null ? target.find(getTargetDataUrl(current)) : null;
+			if (next == null) {
+				LOG.warn("Could not resolve \"{}\" in \"{}\"", getTargetDataUrl(current),
+						targetPath != null ? targetPath : getTargetArchiveName(current));
+				return null;
+			}
+			current = next;
+			currentArchive = targetPath;
+		}
+		return current;
+	}
+
+	/**
+	 * Resolves many references at once. References are grouped by the archive
+	 * they refer to so that each target archive is opened, and has its metadata
+	 * read, only once no matter how small the cache is.
+	 *
+	 * @param sourceArchive
+	 *            the archive the references came from, may be {@code null} if
+	 *            this resolver has a {@link #getRoot() root}
+	 * @param references
+	 *            the entries to resolve, entries that are not references are
+	 *            ignored
+	 * @return each reference mapped to the entry holding its data, references that
+	 *         could not be resolved are not included
+	 */
+	public synchronized Map<EArcEntry, EArcEntry> resolveAll(Path sourceArchive,
+			Collection<EArcEntry> references) {
+		Map<Path, List<EArcEntry>> byTarget = new LinkedHashMap<Path, List<EArcEntry>>();
+		for (EArcEntry reference : references) {
+			if (isReference(reference)) {
+				Path targetPath = getTargetArchivePath(sourceArchive, reference);
+				if (targetPath != null) {
+					byTarget.computeIfAbsent(targetPath, k -> new ArrayList<EArcEntry>()).add(reference);
+				} else {
+					LOG.warn("Could not find the archive \"{}\"", getTargetArchiveName(reference));
+				}
+			}
+		}
+		Map<EArcEntry, EArcEntry> result = new IdentityHashMap<EArcEntry, EArcEntry>(references.size());
+		for (Map.Entry<Path, List<EArcEntry>> group : byTarget.entrySet()) {
+			for (EArcEntry reference : group.getValue()) {
+				EArcEntry resolved = resolve(sourceArchive, reference);
+				if (resolved != null) {
+					result.put(reference, resolved);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 * @return the number of target archives that have been opened (including ones
+	 *         that have since been evicted)
+	 */
+	public synchronized long getOpenedCount() {
+		return opened;
+	}
+
+	/**
+	 *
+	 * @return the number of target archives currently open
+	 */
+	public synchronized int getOpenCount() {
+		return targets.size();
+	}
+
+	/**
+	 * Closes every target archive that is open
+	 */
+	@Override
+	public synchronized void close() {
+		for (Target target : targets.values()) {
+			target.close();
+		}
+		targets.clear();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("EArcReferenceResolver [root=");
+		builder.append(root);
+		builder.append(", maxOpenArchives=");
+		builder.append(maxOpenArchives);
+		builder.append(", open=");
+		builder.append(getOpenCount());
+		builder.append(", opened=");
+		builder.append(getOpenedCount());
+		builder.append("]");
+		return builder.toString();
+	}
+
+}
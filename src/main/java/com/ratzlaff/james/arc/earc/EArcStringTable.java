@@ -0,0 +1,233 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.ratzlaff.james.util.io.MappedWindows;
+import com.ratzlaff.james.util.io.PositionalReads;
+
+/**
+ * The url (data://) and file path tables of an earc, read with a single read
+ * and indexed by the offsets of their NUL terminated strings. Strings are only
+ * decoded when they are first asked for.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class EArcStringTable {
+	private static final int[] EMPTY_OFFSETS = new int[0];
+
+	private final long location;
+	private final byte[] data;
+	private final int[] starts;
+	private final int[] ends;
+	private final String[] decoded;
+
+	/**
+	 *
+	 * @param location
+	 *            the absolute offset (from 0x00) that the first byte of
+	 *            {@code data} was read from
+	 * @param data
+	 *            the raw bytes of the string tables
+	 */
+	public EArcStringTable(long location, byte[] data) {
+		this.location = location;
+		this.data = data != null ? data : new byte[0];
+		int count = countStrings(this.data);
+		int[] startsToUse = count > 0 ? new int[count] : EMPTY_OFFSETS;
+		int[] endsToUse = count > 0 ? new int[count] : EMPTY_OFFSETS;
+		int current = 0;
+		for (int i = 0; i < this.data.length; i++) {
+			if (this.data[i] != 0 && (i == 0 || this.data[i - 1] == 0)) {
+				startsToUse[current] = i;
+			} else if (this.data[i] == 0 && i > 0 && this.data[i - 1] != 0) {
+				endsToUse[current++] = i;
+			}
+		}
+		if (current < count) {
+			endsToUse[current] = this.data.length;
+		}
+		this.starts = startsToUse;
+		this.ends = endsToUse;
+		this.decoded = new String[count];
+	}
+
+	private static int countStrings(byte[] data) {
+		int count = 0;
+		for (int i = 0; i < data.length; i++) {
+			if (data[i] != 0 && (i == 0 || data[i - 1] == 0)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Reads the bytes from {@code from} (inclusive) to {@code to} (exclusive) with
+	 * a single (positional) read
+	 *
+	 * @param fc
+	 *            the channel of the earc
+	 * @param from
+	 *            the absolute offset of the first table (generally the
+	 *            {@link EArcHeader#getUrlTableLocation() url table location})
+	 * @param to
+	 *            the absolute offset where the tables end (generally the
+	 *            {@link EArcHeader#getDataTableLocation() data table location})
+	 * @return the string table of the given range
+	 */
+	public static EArcStringTable read(FileChannel fc, long from, long to) {
+		int len = (int) Math.max(0, to - from);
+		ByteBuffer bb = ByteBuffer.allocate(len);
+		if (fc != null) {
+			try {
+				PositionalReads.readFully(fc, bb, from);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		byte[] bytes = bb.position() == len ? bb.array() : Arrays.copyOf(bb.array(), bb.position());
+		return new EArcStringTable(from, bytes);
+	}
+
+	/**
+	 * The same as {@link #read(FileChannel, long, long)} but copies the tables out
+	 * of an archive's mapping
+	 *
+	 * @param windows
+	 *            the mapping of the earc
+	 * @param from
+	 *            the absolute offset of the first table
+	 * @param to
+	 *            the absolute offset where the tables end
+	 * @return the string table of the given range
+	 */
+	public static EArcStringTable read(MappedWindows windows, long from, long to) {
+		int len = (int) Math.max(0, to - from);
+		ByteBuffer bb = ByteBuffer.allocate(len);
+		if (windows != null) {
+			windows.read(from, bb);
+		}
+		byte[] bytes = bb.position() == len ? bb.array() : Arrays.copyOf(bb.array(), bb.position());
+		return new EArcStringTable(from, bytes);
+	}
+
+	/**
+	 *
+	 * @return the number of strings in this table
+	 */
+	public int size() {
+		return starts.length;
+	}
+
+	/**
+	 *
+	 * @return the absolute offset of this table within the earc
+	 */
+	public long getLocation() {
+		return location;
+	}
+
+	/**
+	 *
+	 * @param absoluteLocation
+	 *            the absolute offset (from 0x00) of a string, such as
+	 *            {@link EArcEntry#getDataUrlLocation()}
+	 * @return {@code true} if the location is within the bounds of this table
+	 */
+	public boolean contains(long absoluteLocation) {
+		long relative = absoluteLocation - location;
+		return relative > -1 && relative < data.length;
+	}
+
+	/**
+	 *
+	 * @param absoluteLocation
+	 *            the absolute offset (from 0x00) of a string, such as
+	 *            {@link EArcEntry#getDataUrlLocation()}
+	 * @return the string at that location or {@code null} if the location is not
+	 *         within this table
+	 */
+	public String getString(long absoluteLocation) {
+		String result = null;
+		if (contains(absoluteLocation)) {
+			int relative = (int) (absoluteLocation - location);
+			int stringIndex = Arrays.binarySearch(starts, relative);
+			if (stringIndex > -1) {
+				result = getStringAt(stringIndex);
+			} else {
+				int end = relative;
+				while (end < data.length && data[end] != 0) {
+					end++;
+				}
+				result = decode(relative, end);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 * @param stringIndex
+	 *            the index of the string within this table
+	 * @return the decoded string
+	 */
+	public String getStringAt(int stringIndex) {
+		String result = decoded[stringIndex];
+		if (result == null) {
+			result = decode(starts[stringIndex], ends[stringIndex]);
+			decoded[stringIndex] = result;
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 * @param absoluteLocation
+	 *            the absolute offset of a string
+	 * @return the string at the given location only if it has already been
+	 *         decoded, otherwise {@code null}
+	 */
+	public String peekString(long absoluteLocation) {
+		String result = null;
+		if (contains(absoluteLocation)) {
+			int stringIndex = Arrays.binarySearch(starts, (int) (absoluteLocation - location));
+			if (stringIndex > -1) {
+				result = decoded[stringIndex];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 
+	 * @return the raw bytes of the tables (not a copy)
+	 */
+	byte[] getData() {
+		return data;
+	}
+
+	private String decode(int from, int to) {
+		return new String(data, from, to - from, EArcEntry.DEFAULT_EARC_CHARSET).trim();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("EArcStringTable [location=");
+		builder.append(location);
+		builder.append(", length=");
+		builder.append(data.length);
+		builder.append(", strings=");
+		builder.append(size());
+		builder.append("]");
+		return builder.toString();
+	}
+
+}
@@ -2,24 +2,29 @@ package com.ratzlaff.james.arc.earc;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+import java.util.Arrays;
 import java.util.zip.ZipInputStream;
 
+import com.ratzlaff.james.util.io.PositionalReads;
+
 public class EArchDataExtractor {
 
 	/**
 	 * 
 	 * @param pointers
-	 * @return a {@link MappedByteBuffer} of the data associated to the {@link EArcEntry metadataPointer} object
+	 * @return a read-only, memory mapped {@link ByteBuffer} of the data associated to the {@link EArcEntry metadataPointer} object.
+	 * This is a slice of the archive's mapped data table when it is available, otherwise the entry is mapped on its own.
 	 */
-	public static MappedByteBuffer getData(EArcEntry pointers) {
-		MappedByteBuffer mbb = null;
+	public static ByteBuffer getData(EArcEntry pointers) {
+		ByteBuffer mbb = pointers.getMappedSlice(pointers.getDataLocation(), pointers.getLength());
+		if(mbb!=null) {
+			return mbb;
+		}
 		try {
 			mbb = pointers.getFileChannel().map(MapMode.READ_ONLY, pointers.getDataLocation(), pointers.getLength());
 			mbb.order(ByteOrder.nativeOrder());
@@ -39,7 +44,7 @@ public class EArchDataExtractor {
 		long offset = pointer.getDataLocation()+offsetFromOriginalDataLocation;
 		int len = pointer.getLength()+truncateOrExpand;
 		ByteBuffer result = ByteBuffer.allocateDirect(len).order(ByteOrder.nativeOrder());
-		result = getRawDataAsByteBuffer(pointer.getFileChannel(), offset, len, result);
+		result = getRawDataAsByteBuffer(pointer, offset, len, result);
 		return result;
 	}
 	public static ByteBuffer getRawDataAsArrayBackedByteBuffer(EArcEntry pointer) {
@@ -52,11 +57,11 @@ public class EArchDataExtractor {
 		long offset = pointer.getDataLocation()+offsetFromOriginalDataLocation;
 		int len = pointer.getLength()+truncateOrExpand;
 		ByteBuffer result = ByteBuffer.allocate(len).order(ByteOrder.nativeOrder());
-		result = getRawDataAsByteBuffer(pointer.getFileChannel(), offset, len, result);
+		result = getRawDataAsByteBuffer(pointer, offset, len, result);
 		return result;
 	}
 	
-	private static ByteBuffer getRawDataAsByteBuffer(FileChannel fc, long offset, int len, ByteBuffer result) {
+	private static ByteBuffer getRawDataAsByteBuffer(EArcEntry pointer, long offset, int len, ByteBuffer result) {
 		if(result==null) {
 			result = ByteBuffer.allocateDirect(len).order(ByteOrder.nativeOrder());
 		}
@@ -66,6 +71,13 @@ public class EArchDataExtractor {
 			toCopyTo.put(result);
 			result=toCopyTo;
 		}
+		ByteBuffer mapped = pointer.getMappedSlice(offset, len);
+		if(mapped!=null) {
+			result.put(mapped);
+			result.flip();
+			return result;
+		}
+		FileChannel fc = pointer.getFileChannel();
 		int bytesRead=0;
 		int totalBytesRead=0;
 		try {
@@ -85,9 +97,11 @@ public class EArchDataExtractor {
 		if(pointer!=null) {
 			if(isZipped(pointer)) {
 				try {
-					pointer.getFileChannel().position(pointer.getDataLocation());
-					ByteBuffer intReader = ByteBuffer.allocateDirect(Integer.BYTES);
-					pointer.getFileChannel().read(intReader);
+					ByteBuffer intReader = pointer.getMappedSlice(pointer.getDataLocation(), Integer.BYTES);
+					if(intReader==null) {
+						intReader = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.nativeOrder());
+						PositionalReads.readFully(pointer.getFileChannel(), intReader, pointer.getDataLocation());
+					}
 					compressedSize = intReader.getInt(0);
 				} catch (IOException e) {
 					e.printStackTrace();
@@ -129,6 +143,13 @@ public class EArchDataExtractor {
 		}
 		ByteBuffer result = null;
 		try {
+			ByteBuffer mapped = pointer.getMappedSlice(offset, len);
+			if(mapped!=null) {
+				result = ByteBuffer.allocate(len);
+				result.put(mapped);
+				result.flip();
+				return result;
+			}
 			result = createByteBufferSegment(pointer.getFileChannel(), offset, len);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -136,50 +157,6 @@ public class EArchDataExtractor {
 		return result;
 	}
 	
-	/**
-	 * SPECIAL NOTE!!!: It turns out that the maximum deflated size can only be 131072 bytes,there for a filePointer may possibly have multiple zip entries
-	 * @param mbb
-	 * @param dataBlockLength
-	 * @param expectedDecompressedLength
-	 * @return
-	 */
-	private static Boolean isZipped(ByteBuffer mbb, int dataBlockLength, int expectedDecompressedLength) {
-		Boolean zipped = false;
-		if (mbb != null) {
-			if (mbb.remaining() >= 9) {
-				int compressedLength = mbb.getInt(0);
-				int decompressedLength = mbb.getInt(4);
-				
-				byte header = mbb.get(8);
-				boolean hasMagic =header == (byte) 0x78; 
-				zipped = hasMagic;
-				int compressedTruncation = (Integer.BYTES)<<1;
-//				if(zipped) {
-//					zipped=compressedLength==(dataBlockLength-compressedTruncation);
-//					if(!zipped) {
-//						System.err.println(String.format("The compressed length in the data header (%d bytes) is not equal to the expected compressed length (%d bytes - %d bytes = %d bytes) from the file metadata table",compressedLength,dataBlockLength,compressedTruncation,dataBlockLength-2));
-//					}
-//				}
-//				if(zipped) {
-//					zipped=decompressedLength==(expectedDecompressedLength);
-//					if(!zipped) {
-//						System.err.println(String.format("The decompressed size in the data header (%d bytes) is not equal to the expected decompressed size (%d bytes) from the file metadata table",decompressedLength,expectedDecompressedLength));
-//					}
-//				}
-				if (!zipped) {
-					header = mbb.get(0);
-					byte header2 = mbb.get(1);
-					zipped = header == 0x78 && header2 == 0xDA;
-					if(zipped) {
-						System.out.println("It appears this data might be zipped but has abnormal headers");
-						zipped=null;
-					}
-					
-				}
-			}
-		}
-		return zipped;
-	}
 	public static byte[] toByteArray(ByteBuffer bb, int offset, int len) {
 		if(offset<0) {
 			offset=0;
@@ -194,8 +171,7 @@ public class EArchDataExtractor {
 	
 	public static ByteArrayInputStream toByteArrayInputStream(EArcEntry pointer) {
 		ByteBuffer data = getRawDataAsDirectByteBuffer(pointer);
-		Boolean zipped = isZipped(data,pointer.getLength(),pointer.getExtractedSize());
-		if(zipped!=null&&zipped) {
+		if(pointer.isCompressed()) {
 			data.position(8);
 		}
 		return toByteArrayInputStream(data);
@@ -210,42 +186,43 @@ public class EArchDataExtractor {
 		return bais;
 	}
 	
+	/**
+	 * Extracts an entry with a single pass over its data, inflating each {@link DeflateSegment} straight into the result
+	 * @param pointer the entry to extract
+	 * @return the extracted contents of the entry
+	 */
 	public static byte[] extract(EArcEntry pointer) {
-		
-		
-		byte[] reso = new byte[pointer.getExtractedSize()];
-		ByteArrayInputStream asByteArrayInputStream = toByteArrayInputStream(pointer);
+		return pointer.getExtractData();
+	}
 
-		if(isZipped(pointer)) {
-			InflaterInputStream zis = new InflaterInputStream(toByteArrayInputStream(pointer), new Inflater(),0x02000);
-			try {
-				int bytesRead=0;
-				int totalBytesRead=0;
-				while((bytesRead=zis.read(reso))!=-1&&totalBytesRead<reso.length){
-					totalBytesRead+=bytesRead;
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			} finally {
-				try {
-					zis.close();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+	/**
+	 * Extracts only part of an entry, inflating just the {@link DeflateSegment}s that cover the requested range
+	 * @param pointer the entry to extract from
+	 * @param offset the offset within the extracted contents of the entry
+	 * @param len the maximum number of bytes to extract
+	 * @return the extracted bytes, which may be fewer than {@code len} if the range extends past the end of the entry
+	 * @throws UncheckedIOException if the entry could not be read or any of the segments covering the range are corrupt
+	 */
+	public static byte[] extract(EArcEntry pointer, long offset, int len) {
+		ByteBuffer result = ByteBuffer.allocate(Math.max(len, 0));
+		try (EArcEntrySeekableChannel channel = pointer.openSeekableChannel()) {
+			channel.position(offset);
+			while (result.hasRemaining() && channel.read(result) > 0) {
 			}
-		} else {
-			reso = getRawDataAsArrayBackedByteBuffer(pointer).array();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
-		return reso;
+		return result.position() == result.capacity() ? result.array() : Arrays.copyOf(result.array(), result.position());
 	}
-
-	
 	
+	/**
+	 * 
+	 * @param pointer the entry to check
+	 * @return {@code true} if the entry is compressed. This is worked out once per entry and cached.
+	 * @see EArcEntry#isCompressed()
+	 */
 	public static boolean isZipped(EArcEntry pointer) {
-		ByteBuffer bb = getRawDataAsArrayBackedByteBuffer(pointer, 0, -(pointer.getLength()-9));
-		boolean zipped = isZipped(bb, pointer.getLength(), pointer.getExtractedSize());
-		return zipped;
+		return pointer.isCompressed();
 	}
 
 }
@@ -0,0 +1,177 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Inflater;
+
+/**
+ * A bounded pool of {@link Inflater}s. Inflaters are {@link Inflater#reset()
+ * reset} when they are handed back and reused by the next caller; any that do
+ * not fit back into the pool are {@link Inflater#end() ended} immediately
+ * rather than waiting for finalization to free their native zlib state.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class InflaterPool {
+
+	/**
+	 * Notified every time an inflater is acquired from a pool
+	 */
+	@FunctionalInterface
+	public static interface Listener {
+		/**
+		 *
+		 * @param pool
+		 *            the pool the inflater was acquired from
+		 * @param hit
+		 *            {@code true} if a pooled inflater was reused, {@code false}
+		 *            if a new one had to be created
+		 */
+		void acquired(InflaterPool pool, boolean hit);
+	}
+
+	/**
+	 * The pool used by {@link DeflateSegment}
+	 */
+	public static final InflaterPool DEFAULT_INSTANCE = new InflaterPool(
+			Runtime.getRuntime().availableProcessors() << 1);
+
+	private final int maxIdle;
+	private final BlockingQueue<Inflater> idle;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder ended = new LongAdder();
+	private volatile Listener listener;
+
+	/**
+	 *
+	 * @param maxIdle
+	 *            the maximum number of idle inflaters kept for reuse
+	 */
+	public InflaterPool(int maxIdle) {
+		this.maxIdle = Math.max(1, maxIdle);
+		this.idle = new ArrayBlockingQueue<Inflater>(this.maxIdle);
+	}
+
+	/**
+	 *
+	 * @return a pooled inflater if one is available, otherwise a new one. It should
+	 *         be given back with {@link #release(Inflater)} once it is no longer
+	 *         needed.
+	 */
+	public Inflater acquire() {
+		Inflater inflater = idle.poll();
+		boolean hit = inflater != null;
+		if (hit) {
+			hits.increment();
+		} else {
+			misses.increment();
+			inflater = new Inflater();
+		}
+		Listener l = listener;
+		if (l != null) {
+			l.acquired(this, hit);
+		}
+		return inflater;
+	}
+
+	/**
+	 * Resets {@code inflater} and returns it to the pool, or ends it if the pool
+	 * is full
+	 *
+	 * @param inflater
+	 *            an inflater obtained from {@link #acquire()}
+	 */
+	public void release(Inflater inflater) {
+		if (inflater != null) {
+			inflater.reset();
+			if (!idle.offer(inflater)) {
+				inflater.end();
+				ended.increment();
+			}
+		}
+	}
+
+	/**
+	 * Ends every idle inflater in this pool
+	 */
+	public void clear() {
+		Inflater inflater = null;
+		while ((inflater = idle.poll()) != null) {
+			inflater.end();
+			ended.increment();
+		}
+	}
+
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 *
+	 * @return the number of inflaters that have been ended because the pool was
+	 *         full (or cleared)
+	 */
+	public long getEnded() {
+		return ended.sum();
+	}
+
+	/**
+	 *
+	 * @return the fraction of acquisitions that reused a pooled inflater, or
+	 *         {@code 0} if none have been made
+	 */
+	public double getHitRate() {
+		long h = getHits();
+		long total = h + getMisses();
+		return total != 0 ? ((double) h) / total : 0;
+	}
+
+	public Listener getListener() {
+		return listener;
+	}
+
+	/**
+	 *
+	 * @param listener
+	 *            the listener to notify of acquisitions, may be {@code null}
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("InflaterPool [maxIdle=");
+		builder.append(maxIdle);
+		builder.append(", idle=");
+		builder.append(getIdleCount());
+		builder.append(", hits=");
+		builder.append(getHits());
+		builder.append(", misses=");
+		builder.append(getMisses());
+		builder.append(", ended=");
+		builder.append(getEnded());
+		builder.append("]");
+		return builder.toString();
+	}
+
+}
@@ -1,8 +1,11 @@
 package com.ratzlaff.james.arc.earc;
 
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
@@ -21,23 +24,91 @@ import com.ratzlaff.james.arc.Earchive;
  */
 public class Main {
 	private static final transient Logger LOG = LoggerFactory.getLogger(Main.class);
+	private static final String WORKERS_FLAG = "--workers";
+	private static final String WORKERS_FLAG_SHORT = "-w";
+	private static final String PARALLEL_SEGMENTS_FLAG = "--parallel-segments";
+	private static final String PARALLEL_SEGMENTS_FLAG_SHORT = "-s";
+	private static final String MAPPED_FLAG = "--mapped";
+	private static final String MAPPED_FLAG_SHORT = "-m";
+	private static final String REFERENCES_FLAG = "--references";
+	private static final String REFERENCES_FLAG_SHORT = "-r";
+	private static final String METRICS_FLAG = "--metrics";
+	private static final String METRICS_FLAG_SHORT = "-M";
+	private static final String TRACE_SEGMENTS_FLAG = "--trace-segments";
+	private static final String TRACE_SEGMENTS_FLAG_SHORT = "-t";
+	private static final String INDEX_CACHE_FLAG = "--index-cache";
+	private static final String INDEX_CACHE_FLAG_SHORT = "-i";
 	
 	public static void main(String[] args) throws Exception {
-		doMain(args);
-		
+		int status = doMain(args);
+		if(status!=0) {
+			System.exit(status);
+		}
 	}
 	
-	private static void doMain(String[] args) {
-		if(args.length<1) {
+	/**
+	 * 
+	 * @param args the command line arguments
+	 * @return the exit status: 0 if every entry was extracted, 1 if the archive could not be read or any of its entries could not be extracted and 2 if the arguments were not understood
+	 */
+	static int doMain(String[] args) {
+		int workers = ParallelExtractor.getDefaultWorkerCount();
+		boolean parallelSegments = false;
+		Earchive.OpenMode openMode = Earchive.OpenMode.CHANNEL;
+		Path referencesRoot = null;
+		EArcMetrics.Format metricsFormat = null;
+		List<String> positional = new ArrayList<String>(args.length);
+		for(int i=0;i<args.length;i++) {
+			String arg = args[i];
+			if(WORKERS_FLAG.equals(arg)||WORKERS_FLAG_SHORT.equals(arg)) {
+				Integer parsed = i+1<args.length?parseWorkerCount(args[++i]):null;
+				if(parsed==null) {
+					printUsage();
+					return 2;
+				}
+				workers=parsed;
+			} else if(PARALLEL_SEGMENTS_FLAG.equals(arg)||PARALLEL_SEGMENTS_FLAG_SHORT.equals(arg)) {
+				parallelSegments=true;
+			} else if(MAPPED_FLAG.equals(arg)||MAPPED_FLAG_SHORT.equals(arg)) {
+				openMode=Earchive.OpenMode.MAPPED;
+			} else if(REFERENCES_FLAG.equals(arg)||REFERENCES_FLAG_SHORT.equals(arg)) {
+				if(i+1>=args.length) {
+					printUsage();
+					return 2;
+				}
+				referencesRoot=Paths.get(args[++i]);
+			} else if(METRICS_FLAG.equals(arg)||METRICS_FLAG_SHORT.equals(arg)) {
+				metricsFormat = i+1<args.length?parseMetricsFormat(args[++i]):null;
+				if(metricsFormat==null) {
+					printUsage();
+					return 2;
+				}
+				EArcMetrics.DEFAULT_INSTANCE.setEnabled(true);
+			} else if(TRACE_SEGMENTS_FLAG.equals(arg)||TRACE_SEGMENTS_FLAG_SHORT.equals(arg)) {
+				Integer interval = i+1<args.length?parseSampleInterval(args[++i]):null;
+				if(interval==null) {
+					printUsage();
+					return 2;
+				}
+				SegmentTrace.DEFAULT_INSTANCE.setSampleInterval(interval);
+			} else if(INDEX_CACHE_FLAG.equals(arg)||INDEX_CACHE_FLAG_SHORT.equals(arg)) {
+				EArcIndexCache.DEFAULT_INSTANCE.setEnabled(true);
+			} else {
+				positional.add(arg);
+			}
+		}
+		if(positional.size()<1) {
 			printUsage();
+			return 2;
 		} else {
 			
-			String inputFile = args[0];
-			Earchive earch = Earchive.create(inputFile);
+			String inputFile = positional.get(0);
+			Earchive earch = Earchive.create(Paths.get(inputFile), openMode);
+			if(earch==null) {
+				return 1;
+			}
 //			print(earch);
-//			String outputDir = args.length>1?args[1]:"./";
-			EArcEntry pntr=earch.getEntryAt(0);
-			pntr.write();
+			String outputDir = positional.size()>1?positional.get(1):"./";
 //			DeflateSegment d = pntr.getDeflateSegments().get(0);
 //			ByteBuffer bb = d.getCompressedDataAsByteBuffer(null);
 //			System.out.println(pntr);
@@ -47,9 +118,29 @@ public class Main {
 //			earch.getFilePointersAt(0).extractTo(Paths.get(outputDir));
 			
 			
-			//extractAllFiles(earch, outputDir);
-			
-			
+			int status = 0;
+			try {
+				if(referencesRoot!=null) {
+					try(EArcReferenceResolver resolver = new EArcReferenceResolver(referencesRoot)){
+						extractAllFiles(earch, outputDir, workers, parallelSegments, resolver);
+						LOG.info("{}", resolver);
+					}
+				} else {
+					extractAllFiles(earch, outputDir, workers, parallelSegments);
+				}
+			} catch (UncheckedIOException e) {
+				LOG.error(e.getLocalizedMessage(), e.getCause());
+				status = 1;
+			}
+			try {
+				earch.close();
+			} catch (IOException e) {
+				LOG.error(e.getLocalizedMessage(), e);
+			}
+			if(metricsFormat!=null) {
+				System.out.println(EArcMetrics.DEFAULT_INSTANCE.format(metricsFormat));
+			}
+			return status;
 		}
 	}
 	
@@ -96,8 +187,77 @@ public class Main {
 		});
 	}
 	
+	/**
+	 * Extracts every entry of the given archive using a {@link ParallelExtractor}
+	 * with {@code workers} threads
+	 * @param earch the archive to extract
+	 * @param outputDir the directory to extract to
+	 * @param workers the number of threads to extract with
+	 * @param parallelSegments whether the segments of large entries should also be inflated concurrently
+	 * @throws UncheckedIOException if any entry could not be extracted
+	 */
+	public static void extractAllFiles(Earchive earch, String outputDir, int workers, boolean parallelSegments) {
+		extractAllFiles(earch, outputDir, workers, parallelSegments, null);
+	}
+	
+	/**
+	 * The same as {@link #extractAllFiles(Earchive, String, int, boolean)} but reference entries are resolved with {@code resolver}
+	 * @param earch the archive to extract
+	 * @param outputDir the directory to extract to
+	 * @param workers the number of threads to extract with
+	 * @param parallelSegments whether the segments of large entries should also be inflated concurrently
+	 * @param resolver the resolver for reference entries, may be {@code null}
+	 * @throws UncheckedIOException if any entry could not be extracted
+	 */
+	public static void extractAllFiles(Earchive earch, String outputDir, int workers, boolean parallelSegments, EArcReferenceResolver resolver) {
+		final Path out = Paths.get(outputDir);
+		try(ParallelExtractor extractor = new ParallelExtractor(workers, parallelSegments)){
+			extractor.setReferenceResolver(resolver);
+			LOG.info("extracting {} entries to \"{}\" with {} workers", earch.getFileCount(), out, extractor.getWorkerCount());
+			extractor.extractAll(earch, out);
+		}
+		LOG.info("{} (hit rate {})", InflaterPool.DEFAULT_INSTANCE, InflaterPool.DEFAULT_INSTANCE.getHitRate());
+		LOG.info("{} (hit rate {})", earch.getHandlePool(), earch.getHandlePool().getHitRate());
+	}
+	
+	private static Integer parseWorkerCount(String str) {
+		Integer result = null;
+		try {
+			int parsed = Integer.parseInt(str);
+			if(parsed>0) {
+				result=parsed;
+			}
+		} catch (NumberFormatException nfe) {
+			LOG.error("\"{}\" is not a valid number of workers", str);
+		}
+		return result;
+	}
+	
+	private static Integer parseSampleInterval(String str) {
+		Integer result = null;
+		try {
+			int parsed = Integer.parseInt(str);
+			if(parsed>-1) {
+				result=parsed;
+			}
+		} catch (NumberFormatException nfe) {
+			LOG.error("\"{}\" is not a valid sample interval", str);
+		}
+		return result;
+	}
+	
+	private static EArcMetrics.Format parseMetricsFormat(String str) {
+		EArcMetrics.Format result = null;
+		try {
+			result = EArcMetrics.Format.valueOf(str.toUpperCase());
+		} catch (IllegalArgumentException iae) {
+			LOG.error("\"{}\" is not a metrics format, use json or prometheus", str);
+		}
+		return result;
+	}
+	
 	private static void printUsage() {
-		System.out.println("Usage: inputFile.earc [outputDirectory]");
+		System.out.println("Usage: [-w|--workers count] [-s|--parallel-segments] [-m|--mapped] [-r|--references dataDirectory] [-M|--metrics json|prometheus] [-t|--trace-segments sampleInterval] [-i|--index-cache] inputFile.earc [outputDirectory]");
 	}
 	
 	private static String fmt(byte b) {
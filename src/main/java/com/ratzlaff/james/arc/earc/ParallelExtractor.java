@@ -0,0 +1,297 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ratzlaff.james.arc.Earchive;
+
+/**
+ * Extracts the entries of an {@link Earchive} using a fixed number of worker
+ * threads. Work is handed to the workers through a bounded queue; once the
+ * queue is full the submitting thread extracts the next entry itself, which
+ * keeps the number of in-flight entries (and the memory they hold) bounded no
+ * matter how large the archive is.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class ParallelExtractor implements Closeable {
+	private static final transient Logger LOG = LoggerFactory.getLogger(ParallelExtractor.class);
+	/**
+	 * The number of entries that may be waiting in the queue per worker
+	 */
+	public static final int QUEUED_ENTRIES_PER_WORKER = 4;
+
+	private final int workerCount;
+	private final ThreadPoolExecutor executor;
+	private final ExecutorService segmentExecutor;
+	private final ParallelSegmentInflater segmentInflater;
+	private volatile EArcReferenceResolver referenceResolver;
+
+	/**
+	 * Creates an extractor with {@link #getDefaultWorkerCount()} workers
+	 */
+	public ParallelExtractor() {
+		this(getDefaultWorkerCount());
+	}
+
+	/**
+	 *
+	 * @param workerCount
+	 *            the number of threads to extract with, values less than 1 are
+	 *            treated as 1
+	 */
+	public ParallelExtractor(int workerCount) {
+		this(workerCount, false);
+	}
+
+	/**
+	 *
+	 * @param workerCount
+	 *            the number of threads to extract with, values less than 1 are
+	 *            treated as 1
+	 * @param inflateSegmentsInParallel
+	 *            if {@code true} entries with many {@link DeflateSegment}s will
+	 *            also have their segments inflated concurrently (using a separate
+	 *            pool of {@code workerCount} threads)
+	 * @see ParallelSegmentInflater
+	 */
+	public ParallelExtractor(int workerCount, boolean inflateSegmentsInParallel) {
+		this.workerCount = Math.max(1, workerCount);
+		this.executor = new ThreadPoolExecutor(this.workerCount, this.workerCount, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(this.workerCount * QUEUED_ENTRIES_PER_WORKER),
+				new WorkerThreadFactory("earc-extractor"), new ThreadPoolExecutor.CallerRunsPolicy());
+		if (inflateSegmentsInParallel) {
+			this.segmentExecutor = Executors.newFixedThreadPool(this.workerCount,
+					new WorkerThreadFactory("earc-inflater"));
+			this.segmentInflater = new ParallelSegmentInflater(segmentExecutor);
+		} else {
+			this.segmentExecutor = null;
+			this.segmentInflater = null;
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of available processors
+	 */
+	public static int getDefaultWorkerCount() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	public int getWorkerCount() {
+		return workerCount;
+	}
+
+	public boolean isInflatingSegmentsInParallel() {
+		return segmentInflater != null;
+	}
+
+	public EArcReferenceResolver getReferenceResolver() {
+		return referenceResolver;
+	}
+
+	/**
+	 * 
+	 * @param referenceResolver
+	 *            if not {@code null}, reference entries (type 5) are resolved with
+	 *            it and the data of the entry they refer to is extracted instead
+	 *            (at that entry's path)
+	 * @return this instance
+	 */
+	public ParallelExtractor setReferenceResolver(EArcReferenceResolver referenceResolver) {
+		this.referenceResolver = referenceResolver;
+		return this;
+	}
+
+	/**
+	 * Extracts every entry of {@code earchive} into {@code outputDir}, returning
+	 * once all of them have been written
+	 *
+	 * @param earchive
+	 *            the archive to extract
+	 * @param outputDir
+	 *            the directory to extract into, if {@code null} the current
+	 *            directory is used
+	 * @return the extracted files in the same order as
+	 *         {@link Earchive#getEntries()}
+
+	 * @throws UncheckedIOException
+	 *             if any entry could not be extracted (once every other entry
+	 *             has been)
+	 */
+	public List<File> extractAll(Earchive earchive, Path outputDir) {
+		EArcEntry[] entries = earchive.getEntries();
+		List<EArcEntry> asList = new ArrayList<EArcEntry>(entries.length);
+		for (EArcEntry entry : entries) {
+			asList.add(entry);
+		}
+		return extractAll(asList, outputDir, earchive.getPath());
+	}
+
+	/**
+	 * Extracts the given entries into {@code outputDir}, returning once all of
+	 * them have been written
+	 *
+	 * @param entries
+	 *            the entries to extract
+	 * @param outputDir
+	 *            the directory to extract into, if {@code null} the current
+	 *            directory is used
+	 * @return the extracted files in the same order as {@code entries}
+
+	 * @throws UncheckedIOException
+	 *             if any entry could not be extracted (once every other entry
+	 *             has been)
+	 */
+	public List<File> extractAll(List<EArcEntry> entries, Path outputDir) {
+		return extractAll(entries, outputDir, null);
+	}
+
+	/**
+	 * Extracts every entry at or under {@code node} into {@code outputDir},
+	 * returning once all of them have been written
+	 *
+	 * @param node
+	 *            a leaf or a container of a tree built from one or more archives
+	 * @param outputDir
+	 *            the directory to extract into, if {@code null} the current
+	 *            directory is used
+	 * @return the extracted files in the order their leaves are visited
+
+	 * @throws UncheckedIOException
+	 *             if any entry could not be extracted (once every other entry
+	 *             has been)
+	 */
+	public List<File> extractAll(TreeNode<EArcEntry> node, Path outputDir) {
+		List<EArcEntry> entries = new ArrayList<EArcEntry>();
+		node.visitSubtree(child -> {
+			if (child.isLeaf() && child.getValue() != null) {
+				entries.add(child.getValue());
+			}
+		});
+		return extractAll(entries, outputDir, null);
+	}
+
+	/**
+	 * Every entry is attempted even if some of them fail; the failures are
+	 * thrown once the rest have been extracted
+	 *
+	 * @throws UncheckedIOException
+	 *             if any entry could not be extracted, wrapping an
+	 *             {@link IOException} whose cause is the first failure and which
+	 *             has the others as suppressed exceptions, or if the calling
+	 *             thread was interrupted (in which case the remaining entries are
+	 *             cancelled)
+	 */
+	private List<File> extractAll(List<EArcEntry> entries, Path outputDir, Path sourceArchive) {
+		final Path out = outputDir != null ? outputDir : Paths.get("./");
+		EArcReferenceResolver resolver = referenceResolver;
+		Map<EArcEntry, EArcEntry> resolved = resolver != null ? resolver.resolveAll(sourceArchive, entries)
+				: Collections.<EArcEntry, EArcEntry>emptyMap();
+		List<Future<File>> futures = new ArrayList<Future<File>>(entries.size());
+		for (EArcEntry entry : entries) {
+			EArcEntry toExtract = resolved.getOrDefault(entry, entry);
+			futures.add(executor.submit(() -> extract(toExtract, out, segmentInflater)));
+		}
+		List<File> files = new ArrayList<File>(futures.size());
+		IOException failures = null;
+		int failed = 0;
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				files.add(futures.get(i).get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (int j = i; j < futures.size(); j++) {
+					futures.get(j).cancel(true);
+				}
+				InterruptedIOException interrupted = new InterruptedIOException(
+						"Interrupted after extracting " + files.size() + " of " + entries.size() + " entries");
+				interrupted.initCause(e);
+				throw new UncheckedIOException(interrupted);
+			} catch (ExecutionException e) {
+				LOG.error("Could not extract \"{}\"", entries.get(i).getFilePath(), e.getCause());
+				if (failures == null) {
+					failures = new IOException("Could not extract \"" + entries.get(i).getFilePath() + "\"",
+							e.getCause());
+				} else {
+					failures.addSuppressed(e.getCause());
+				}
+				failed++;
+			}
+		}
+		if (failures != null) {
+			throw new UncheckedIOException(failed + " of " + entries.size() + " entries could not be extracted",
+					failures);
+		}
+		return files;
+	}
+
+	private static File extract(EArcEntry entry, Path out, ParallelSegmentInflater segmentInflater)
+			throws IOException {
+		LOG.debug("extracting \"{}\" to \"{}\"", entry.getFilePath(), out);
+		return entry.extract(out, segmentInflater);
+	}
+
+	/**
+	 * Stops the workers once any queued entries have been extracted
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (segmentExecutor != null) {
+			segmentExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Names its threads {@code <prefix>-<pool>-<thread>} and makes them daemons
+	 */
+	static class WorkerThreadFactory implements ThreadFactory {
+		private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+		private final String prefix;
+		private final int poolNumber = POOL_COUNT.incrementAndGet();
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		WorkerThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-" + poolNumber + "-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+}
@@ -0,0 +1,244 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Inflates the {@link DeflateSegment}s of a single {@link EArcEntry}
+ * concurrently. Every segment is an independent zlib stream whose inflated size
+ * is known up front ({@link DeflateSegment#getBufferSize()}), so each one can be
+ * inflated straight into its final offset of a pre-sized array or file.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class ParallelSegmentInflater {
+	/**
+	 * Entries with fewer segments than this are not worth splitting up
+	 */
+	public static final int DEFAULT_MIN_SEGMENTS = 4;
+
+	private final ExecutorService executor;
+	private final int minSegments;
+
+	/**
+	 *
+	 * @param executor
+	 *            the executor to inflate segments with. This should not be the
+	 *            same bounded executor that the calling thread belongs to, since
+	 *            the caller waits for the segments to finish.
+	 */
+	public ParallelSegmentInflater(ExecutorService executor) {
+		this(executor, DEFAULT_MIN_SEGMENTS);
+	}
+
+	/**
+	 *
+	 * @param executor
+	 *            the executor to inflate segments with
+	 * @param minSegments
+	 *            the minimum number of segments an entry must have to be inflated
+	 *            concurrently
+	 */
+	public ParallelSegmentInflater(ExecutorService executor, int minSegments) {
+		this.executor = executor;
+		this.minSegments = Math.max(2, minSegments);
+	}
+
+	/**
+	 *
+	 * @param entry
+	 *            the entry to check
+	 * @return {@code true} if {@code entry} has at least {@link #getMinSegments()}
+	 *         segments
+	 */
+	public boolean isWorthwhile(EArcEntry entry) {
+		return entry.getDeflateSegments().size() >= minSegments;
+	}
+
+	public int getMinSegments() {
+		return minSegments;
+	}
+
+	/**
+	 * Inflates every segment of {@code entry} into a single array
+	 *
+	 * @param entry
+	 *            the entry to inflate
+	 * @return the inflated data of the entry
+	 * @throws UncheckedIOException
+	 *             if any segment could not be inflated (or did not inflate to its
+	 *             {@link DeflateSegment#getBufferSize() buffer size}) or the calling
+	 *             thread was interrupted
+	 */
+	public byte[] inflate(EArcEntry entry) {
+		List<DeflateSegment> segments = entry.getDeflateSegments();
+		long[] offsets = entry.getInflatedSegmentOffsets();
+		byte[] result = new byte[(int) offsets[segments.size()]];
+		Batch batch = new Batch(entry, segments.size());
+		for (int i = 0; i < segments.size(); i++) {
+			DeflateSegment segment = segments.get(i);
+			int offset = (int) offsets[i];
+			batch.submit(executor, () -> segment.checkInflatedSize(segment.inflateInto(result, offset)));
+		}
+		batch.await();
+		return result;
+	}
+
+	/**
+	 * Inflates every segment of {@code entry} and writes each one at its final
+	 * offset within {@code out}
+	 *
+	 * @param entry
+	 *            the entry to inflate
+	 * @param out
+	 *            the channel to write to
+	 * @throws IOException
+	 * @throws UncheckedIOException
+	 *             if any segment could not be inflated (or did not inflate to its
+	 *             {@link DeflateSegment#getBufferSize() buffer size}) or written or
+	 *             the calling thread was interrupted
+	 */
+	public void inflateTo(EArcEntry entry, FileChannel out) throws IOException {
+		List<DeflateSegment> segments = entry.getDeflateSegments();
+		long[] offsets = entry.getInflatedSegmentOffsets();
+		Batch batch = new Batch(entry, segments.size());
+		for (int i = 0; i < segments.size(); i++) {
+			DeflateSegment segment = segments.get(i);
+			long offset = offsets[i];
+			batch.submit(executor, () -> {
+				ByteBuffer inflated = segment.inflateToScratch();
+				segment.checkInflatedSize(inflated.remaining());
+				write(out, inflated, offset);
+			});
+		}
+		batch.await();
+	}
+
+	private static void write(FileChannel out, ByteBuffer bb, long position) throws IOException {
+		EArcMetrics metrics = EArcMetrics.DEFAULT_INSTANCE;
+		long writeStart = metrics.getOutputWrite().start();
+		long written = 0;
+		while (bb.hasRemaining()) {
+			written += out.write(bb, position + written);
+		}
+		metrics.getOutputWrite().record(writeStart);
+		metrics.getBytesWritten().add(written);
+	}
+
+	/**
+	 * The work of inflating one segment
+	 */
+	@FunctionalInterface
+	private static interface SegmentTask {
+		void run() throws IOException;
+	}
+
+	/**
+	 * The segments of one entry. Once a segment fails or the waiting thread is
+	 * interrupted the segments that have not started yet are skipped and the
+	 * ones that have are waited for, so that nothing is still writing into the
+	 * caller's array or channel after {@link #await()} has thrown.
+	 */
+	private static final class Batch {
+		private final EArcEntry entry;
+		private final List<Future<?>> futures;
+		private int running;
+		private boolean cancelled;
+
+		Batch(EArcEntry entry, int segmentCount) {
+			this.entry = entry;
+			this.futures = new ArrayList<Future<?>>(segmentCount);
+		}
+
+		void submit(ExecutorService executor, SegmentTask task) {
+			futures.add(executor.submit(() -> {
+				if (start()) {
+					try {
+						task.run();
+					} finally {
+						finish();
+					}
+				}
+				return null;
+			}));
+		}
+
+		private synchronized boolean start() {
+			if (cancelled) {
+				return false;
+			}
+			running++;
+			return true;
+		}
+
+		private synchronized void finish() {
+			if (--running == 0) {
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Waits for every segment to finish
+		 *
+		 * @throws UncheckedIOException
+		 *             wrapping the first failure, or an
+		 *             {@link InterruptedIOException} if the calling thread was
+		 *             interrupted
+		 */
+		void await() {
+			try {
+				for (Future<?> future : futures) {
+					future.get();
+				}
+			} catch (ExecutionException e) {
+				cancel();
+				Throwable cause = e.getCause();
+				IOException failure = cause instanceof UncheckedIOException ? ((UncheckedIOException) cause).getCause()
+						: cause instanceof IOException ? (IOException) cause : new IOException(cause);
+				throw new UncheckedIOException("Could not inflate \"" + entry.getFilePath() + "\"", failure);
+			} catch (InterruptedException e) {
+				cancel();
+				Thread.currentThread().interrupt();
+				InterruptedIOException interrupted = new InterruptedIOException(
+						"Interrupted while inflating \"" + entry.getFilePath() + "\"");
+				interrupted.initCause(e);
+				throw new UncheckedIOException(interrupted);
+			}
+		}
+
+		/**
+		 * Cancels the segments that have not started and waits for the ones that
+		 * have, keeping (but not acting on) any interrupt that arrives meanwhile
+		 */
+		private synchronized void cancel() {
+			cancelled = true;
+			for (Future<?> future : futures) {
+				future.cancel(false);
+			}
+			boolean interrupted = Thread.interrupted();
+			while (running > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
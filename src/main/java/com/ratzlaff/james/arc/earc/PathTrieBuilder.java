@@ -0,0 +1,242 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds a tree of {@link ContainerNode}s and {@link LeafNode}s from file paths
+ * in a single pass over each path. Path segments are interned, so that the
+ * same folder or file name showing up in many archives (or many folders) is
+ * held once, and the folders of the previous path are remembered, so that a
+ * path that shares folders with the one before it (as the paths of an earc's
+ * string table do) only walks the folders that differ. Unlike
+ * {@link LeafNode#addToAndGetLeaf(ContainerNode, Object, String, String...)}
+ * no path is split into an array or list of strings.
+ * <p>
+ * One builder can be used for several archives;
+ * {@link #build()} should be called once they have all been added.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class PathTrieBuilder<T> {
+	private static final Logger LOG = LoggerFactory.getLogger(PathTrieBuilder.class);
+	private static final char SEPARATOR = TreeNode.SEPARATOR.charAt(0);
+
+	private final ContainerNode<T> root;
+	private final Segments segments = new Segments();
+	private String previousPath;
+	@SuppressWarnings("unchecked")
+	private ContainerNode<T>[] folders = (ContainerNode<T>[]) new ContainerNode<?>[16];
+	private int[] folderEnds = new int[16];
+	private int folderCount;
+
+	/**
+	 * Interns the segments of paths without creating a substring for segments it
+	 * has already seen
+	 */
+	private static final class Segments {
+		private String[] table = new String[1024];
+		private int size;
+
+		String intern(String path, int from, int to) {
+			int hash = 0;
+			for (int i = from; i < to; i++) {
+				hash = 31 * hash + path.charAt(i);
+			}
+			int mask = table.length - 1;
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			int len = to - from;
+			String current;
+			while ((current = table[slot]) != null) {
+				if (current.length() == len && path.regionMatches(from, current, 0, len)) {
+					return current;
+				}
+				slot = (slot + 1) & mask;
+			}
+			String segment = from == 0 && to == path.length() ? path : path.substring(from, to);
+			table[slot] = segment;
+			if (++size > (table.length >> 1) + (table.length >> 2)) {
+				grow();
+			}
+			return segment;
+		}
+
+		private void grow() {
+			String[] old = table;
+			table = new String[old.length << 1];
+			int mask = table.length - 1;
+			for (String segment : old) {
+				if (segment != null) {
+					int hash = segment.hashCode();
+					int slot = (hash ^ (hash >>> 16)) & mask;
+					while (table[slot] != null) {
+						slot = (slot + 1) & mask;
+					}
+					table[slot] = segment;
+				}
+			}
+		}
+	}
+
+	public PathTrieBuilder() {
+		this(null);
+	}
+
+	/**
+	 *
+	 * @param root
+	 *            the container to add to, if {@code null} a new root is created
+	 */
+	public PathTrieBuilder(ContainerNode<T> root) {
+		this.root = root != null ? root : ContainerNode.newRoot();
+	}
+
+	public ContainerNode<T> getRoot() {
+		return root;
+	}
+
+	/**
+	 *
+	 * @param values
+	 *            the values to add
+	 * @param pathFunction
+	 *            gives the path of each value, such as
+	 *            {@link EArcEntry#getFilePath()}
+	 * @return this instance
+	 */
+	public PathTrieBuilder<T> addAll(T[] values, Function<? super T, String> pathFunction) {
+		if (values != null) {
+			for (T value : values) {
+				add(value, pathFunction.apply(value));
+			}
+		}
+		return this;
+	}
+
+	/**
+	 *
+	 * @param value
+	 *            the value of the leaf
+	 * @param path
+	 *            the path of the leaf, separated by {@link TreeNode#SEPARATOR}
+	 * @return the leaf that was created or {@code null} if {@code path} is empty
+	 *         or runs through a leaf
+	 */
+	public LeafNode<T> add(T value, String path) {
+		if (path == null) {
+			LOG.warn("Not adding {} because it has no path", value);
+			return null;
+		}
+		int end = path.length();
+		while (end > 0 && path.charAt(end - 1) == SEPARATOR) {
+			end--;
+		}
+		int nameStart = path.lastIndexOf(SEPARATOR, end - 1) + 1;
+		if (isBlank(path, nameStart, end)) {
+			LOG.warn("Not adding {} because its path '{}' has no name", value, path);
+			return null;
+		}
+		int shared = sharedFolders(path, nameStart);
+		ContainerNode<T> parent = shared > 0 ? folders[shared - 1] : root;
+		folderCount = shared;
+		int from = shared > 0 ? folderEnds[shared - 1] + 1 : 0;
+		while (from < nameStart) {
+			int to = path.indexOf(SEPARATOR, from);
+			if (!isBlank(path, from, to)) {
+				parent = getOrCreateFolder(parent, path, from, to);
+				if (parent == null) {
+					LOG.warn("Not adding '{}' because '{}' is not a folder", path, path.substring(0, to));
+					previousPath = null;
+					folderCount = 0;
+					return null;
+				}
+				pushFolder(parent, to);
+			}
+			from = to + 1;
+		}
+		previousPath = path;
+		return new LeafNode<T>(parent, segments.intern(path, nameStart, end), value);
+	}
+
+	/**
+	 *
+	 * @return the number of folders {@code path} has in common with the previous
+	 *         path
+	 */
+	private int sharedFolders(String path, int nameStart) {
+		int shared = 0;
+		if (previousPath != null) {
+			int limit = Math.min(nameStart, previousPath.length());
+			int common = 0;
+			while (common < limit && path.charAt(common) == previousPath.charAt(common)) {
+				common++;
+			}
+			while (shared < folderCount && folderEnds[shared] < common) {
+				shared++;
+			}
+		}
+		return shared;
+	}
+
+	@SuppressWarnings("unchecked")
+	private ContainerNode<T> getOrCreateFolder(ContainerNode<T> parent, String path, int from, int to) {
+		String name = segments.intern(path, from, to);
+		TreeNode<T> child = parent.getChildren().get(name);
+		if (child == null) {
+			return new ContainerNode<T>(parent, name);
+		}
+		return child instanceof ContainerNode ? (ContainerNode<T>) child : null;
+	}
+
+	private void pushFolder(ContainerNode<T> folder, int end) {
+		if (folderCount == folders.length) {
+			folders = Arrays.copyOf(folders, folderCount << 1);
+			folderEnds = Arrays.copyOf(folderEnds, folderCount << 1);
+		}
+		folders[folderCount] = folder;
+		folderEnds[folderCount++] = end;
+	}
+
+	private static boolean isBlank(String path, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (path.charAt(i) > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Trims the children of every container under the root to size
+	 *
+	 * @return the root
+	 */
+	@SuppressWarnings("unchecked")
+	public ContainerNode<T> build() {
+		Deque<ContainerNode<T>> pending = new ArrayDeque<ContainerNode<T>>();
+		pending.push(root);
+		while (!pending.isEmpty()) {
+			ContainerNode<T> current = pending.pop();
+			current.trimChildren();
+			if (current.hasChildren()) {
+				for (Map.Entry<String, TreeNode<T>> child : current.getChildren().entrySet()) {
+					if (child.getValue() instanceof ContainerNode && !"..".equals(child.getKey())) {
+						pending.push((ContainerNode<T>) child.getValue());
+					}
+				}
+			}
+		}
+		return root;
+	}
+
+}
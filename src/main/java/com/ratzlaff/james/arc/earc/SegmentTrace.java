@@ -0,0 +1,228 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ratzlaff.james.arc.earc.ui.Configuration;
+
+/**
+ * An opt-in trace of the {@link DeflateSegment}s that are read. Tracing is off
+ * by default, in which case reading a segment costs a single field read here.
+ * When it is on, one in every {@link #getSampleInterval() sample interval}
+ * segments has a {@link Record} made of its header and handed to the
+ * {@link #setSink(Consumer) sink}, which logs it (at INFO, through this class's
+ * logger) unless another sink is set.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class SegmentTrace {
+	private static final transient Logger LOG = LoggerFactory.getLogger(SegmentTrace.class);
+	private static final Consumer<Record> LOGGING_SINK = record -> LOG.info("{}", record);
+
+	/**
+	 * The sample interval of {@link #DEFAULT_INSTANCE}: {@code 0} turns tracing
+	 * off, {@code 1} traces every segment and {@code n} traces every
+	 * {@code n}<sup>th</sup> segment
+	 */
+	public static final int DEFAULT_SAMPLE_INTERVAL = Configuration.get().getOrDefault(SegmentTrace.class,
+			"DEFAULT_SAMPLE_INTERVAL", Integer::valueOf, 0);
+	/**
+	 * The trace {@link DeflateSegment} reports to
+	 */
+	public static final SegmentTrace DEFAULT_INSTANCE = new SegmentTrace(DEFAULT_SAMPLE_INTERVAL);
+
+	/**
+	 * The header of one traced segment
+	 */
+	public static class Record {
+		private final String filePath;
+		private final int entryOffset;
+		private final long absoluteOffset;
+		private final int compressedSize;
+		private final int bufferSize;
+		private final int endPadding;
+		private final boolean obfuscated;
+
+		private Record(DeflateSegment segment) {
+			EArcEntry entry = segment.getParentPointer();
+			this.filePath = entry.getFilePath();
+			this.entryOffset = segment.getEntryOffset();
+			this.absoluteOffset = entry.getDataLocation() + segment.getEntryOffset();
+			this.compressedSize = segment.getCompressedSize();
+			this.bufferSize = segment.getBufferSize();
+			this.endPadding = segment.getEndPadding();
+			this.obfuscated = segment.getDeflateKey() != null;
+		}
+
+		/**
+		 *
+		 * @return the file path of the entry the segment belongs to
+		 */
+		public String getFilePath() {
+			return filePath;
+		}
+
+		/**
+		 *
+		 * @return the offset of the segment relative to the start of its entry's
+		 *         data
+		 */
+		public int getEntryOffset() {
+			return entryOffset;
+		}
+
+		/**
+		 *
+		 * @return the offset of the segment within the archive
+		 */
+		public long getAbsoluteOffset() {
+			return absoluteOffset;
+		}
+
+		public int getCompressedSize() {
+			return compressedSize;
+		}
+
+		public int getBufferSize() {
+			return bufferSize;
+		}
+
+		/**
+		 *
+		 * @return the number of bytes of padding after the compressed data
+		 */
+		public int getEndPadding() {
+			return endPadding;
+		}
+
+		/**
+		 *
+		 * @return {@code true} if the segment's header was obfuscated
+		 */
+		public boolean isObfuscated() {
+			return obfuscated;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("segment filePath=\"");
+			builder.append(filePath);
+			builder.append("\" entryOffset=");
+			builder.append(entryOffset);
+			builder.append(" absoluteOffset=");
+			builder.append(absoluteOffset);
+			builder.append(" compressedSize=");
+			builder.append(compressedSize);
+			builder.append(" bufferSize=");
+			builder.append(bufferSize);
+			builder.append(" endPadding=");
+			builder.append(endPadding);
+			builder.append(" obfuscated=");
+			builder.append(obfuscated);
+			return builder.toString();
+		}
+	}
+
+	private volatile int sampleInterval;
+	private volatile Consumer<Record> sink = LOGGING_SINK;
+	private final AtomicLong seen = new AtomicLong();
+	private final AtomicLong traced = new AtomicLong();
+
+	/**
+	 *
+	 * @param sampleInterval
+	 *            {@code 0} (or less) for no tracing, otherwise one in every
+	 *            {@code sampleInterval} segments is traced
+	 */
+	public SegmentTrace(int sampleInterval) {
+		this.sampleInterval = Math.max(0, sampleInterval);
+	}
+
+	public boolean isEnabled() {
+		return sampleInterval > 0;
+	}
+
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/**
+	 *
+	 * @param sampleInterval
+	 *            {@code 0} (or less) to stop tracing, otherwise one in every
+	 *            {@code sampleInterval} segments is traced
+	 * @return this instance
+	 */
+	public SegmentTrace setSampleInterval(int sampleInterval) {
+		this.sampleInterval = Math.max(0, sampleInterval);
+		return this;
+	}
+
+	public Consumer<Record> getSink() {
+		return sink;
+	}
+
+	/**
+	 *
+	 * @param sink
+	 *            what traced records are handed to, if {@code null} they are
+	 *            logged
+	 * @return this instance
+	 */
+	public SegmentTrace setSink(Consumer<Record> sink) {
+		this.sink = sink != null ? sink : LOGGING_SINK;
+		return this;
+	}
+
+	/**
+	 * Traces {@code segment} if tracing is on and it falls on the sample interval
+	 *
+	 * @param segment
+	 *            a segment whose header has just been read
+	 */
+	void segmentRead(DeflateSegment segment) {
+		int interval = sampleInterval;
+		if (interval > 0 && seen.getAndIncrement() % interval == 0) {
+			traced.incrementAndGet();
+			sink.accept(new Record(segment));
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of segments seen while tracing was on
+	 */
+	public long getSeenCount() {
+		return seen.get();
+	}
+
+	/**
+	 *
+	 * @return the number of segments that were traced
+	 */
+	public long getTracedCount() {
+		return traced.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("SegmentTrace [sampleInterval=");
+		builder.append(sampleInterval);
+		builder.append(", seen=");
+		builder.append(getSeenCount());
+		builder.append(", traced=");
+		builder.append(getTracedCount());
+		builder.append("]");
+		return builder.toString();
+	}
+
+}
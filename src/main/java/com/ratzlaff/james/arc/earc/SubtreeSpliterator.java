@@ -0,0 +1,142 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Walks a node and every node under it (depth first, parents before their
+ * children and children in the order of {@link TreeNode#getChildren()}) using
+ * an array as its stack, so that no set or list is built along the way and deep
+ * trees cannot overflow the call stack. The {@code ".."} entries of
+ * {@link ContainerNode}s are never followed.
+ * <p>
+ * Splitting hands half of the nodes still waiting on the stack (the ones
+ * nearest the top of the tree, and so generally the largest subtrees) to the
+ * new spliterator. When only one node is left it is split from its children,
+ * so a single root can still be spread across several threads. The size of a
+ * tree is not known without walking it, so the estimate starts out unknown
+ * ({@link Long#MAX_VALUE}) and is halved for both halves of every split, the
+ * way {@link java.util.Spliterators.AbstractSpliterator} does; this lets a
+ * parallel stream stop splitting once each piece is a fair share of the work.
+ *
+ * @author James Ratzlaff
+ *
+ */
+class SubtreeSpliterator<T> implements Spliterator<TreeNode<T>> {
+	private TreeNode<?>[] pending;
+	private int size;
+	private long est;
+	private final boolean descend;
+
+	/**
+	 *
+	 * @param start
+	 *            the first node to visit
+	 */
+	SubtreeSpliterator(TreeNode<T> start) {
+		this(new TreeNode<?>[] { start }, start != null ? 1 : 0, Long.MAX_VALUE, true);
+	}
+
+	private SubtreeSpliterator(TreeNode<?>[] pending, int size, long est, boolean descend) {
+		this.pending = pending;
+		this.size = size;
+		this.est = est;
+		this.descend = descend;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super TreeNode<T>> action) {
+		if (size == 0) {
+			return false;
+		}
+		action.accept(pop());
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super TreeNode<T>> action) {
+		while (size > 0) {
+			action.accept(pop());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private TreeNode<T> pop() {
+		TreeNode<T> current = (TreeNode<T>) pending[--size];
+		pending[size] = null;
+		if (descend) {
+			pushChildren(current);
+		}
+		return current;
+	}
+
+	/**
+	 * Pushes the children of {@code node} so that the first of them ends up on
+	 * top
+	 */
+	private void pushChildren(TreeNode<?> node) {
+		if (node.hasChildren()) {
+			Map<String, ? extends TreeNode<?>> children = node.getChildren();
+			int first = size;
+			for (Map.Entry<String, ? extends TreeNode<?>> child : children.entrySet()) {
+				if (!"..".equals(child.getKey())) {
+					if (size == pending.length) {
+						pending = Arrays.copyOf(pending, Math.max(8, size << 1));
+					}
+					pending[size++] = child.getValue();
+				}
+			}
+			for (int i = first, j = size - 1; i < j; i++, j--) {
+				TreeNode<?> swap = pending[i];
+				pending[i] = pending[j];
+				pending[j] = swap;
+			}
+		}
+	}
+
+	@Override
+	public Spliterator<TreeNode<T>> trySplit() {
+		if (!descend) {
+			return null;
+		}
+		if (size == 1) {
+			TreeNode<?> only = pending[0];
+			if (!only.hasChildren()) {
+				return null;
+			}
+			size = 0;
+			pending[0] = null;
+			pushChildren(only);
+			if (est != Long.MAX_VALUE) {
+				est = Math.max(est - 1, 1);
+			}
+			return new SubtreeSpliterator<T>(new TreeNode<?>[] { only }, 1, 1, false);
+		}
+		int half = size >> 1;
+		if (half == 0) {
+			return null;
+		}
+		TreeNode<?>[] split = Arrays.copyOfRange(pending, 0, half);
+		System.arraycopy(pending, half, pending, 0, size - half);
+		Arrays.fill(pending, size - half, size, null);
+		size -= half;
+		est >>>= 1;
+		return new SubtreeSpliterator<T>(split, half, est, true);
+	}
+
+	@Override
+	public long estimateSize() {
+		return size == 0 ? 0 : Math.max(est, size);
+	}
+
+	@Override
+	public int characteristics() {
+		return NONNULL | DISTINCT;
+	}
+
+}
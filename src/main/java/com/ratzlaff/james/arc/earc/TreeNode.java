@@ -3,17 +3,22 @@
  */
 package com.ratzlaff.james.arc.earc;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.Stack;
+import java.util.Spliterator;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +33,16 @@ public abstract class TreeNode<T> implements Comparable<TreeNode<T>> {
 	protected TreeNode<T> parent;
 	private final TreeNode<T> root;
 	public static final String SEPARATOR = "/";
+	/*
+	 * Derived from the names of this node and its parents, cleared (along with
+	 * those of every node under this one) whenever the name or parent changes.
+	 * Each is a single field holding an immutable value with a sentinel for "not
+	 * worked out yet" (-1, 0 and null), so threads racing to fill one in at worst
+	 * both work out the same value and never see half of it.
+	 */
+	private int depth = -1;
+	private int pathHash;
+	private String path;
 
 	protected TreeNode() {
 		this(null, "", true);
@@ -46,10 +61,22 @@ public abstract class TreeNode<T> implements Comparable<TreeNode<T>> {
 	 */
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((name == null) ? 0 : name.hashCode());
-		result = prime * result + ((parent == null) ? 0 : parent.hashCode());
+		return getPathHash();
+	}
+
+	private int getPathHash() {
+		int result = pathHash;
+		if (result == 0) {
+			final int prime = 31;
+			result = 1;
+			result = prime * result + ((name == null) ? 0 : name.hashCode());
+			result = prime * result + ((parent == null) ? 0 : parent.getPathHash());
+			if (result == 0) {
+				// 0 means not worked out yet
+				result = prime;
+			}
+			pathHash = result;
+		}
 		return result;
 	}
 
@@ -66,20 +93,50 @@ public abstract class TreeNode<T> implements Comparable<TreeNode<T>> {
 			return false;
 		if (!(obj instanceof TreeNode))
 			return false;
-		TreeNode other = (TreeNode) obj;
-		if (name == null) {
-			if (other.name != null)
-				return false;
-		} else if (!name.equals(other.name))
+		TreeNode<?> other = (TreeNode<?>) obj;
+		if (getPathHash() != other.getPathHash())
 			return false;
-		if (parent == null) {
-			if (other.parent != null)
+		TreeNode<?> current = this;
+		while (current != other) {
+			if (current == null || other == null)
 				return false;
-		} else if (!parent.equals(other.parent))
-			return false;
+			if (current.name == null) {
+				if (other.name != null)
+					return false;
+			} else if (!current.name.equals(other.name))
+				return false;
+			current = current.parent;
+			other = other.parent;
+		}
 		return true;
 	}
 
+	/**
+	 * Forgets the depth, hash and path of this node and of every node under it
+	 */
+	private void clearCachedPath() {
+		Deque<TreeNode<?>> pending = new ArrayDeque<TreeNode<?>>();
+		pending.push(this);
+		while (!pending.isEmpty()) {
+			TreeNode<?> current = pending.pop();
+			// the cached values of a node are only ever worked out from those of
+			// its parent, so a node with none has no children with any either
+			if (current.depth == -1 && current.pathHash == 0 && current.path == null) {
+				continue;
+			}
+			current.depth = -1;
+			current.pathHash = 0;
+			current.path = null;
+			if (current.hasChildren()) {
+				for (Map.Entry<String, ? extends TreeNode<?>> child : current.getChildren().entrySet()) {
+					if (!"..".equals(child.getKey())) {
+						pending.push(child.getValue());
+					}
+				}
+			}
+		}
+	}
+
 	public TreeNode(TreeNode<T> parent, String name) {
 		this(parent, name, false);
 	}
@@ -111,6 +168,7 @@ public abstract class TreeNode<T> implements Comparable<TreeNode<T>> {
 		TreeNode<T> removed = name != null ? getChildren().remove(name) : null;
 		if (removed != null) {
 			removed.parent = null;
+			removed.clearCachedPath();
 		}
 
 		return removed;
@@ -142,6 +200,7 @@ public abstract class TreeNode<T> implements Comparable<TreeNode<T>> {
 				if (currentName == null) {
 					if (newName == null) {
 						renamedNode.parent = null;
+						renamedNode.clearCachedPath();
 					} else {
 						renamedNode.setName(newName);
 					}
@@ -229,6 +288,7 @@ public abstract class TreeNode<T> implements Comparable<TreeNode<T>> {
 						oldName = null;
 					}
 			}
+			clearCachedPath();
 		}
 		return oldName;
 	}
@@ -267,12 +327,19 @@ public abstract class TreeNode<T> implements Comparable<TreeNode<T>> {
 		return truth;
 	}
 
+	/**
+	 * 
+	 * @return the number of nodes between the root and this node (including this
+	 *         node), so {@code 0} for the root
+	 */
 	public int getDepth() {
-		int result = -1;
-		if (!this.isRoot()) {
-			if (this.getParent() != null) {
-				result += this.getParent().getDepth();
+		int result = depth;
+		if (result < 0) {
+			result = 0;
+			if (!this.isRoot()) {
+				result = (parent != null ? parent.getDepth() : 0) + 1;
 			}
+			depth = result;
 		}
 		return result;
 	}
@@ -285,26 +352,56 @@ public abstract class TreeNode<T> implements Comparable<TreeNode<T>> {
 		return truth;
 	}
 
-	private void getLeafNodes(Set<LeafNode<T>> found) {
-		if (found == null) {
-			found = new LinkedHashSet<LeafNode<T>>();
-		}
-		if (this.isLeaf()) {
-			found.add((LeafNode<T>) this);
-			// return found;
-		}
-		if (hasChildren()) {
-			for (TreeNode<T> kid : getChildren().values()) {
-				System.out.println(kid);
-				kid.getLeafNodes(found);
-			}
-		}
-		// return found;
+	/**
+	 * 
+	 * @return a spliterator over this node and every node under it, parents
+	 *         before their children
+	 * @see SubtreeSpliterator
+	 */
+	public Spliterator<TreeNode<T>> subtreeSpliterator() {
+		return new SubtreeSpliterator<T>(this);
+	}
+
+	/**
+	 * 
+	 * @param parallel
+	 *            whether the returned stream is parallel
+	 * @return a stream of this node and every node under it
+	 */
+	public Stream<TreeNode<T>> streamSubtree(boolean parallel) {
+		return StreamSupport.stream(subtreeSpliterator(), parallel);
+	}
+
+	/**
+	 * 
+	 * @param parallel
+	 *            whether the returned stream is parallel
+	 * @return a stream of every leaf at or under this node
+	 */
+	@SuppressWarnings("unchecked")
+	public Stream<LeafNode<T>> streamLeafNodes(boolean parallel) {
+		return streamSubtree(parallel).filter(TreeNode::isLeaf).map(node -> (LeafNode<T>) node);
 	}
 
+	/**
+	 * Hands this node and then every node under it to {@code visitor}, parents
+	 * before their children
+	 * 
+	 * @param visitor
+	 *            what to do with each node
+	 */
+	public void visitSubtree(Consumer<? super TreeNode<T>> visitor) {
+		subtreeSpliterator().forEachRemaining(visitor);
+	}
+
+	@SuppressWarnings("unchecked")
 	public Set<LeafNode<T>> getLeafNodes() {
 		Set<LeafNode<T>> found = new LinkedHashSet<LeafNode<T>>();
-		getLeafNodes(found);
+		visitSubtree(node -> {
+			if (node.isLeaf()) {
+				found.add((LeafNode<T>) node);
+			}
+		});
 		return found;
 	}
 
@@ -318,6 +415,7 @@ public abstract class TreeNode<T> implements Comparable<TreeNode<T>> {
 		if (node.parent == null || !node.parent.equals(this)) {
 			node.runawayFromParent();
 			node.parent = this;
+			node.clearCachedPath();
 		}
 
 		return true;
@@ -367,42 +465,34 @@ public abstract class TreeNode<T> implements Comparable<TreeNode<T>> {
 		return (this == root) || (this.parent == null && "".equals(name));
 	}
 
-	public String toString() {
-		StringBuilder sb = new StringBuilder();
-		if (!isRoot()) {
-			sb.append(getParent().toString());
-			if (!getParent().isRoot()) {
-				sb.append('/');
+	/**
+	 * 
+	 * @return the names of this node's parents and this node, separated by
+	 *         {@link #SEPARATOR}
+	 */
+	public String getPath() {
+		String result = path;
+		if (result == null) {
+			if (isRoot() || parent == null) {
+				result = String.valueOf(getName());
+			} else if (parent.isRoot()) {
+				result = parent.getPath() + getName();
+			} else {
+				result = parent.getPath() + SEPARATOR + getName();
 			}
+			path = result;
 		}
-		sb.append(getName());
-		return sb.toString();
+		return result;
+	}
+
+	public String toString() {
+		return getPath();
 	}
 
 	public T getValue() {
 		return null;
 	}
 
-	private Stack<TreeNode<T>> getAsStack() {
-		Stack<TreeNode<T>> st = new Stack<TreeNode<T>>();
-		TreeNode<T> current = this;
-		while (!current.isRoot()) {
-			st.push(current);
-			current = current.getParent();
-		}
-		return st;
-	}
-	
-	private Stack<TreeNode<?>> getAsStackGen() {
-		Stack<TreeNode<?>> st = new Stack<TreeNode<?>>();
-		TreeNode<T> current = this;
-		while (!current.isRoot()) {
-			st.push(current);
-			current = current.getParent();
-		}
-		return st;
-	}
-	
 	public static <T> Comparator<TreeNode<T>> createComparator(Comparator<T> comparator){
 		return (a,b)->{
 			int cmp=0;
@@ -434,7 +524,7 @@ public abstract class TreeNode<T> implements Comparable<TreeNode<T>> {
 			if(comparator!=null) {
 				Collections.sort(nodes,comparator);
 			} else {
-				Collections.sort(nodes,compy);
+				Collections.sort(nodes,PATH_ORDER);
 			}
 		}
 		return nodes;
@@ -452,56 +542,52 @@ public abstract class TreeNode<T> implements Comparable<TreeNode<T>> {
 	}
 	
 	
-	private static final Comparator<TreeNode<?>> compy = (ths,o)->{
-		if (o == null) {
+	/**
+	 * Orders nodes by their paths, one name at a time starting from the root, so
+	 * that a node comes after its parents and before its children. Nothing is
+	 * allocated: both nodes are brought to the same depth and then walked up
+	 * together to their closest common parent.
+	 */
+	public static final Comparator<TreeNode<?>> PATH_ORDER = (ths, o) -> {
+		if (ths == o) {
+			return 0;
+		} else if (o == null) {
 			return 1;
+		} else if (ths == null) {
+			return -1;
+		}
+		int myDepth = ths.getDepth();
+		int oDepth = o.getDepth();
+		TreeNode<?> mine = ths;
+		TreeNode<?> other = o;
+		for (int i = myDepth; i > oDepth; i--) {
+			mine = mine.parent;
+		}
+		for (int i = oDepth; i > myDepth; i--) {
+			other = other.parent;
 		}
 		int cmp = 0;
-		
-		if (cmp == 0) {
-			Stack<TreeNode<?>> myStack = ths.getAsStackGen();
-			Stack<TreeNode<?>> oStack = o.getAsStackGen();
-
-			while (cmp == 0) {
-				if (myStack.isEmpty()) {
-					if (!oStack.isEmpty()) {
-						cmp = -1;
-					} else {
-						break;
-					}
-
-				} else if (oStack.isEmpty()) {
-					cmp = 1;
-				}
-				if (cmp == 0) {
-					TreeNode<?> myPop = myStack.pop();
-					TreeNode<?> oPop = oStack.pop();
-					String myName = myPop.getNameInScopeOf(ths);
-					String oName = oPop.getNameInScopeOf(ths);
-					if("..".equals(myName)) {
-						cmp=-1;
-					} else if("..".equals(oName)) {
-						cmp=1;
-					} else {
-						cmp=myName.compareTo(oName);
-					}
-				}
+		while (mine != other && mine != null && other != null) {
+			int nameCmp = compareNames(mine.name, other.name);
+			if (nameCmp != 0) {
+				cmp = nameCmp;
 			}
-
-			// TreeNode<T> myParent = this.getParent();
-			// if(myParent!=null) {
-			// cmp=myParent.compareTo(o.getParent());
-			// } else if(o.getParent()!=null) {
-			// cmp=-1;
-			// }
-			// if(cmp==0) {
-			// cmp=getName().compareTo(o.getName());
-			// }
+			mine = mine.parent;
+			other = other.parent;
+		}
+		if (cmp == 0) {
+			cmp = Integer.compare(myDepth, oDepth);
 		}
 		return cmp;
-
 	};
 
+	private static int compareNames(String a, String b) {
+		if (a == null) {
+			return b == null ? 0 : -1;
+		}
+		return b == null ? 1 : a.compareTo(b);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -509,7 +595,7 @@ public abstract class TreeNode<T> implements Comparable<TreeNode<T>> {
 	 */
 	@Override
 	public int compareTo(TreeNode<T> o) {
-		int cmp = compy.compare(this,o);
+		int cmp = PATH_ORDER.compare(this,o);
 		return cmp;
 	}
 	
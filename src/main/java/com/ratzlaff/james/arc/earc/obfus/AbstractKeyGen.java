@@ -50,6 +50,47 @@ public abstract class AbstractKeyGen extends BaseKeyGen implements KeyGenerator{
 		return new EntryUnlockKeysImpl(getLengthKey(), getOffsetKey());
 	}
 
+	/**
+	 * Derives the unlock keys of a run of consecutive entries in one pass. The
+	 * keys (and the state this generator is left in) are the same as calling
+	 * {@link #setTransientKey(long)} with each of {@code transientKeys} in turn
+	 * and reading {@link #getLengthKey()} and {@link #getOffsetKey()} after each
+	 * one, but the setter hooks are not invoked and nothing is allocated per
+	 * entry.
+	 * 
+	 * @param transientKeys
+	 *            the transient keys of the entries, in the order they appear in
+	 *            the archive
+	 * @param count
+	 *            the number of keys to derive
+	 * @param lengthKeys
+	 *            receives the length unlock key of each entry (the low 32 bits
+	 *            unlock the length in the archive and the high 32 bits the size on
+	 *            disk)
+	 * @param offsetKeys
+	 *            receives the data offset unlock key of each entry
+	 */
+	public void deriveUnlockKeys(long[] transientKeys, int count, long[] lengthKeys, long[] offsetKeys) {
+		if (count < 1) {
+			return;
+		}
+		final long minor = getMinorKey();
+		long morphing = morphingKey;
+		long transientKey = 0l;
+		long lengthKey = 0l;
+		for (int i = 0; i < count; i++) {
+			transientKey = transientKeys[i];
+			lengthKey = (morphing * minor) ^ transientKey;
+			morphing = (lengthKey * minor) ^ ~transientKey;
+			lengthKeys[i] = lengthKey;
+			offsetKeys[i] = morphing;
+		}
+		this.transientKey = transientKey;
+		this.lengthKey = lengthKey;
+		this.offsetKey = morphing;
+		this.morphingKey = morphing;
+	}
+
 	public long getOffsetKey() {
 		return offsetKey;
 	}
@@ -88,6 +88,90 @@ public class DeflateDeobfuscator {
 		return (int) (rightValue^(intermediate));
 	}
 
+	/**
+	 * 
+	 * @param intermediateKey
+	 *            the value returned by {@link #getIntermediateKey(short)}
+	 * @param leftValue
+	 * @return the same as {@link #getToggledObfuscationForLeftValue(short, int)} without recomputing the intermediate key
+	 */
+	public static int getToggledObfuscationForLeftValue(long intermediateKey, int leftValue) {
+		return (int) (leftValue ^ (intermediateKey >> 0x20));
+	}
+
+	/**
+	 * 
+	 * @param intermediateKey
+	 *            the value returned by {@link #getIntermediateKey(short)}
+	 * @param rightValue
+	 * @return the same as {@link #getToggledObfuscationForRightValue(short, int)} without recomputing the intermediate key
+	 */
+	public static int getToggledObfuscationForRightValue(long intermediateKey, int rightValue) {
+		return (int) (rightValue ^ intermediateKey);
+	}
+
+	/**
+	 * 
+	 * @param individualKey
+	 *            the deflate key of an entry
+	 * @return the key both halves of a segment header are toggled with, the upper 4 bytes apply to the left value and the
+	 *         lower 4 bytes to the right value
+	 */
+	public long getIntermediateKey(short individualKey) {
+		return generateIntermediateKey(individualKey);
+	}
+
+	/**
+	 * Toggles the obfuscation of {@code count} (key, left, right) triples in place, computing each intermediate key once
+	 * for both of its values.
+	 * 
+	 * @param individualKeys
+	 *            the deflate keys
+	 * @param leftValues
+	 *            the left (compressed size) values, replaced with their toggled values
+	 * @param rightValues
+	 *            the right (buffer size) values, replaced with their toggled values
+	 * @param offset
+	 *            the index of the first triple
+	 * @param count
+	 *            the number of triples
+	 */
+	public void toggleObfuscation(short[] individualKeys, int[] leftValues, int[] rightValues, int offset, int count) {
+		toggleObfuscation(individualKeys, leftValues, rightValues, null, offset, count);
+	}
+
+	/**
+	 * The same as {@link #toggleObfuscation(short[], int[], int[], int, int)} but also keeps each intermediate key so
+	 * that later values obfuscated with the same keys can be toggled without recomputing them
+	 * 
+	 * @param individualKeys
+	 *            the deflate keys
+	 * @param leftValues
+	 *            the left (compressed size) values, replaced with their toggled values
+	 * @param rightValues
+	 *            the right (buffer size) values, replaced with their toggled values
+	 * @param intermediateKeys
+	 *            receives the intermediate key of each triple, may be {@code null}
+	 * @param offset
+	 *            the index of the first triple
+	 * @param count
+	 *            the number of triples
+	 */
+	public void toggleObfuscation(short[] individualKeys, int[] leftValues, int[] rightValues, long[] intermediateKeys,
+			int offset, int count) {
+		final long greater = greaterKey;
+		final long lesser = lesserKey;
+		final int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			long intermediate = ((((long) individualKeys[i]) & 0xFFFF) * greater) + lesser;
+			if (intermediateKeys != null) {
+				intermediateKeys[i] = intermediate;
+			}
+			leftValues[i] ^= (int) (intermediate >> 0x20);
+			rightValues[i] ^= (int) intermediate;
+		}
+	}
+
 	/**
 	 * 
 	 * @param archiveKey
@@ -44,6 +44,18 @@ public class EventTrackingKeyGen extends KeyGen implements Timestamped<EventTrac
 		}
 	}
 
+	/**
+	 * Derives the keys one entry at a time so that every change is recorded
+	 */
+	@Override
+	public void deriveUnlockKeys(long[] transientKeys, int count, long[] lengthKeys, long[] offsetKeys) {
+		for (int i = 0; i < count; i++) {
+			setTransientKey(transientKeys[i]);
+			lengthKeys[i] = getLengthKey();
+			offsetKeys[i] = getOffsetKey();
+		}
+	}
+
 	/* (non-Javadoc)
 	 * @see com.ratzlaff.james.arc.earc.obfus.AbstractKeyGen#beforeSettingTransientKey(long)
 	 */
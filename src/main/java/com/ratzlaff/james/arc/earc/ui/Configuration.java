@@ -77,7 +77,13 @@ public class Configuration implements Serializable {
 	 */
 	private static final long serialVersionUID = -7993028549635347936L;
 
-	private static Path getConfigFolder() {
+	/**
+	 * 
+	 * @return the folder the configuration file (and anything else the
+	 *         application keeps between runs) lives in, creating it if it does
+	 *         not exist
+	 */
+	public static Path getConfigFolder() {
 		Path result = Paths.get(System.getProperty("user.home", "." + File.separator));
 		String appDataDir = System.getenv("APPDATA");
 		if (appDataDir != null) {
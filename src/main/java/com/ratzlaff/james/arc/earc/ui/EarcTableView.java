@@ -19,6 +19,7 @@ import com.ratzlaff.james.arc.earc.ContainerNode;
 import com.ratzlaff.james.arc.earc.EArcEntry;
 import com.ratzlaff.james.arc.earc.EArchiveFile;
 import com.ratzlaff.james.arc.earc.LeafNode;
+import com.ratzlaff.james.arc.earc.PathTrieBuilder;
 import com.ratzlaff.james.arc.earc.TreeNode;
 
 import javafx.beans.property.ReadOnlyObjectWrapper;
@@ -248,8 +249,9 @@ public class EarcTableView {
 	
 	public static ContainerNode<EArcEntry> addNodesFromArchives(ContainerNode<EArcEntry> root, Collection<Earchive> archives){
 		ContainerNode<EArcEntry> container = root!=null?root:ContainerNode.newRoot();
-		archives.forEach(archive->archive.getTree(container));
-		return container;
+		PathTrieBuilder<EArcEntry> builder = new PathTrieBuilder<EArcEntry>(container);
+		archives.forEach(archive->builder.addAll(archive.getEntries(), EArcEntry::getFilePath));
+		return builder.build();
 	}
 	
 	private static List<Earchive> createEarchivesFromPaths(Path path, Path...paths){
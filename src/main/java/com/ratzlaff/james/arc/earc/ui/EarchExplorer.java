@@ -2,16 +2,17 @@ package com.ratzlaff.james.arc.earc.ui;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import com.ratzlaff.james.arc.earc.ContainerNode;
 import com.ratzlaff.james.arc.earc.EArcEntry;
 import com.ratzlaff.james.arc.earc.LeafNode;
+import com.ratzlaff.james.arc.earc.ParallelExtractor;
 import com.ratzlaff.james.arc.earc.TreeNode;
 
 import javafx.application.Application;
@@ -52,7 +53,7 @@ public class EarchExplorer extends Application {
 							etv.getObservableList().addAll(rowData.listNodes());
 						} else {
 							etv.getObservableList()
-									.addAll(((ContainerNode<EArcEntry>) etv.getCurrentNode()).getAllChildren());
+									.addAll(((ContainerNode<EArcEntry>) etv.getCurrentNode()).listAllChildren());
 						}
 						tableView.sort();
 
@@ -92,10 +93,8 @@ public class EarchExplorer extends Application {
 						File o = entry.write(temp);
 						output.add(o);
 					} else {
-						List<EArcEntry> kids = ((ContainerNode<EArcEntry>)sourceFile).getAllChildren().stream().filter(child->child.isLeaf()).map(leaf->(LeafNode<EArcEntry>)leaf).map(leaf->leaf.getValue()).collect(Collectors.toList());
-						for(EArcEntry kid : kids) {
-							File f = kid.write(temp);
-							output.add(f);
+						try (ParallelExtractor extractor = new ParallelExtractor()) {
+							output.addAll(extractor.extractAll(sourceFile, temp));
 						}
 					}
 					Path copyPath = temp.resolve(Paths.get(sourceFile.toString()));
@@ -110,7 +109,7 @@ public class EarchExplorer extends Application {
 					}
 					event.consume();
 
-				} catch (IOException ex) {
+				} catch (IOException | UncheckedIOException ex) {
 					ex.printStackTrace();
 				}
 
@@ -155,7 +154,7 @@ public class EarchExplorer extends Application {
 		flatView.setOnAction(e -> {
 			etv.getObservableList().clear();
 			if (flatView.isSelected()) {
-				etv.getObservableList().addAll(((ContainerNode<EArcEntry>) etv.getCurrentNode()).getAllChildren());
+				etv.getObservableList().addAll(((ContainerNode<EArcEntry>) etv.getCurrentNode()).listAllChildren());
 			} else {
 				etv.getObservableList().addAll(etv.getCurrentNode().listNodes());
 			}
@@ -0,0 +1,283 @@
+/**
+ *
+ */
+package com.ratzlaff.james.util.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A read-only memory mapping of an entire file, no matter how large, made up of
+ * {@link MappedByteBuffer} windows of at most {@link #DEFAULT_WINDOW_SIZE}
+ * bytes. Consecutive windows overlap by {@link #DEFAULT_OVERLAP} bytes so that
+ * any range no longer than the overlap can always be served as a single slice
+ * of a single window. All values are read in native byte order.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class MappedWindows {
+	/**
+	 * The largest size of a single window (1 GB)
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+	/**
+	 * The number of bytes consecutive windows share (64 MB)
+	 */
+	public static final int DEFAULT_OVERLAP = 1 << 26;
+
+	private static final MappedByteBuffer[] NO_WINDOWS = new MappedByteBuffer[0];
+
+	private final long size;
+	private final long stride;
+	private final int overlap;
+	private final MappedByteBuffer[] windows;
+
+	private MappedWindows(long size, long stride, int overlap, MappedByteBuffer[] windows) {
+		this.size = size;
+		this.stride = stride;
+		this.overlap = overlap;
+		this.windows = windows;
+	}
+
+	/**
+	 * Maps all of {@code fc} using the default window size and overlap
+	 *
+	 * @param fc
+	 *            the channel to map
+	 * @return the mapped windows
+	 * @throws IOException
+	 */
+	public static MappedWindows map(FileChannel fc) throws IOException {
+		return map(fc, DEFAULT_WINDOW_SIZE, DEFAULT_OVERLAP);
+	}
+
+	/**
+	 *
+	 * @param fc
+	 *            the channel to map
+	 * @param windowSize
+	 *            the largest size of a single window
+	 * @param overlap
+	 *            the number of bytes consecutive windows share, must be less than
+	 *            {@code windowSize}
+	 * @return the mapped windows
+	 * @throws IOException
+	 */
+	public static MappedWindows map(FileChannel fc, int windowSize, int overlap) throws IOException {
+		if (windowSize < 1 || overlap < 0 || overlap >= windowSize) {
+			throw new IllegalArgumentException(
+					String.format("Invalid window size (%d) and overlap (%d)", windowSize, overlap));
+		}
+		long size = fc.size();
+		long stride = windowSize - overlap;
+		int count = 0;
+		if (size > 0) {
+			count = size <= windowSize ? 1 : (int) (1 + ((size - windowSize) + stride - 1) / stride);
+		}
+		MappedByteBuffer[] windows = count > 0 ? new MappedByteBuffer[count] : NO_WINDOWS;
+		for (int i = 0; i < count; i++) {
+			long start = i * stride;
+			MappedByteBuffer window = fc.map(MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+			window.order(ByteOrder.nativeOrder());
+			windows[i] = window;
+		}
+		return new MappedWindows(size, stride, overlap, windows);
+	}
+
+	/**
+	 *
+	 * @return the size of the mapped file
+	 */
+	public long size() {
+		return size;
+	}
+
+	public int getWindowCount() {
+		return windows.length;
+	}
+
+	/**
+	 *
+	 * @return the length of the longest range that is guaranteed to be sliced
+	 *         without copying
+	 */
+	public int getOverlap() {
+		return overlap;
+	}
+
+	/**
+	 *
+	 * @param offset
+	 *            the absolute offset of the first byte
+	 * @param len
+	 *            the number of bytes
+	 * @return {@code true} if the whole range is within the mapped file
+	 */
+	public boolean contains(long offset, long len) {
+		return offset > -1 && len > -1 && offset + len <= size;
+	}
+
+	private int windowIndex(long offset) {
+		return (int) Math.min(offset / stride, windows.length - 1);
+	}
+
+	private int relative(int windowIndex, long offset) {
+		return (int) (offset - (windowIndex * stride));
+	}
+
+	/**
+	 *
+	 * @param offset
+	 *            the absolute offset of the first byte
+	 * @param len
+	 *            the number of bytes
+	 * @return a read-only, native ordered buffer of the given range. If the range
+	 *         fits within a single window this is a view of that window, otherwise
+	 *         it is a heap copy. {@code null} is returned if the range is not
+	 *         within the mapped file.
+	 */
+	public ByteBuffer slice(long offset, int len) {
+		ByteBuffer result = null;
+		if (contains(offset, len)) {
+			int index = windowIndex(offset);
+			int rel = relative(index, offset);
+			MappedByteBuffer window = windows[index];
+			if (rel + len <= window.capacity()) {
+				ByteBuffer dup = window.duplicate();
+				dup.limit(rel + len).position(rel);
+				result = dup.slice().asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+			} else {
+				result = ByteBuffer.allocate(len).order(ByteOrder.nativeOrder());
+				read(offset, result);
+				result.flip();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Copies bytes starting at {@code offset} into {@code dst} until it is full or
+	 * the end of the file is reached
+	 *
+	 * @param offset
+	 *            the absolute offset of the first byte
+	 * @param dst
+	 *            the buffer to copy into
+	 * @return the number of bytes copied
+	 */
+	public int read(long offset, ByteBuffer dst) {
+		int total = 0;
+		long current = offset;
+		while (dst.hasRemaining() && current > -1 && current < size) {
+			int index = windowIndex(current);
+			int rel = relative(index, current);
+			MappedByteBuffer window = windows[index];
+			int count = Math.min(dst.remaining(), window.capacity() - rel);
+			ByteBuffer dup = window.duplicate();
+			dup.limit(rel + count).position(rel);
+			dst.put(dup);
+			current += count;
+			total += count;
+		}
+		return total;
+	}
+
+	private ByteBuffer spanning(long offset, int len) {
+		ByteBuffer bb = slice(offset, len);
+		if (bb == null) {
+			throw new IndexOutOfBoundsException(
+					String.format("%d bytes at offset %d is outside of a mapping of %d bytes", len, offset, size));
+		}
+		return bb;
+	}
+
+	private MappedByteBuffer windowFor(long offset, int len) {
+		MappedByteBuffer result = null;
+		if (contains(offset, len)) {
+			int index = windowIndex(offset);
+			if (relative(index, offset) + len <= windows[index].capacity()) {
+				result = windows[index];
+			}
+		}
+		return result;
+	}
+
+	public byte get(long offset) {
+		MappedByteBuffer window = windowFor(offset, Byte.BYTES);
+		return window != null ? window.get(relative(windowIndex(offset), offset))
+				: spanning(offset, Byte.BYTES).get(0);
+	}
+
+	public short getShort(long offset) {
+		MappedByteBuffer window = windowFor(offset, Short.BYTES);
+		return window != null ? window.getShort(relative(windowIndex(offset), offset))
+				: spanning(offset, Short.BYTES).getShort(0);
+	}
+
+	public int getInt(long offset) {
+		MappedByteBuffer window = windowFor(offset, Integer.BYTES);
+		return window != null ? window.getInt(relative(windowIndex(offset), offset))
+				: spanning(offset, Integer.BYTES).getInt(0);
+	}
+
+	/**
+	 * Compares {@code len} bytes starting at {@code offset} with {@code other},
+	 * both as unsigned values, reading the mapped bytes where they are rather
+	 * than copying or slicing them
+	 *
+	 * @param offset
+	 *            the absolute offset of the first byte
+	 * @param len
+	 *            the number of bytes
+	 * @param other
+	 *            the bytes to compare with
+	 * @return a negative number, zero or a positive number as the mapped range is
+	 *         less than, equal to or greater than {@code other}
+	 */
+	public int compareUnsigned(long offset, int len, byte[] other) {
+		int common = Math.min(len, other.length);
+		if (!contains(offset, common)) {
+			throw new IndexOutOfBoundsException(
+					String.format("%d bytes at offset %d is outside of a mapping of %d bytes", common, offset, size));
+		}
+		int i = 0;
+		while (i < common) {
+			int index = windowIndex(offset + i);
+			int rel = relative(index, offset + i);
+			MappedByteBuffer window = windows[index];
+			int end = rel + Math.min(common - i, window.capacity() - rel);
+			for (int j = rel; j < end; j++, i++) {
+				int result = (window.get(j) & 0xFF) - (other[i] & 0xFF);
+				if (result != 0) {
+					return result;
+				}
+			}
+		}
+		return Integer.compare(len, other.length);
+	}
+
+	public long getLong(long offset) {
+		MappedByteBuffer window = windowFor(offset, Long.BYTES);
+		return window != null ? window.getLong(relative(windowIndex(offset), offset))
+				: spanning(offset, Long.BYTES).getLong(0);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("MappedWindows [size=");
+		builder.append(size);
+		builder.append(", windows=");
+		builder.append(windows.length);
+		builder.append(", overlap=");
+		builder.append(overlap);
+		builder.append("]");
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,65 @@
+/**
+ *
+ */
+package com.ratzlaff.james.util.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Absolute-offset reads against a {@link FileChannel}. None of these methods
+ * use or modify the channel's position, so a single channel may be shared by
+ * any number of threads reading at the same time.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class PositionalReads {
+
+	private PositionalReads() {
+	}
+
+	/**
+	 * Reads from {@code fc} starting at {@code position} until {@code dst} is full
+	 * or the end of the channel is reached
+	 *
+	 * @param fc
+	 *            the channel to read from
+	 * @param dst
+	 *            the buffer to read into
+	 * @param position
+	 *            the absolute offset to begin reading at
+	 * @return the total number of bytes read, which may be less than
+	 *         {@code dst.remaining()} if the end of the channel was reached
+	 * @throws IOException
+	 */
+	public static int readFully(FileChannel fc, ByteBuffer dst, long position) throws IOException {
+		int totalRead = 0;
+		int read = 0;
+		while (dst.hasRemaining() && (read = fc.read(dst, position + totalRead)) != -1) {
+			totalRead += read;
+		}
+		return totalRead;
+	}
+
+	/**
+	 * The same as {@link #readFully(FileChannel, ByteBuffer, long)} but the buffer
+	 * is flipped afterwards so that it is ready to be read from
+	 *
+	 * @param fc
+	 *            the channel to read from
+	 * @param dst
+	 *            the buffer to read into
+	 * @param position
+	 *            the absolute offset to begin reading at
+	 * @return {@code dst}, flipped
+	 * @throws IOException
+	 */
+	public static ByteBuffer readFullyAndFlip(FileChannel fc, ByteBuffer dst, long position) throws IOException {
+		readFully(fc, dst, position);
+		dst.flip();
+		return dst;
+	}
+
+}
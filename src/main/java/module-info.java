@@ -8,5 +8,6 @@ module com.ratzlaff.james.arc.earc {
 	exports com.ratzlaff.james.arc.earc;
 	exports com.ratzlaff.james.arc.earc.ui;
 	exports com.ratzlaff.james.arc.earc.obfus;
+	exports com.ratzlaff.james.util.io;
 	
 }
\ No newline at end of file
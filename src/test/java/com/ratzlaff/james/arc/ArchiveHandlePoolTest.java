@@ -0,0 +1,171 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ratzlaff.james.arc.Earchive.OpenMode;
+import com.ratzlaff.james.arc.earc.EArcEntry;
+import com.ratzlaff.james.arc.earc.SyntheticEArc;
+
+/**
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class ArchiveHandlePoolTest {
+
+	@TempDir
+	Path folder;
+
+	private Path write(String name) throws Exception {
+		return new SyntheticEArc().setEntryCount(40).setAverageEntrySize(0x30000).setSeed(name.hashCode())
+				.write(folder.resolve(name));
+	}
+
+	@Test
+	public void leasedChannelsAreNotEvicted() throws Exception {
+		ArchiveHandlePool pool = new ArchiveHandlePool(1);
+		try (ArchiveHandlePool.Lease a = pool.lease(write("a.earc"));
+				ArchiveHandlePool.Lease b = pool.lease(write("b.earc"))) {
+			assertTrue(a.channel().isOpen());
+			assertTrue(b.channel().isOpen());
+			assertEquals(2, pool.getOpenCount());
+			assertEquals(0, pool.getEvictions());
+		}
+		assertEquals(1, pool.getOpenCount());
+		assertEquals(1, pool.getEvictions());
+	}
+
+	@Test
+	public void leasesOfTheSamePathShareOneChannel() throws Exception {
+		ArchiveHandlePool pool = new ArchiveHandlePool(4);
+		Path path = write("a.earc");
+		try (ArchiveHandlePool.Lease first = pool.lease(path);
+				ArchiveHandlePool.Lease second = pool.lease(path.getParent().resolve("./a.earc"))) {
+			assertSame(first.channel(), second.channel());
+			assertFalse(pool.close(path));
+			assertTrue(first.channel().isOpen());
+		}
+		assertTrue(pool.close(path));
+		assertEquals(0, pool.getOpenCount());
+	}
+
+	@Test
+	public void closingAnArchiveLeavesOtherArchivesOfTheSameFileReadable() throws Exception {
+		ArchiveHandlePool pool = new ArchiveHandlePool(4);
+		Path path = write("a.earc");
+		try (Earchive reader = Earchive.create(path, OpenMode.CHANNEL, pool)) {
+			EArcEntry[] entries = reader.getEntries();
+			byte[] before = entries[0].getExtractData();
+			Earchive other = Earchive.create(path, OpenMode.CHANNEL, pool);
+			other.getEntries();
+			other.close();
+			assertArrayEquals(before, entries[0].getExtractData());
+			try (ArchiveHandlePool.Lease lease = pool.lease(path)) {
+				FileChannel fc = lease.channel();
+				assertTrue(fc.isOpen());
+			}
+		}
+	}
+
+	/**
+	 * Many archives are open at once, as when a whole data folder is dropped into
+	 * the explorer. Archives that are not being read hold no channel, so no more
+	 * than the maximum stay open and evicted archives can still be read.
+	 */
+	@Test
+	public void openArchivesThatAreNotBeingReadHoldNoChannels() throws Exception {
+		int maxOpen = 8;
+		ArchiveHandlePool pool = new ArchiveHandlePool(maxOpen);
+		List<Earchive> earchives = new ArrayList<Earchive>();
+		try {
+			for (int i = 0; i < 50; i++) {
+				Path path = new SyntheticEArc().setEntryCount(10).setAverageEntrySize(0x400).setSeed(i)
+						.write(folder.resolve("archive" + i + ".earc"));
+				Earchive earchive = Earchive.create(path, OpenMode.CHANNEL, pool);
+				earchives.add(earchive);
+				assertEquals(10, earchive.getEntries().length);
+				assertTrue(pool.getOpenCount() <= maxOpen, pool.toString());
+			}
+			for (Earchive earchive : earchives) {
+				for (EArcEntry entry : earchive.getEntries()) {
+					assertEquals(entry.getExtractedSize(), entry.getExtractData().length);
+				}
+				assertTrue(pool.getOpenCount() <= maxOpen, pool.toString());
+			}
+			assertTrue(pool.getEvictions() > 0);
+		} finally {
+			for (Earchive earchive : earchives) {
+				earchive.close();
+			}
+		}
+	}
+
+	/**
+	 * More archives are read at once than the pool may keep open, so every new
+	 * lease has to evict something; none of the channels being read may be
+	 * closed
+	 */
+	@Test
+	public void evictionDoesNotCloseChannelsBeingRead() throws Exception {
+		ArchiveHandlePool pool = new ArchiveHandlePool(1);
+		int archiveCount = 6;
+		List<Path> paths = new ArrayList<Path>(archiveCount);
+		List<byte[][]> expected = new ArrayList<byte[][]>(archiveCount);
+		for (int i = 0; i < archiveCount; i++) {
+			Path path = write("archive" + i + ".earc");
+			paths.add(path);
+			try (Earchive earchive = Earchive.create(path)) {
+				EArcEntry[] entries = earchive.getEntries();
+				byte[][] data = new byte[entries.length][];
+				for (int j = 0; j < entries.length; j++) {
+					data[j] = entries[j].getExtractData();
+				}
+				expected.add(data);
+			}
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(archiveCount * 2);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int round = 0; round < 4; round++) {
+				for (int i = 0; i < archiveCount; i++) {
+					Path path = paths.get(i);
+					byte[][] data = expected.get(i);
+					futures.add(executor.submit(() -> {
+						try (Earchive earchive = Earchive.create(path, OpenMode.CHANNEL, pool)) {
+							EArcEntry[] entries = earchive.getEntries();
+							for (int j = 0; j < entries.length; j++) {
+								assertArrayEquals(data[j], entries[j].getExtractData(), entries[j].getFilePath());
+							}
+						}
+						return null;
+					}));
+				}
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertTrue(pool.getOpenCount() <= 1);
+	}
+
+}
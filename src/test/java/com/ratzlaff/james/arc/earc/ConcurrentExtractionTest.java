@@ -0,0 +1,109 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ratzlaff.james.arc.Earchive;
+import com.ratzlaff.james.arc.Earchive.OpenMode;
+
+/**
+ * Extracts every entry of a {@link SyntheticEArc} from several threads at once
+ * (all sharing the archive's one channel) and checks that each thread gets the
+ * same bytes as a single threaded run
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class ConcurrentExtractionTest {
+	private static final int THREADS = 8;
+	private static final int ENTRIES = 200;
+
+	@TempDir
+	Path folder;
+
+	@Test
+	public void plainArchive() throws Exception {
+		assertConcurrentReadsMatch(new SyntheticEArc().setEntryCount(ENTRIES).setAverageEntrySize(0x30000),
+				OpenMode.CHANNEL);
+	}
+
+	@Test
+	public void obfuscatedArchive() throws Exception {
+		assertConcurrentReadsMatch(
+				new SyntheticEArc().setEntryCount(ENTRIES).setAverageEntrySize(0x30000).setObfuscated(true),
+				OpenMode.CHANNEL);
+	}
+
+	@Test
+	public void mappedArchive() throws Exception {
+		assertConcurrentReadsMatch(
+				new SyntheticEArc().setEntryCount(ENTRIES).setAverageEntrySize(0x30000).setObfuscated(true),
+				OpenMode.MAPPED);
+	}
+
+	private void assertConcurrentReadsMatch(SyntheticEArc synthetic, OpenMode openMode) throws Exception {
+		Path path = synthetic.write(folder.resolve("synthetic.earc"));
+		byte[][] expected;
+		try (Earchive single = Earchive.create(path, openMode)) {
+			assertNotNull(single);
+			EArcEntry[] entries = single.getEntries();
+			assertEquals(ENTRIES, entries.length);
+			expected = new byte[entries.length][];
+			for (int i = 0; i < entries.length; i++) {
+				expected[i] = entries[i].getExtractData();
+			}
+		}
+		try (Earchive shared = Earchive.create(path, openMode)) {
+			EArcEntry[] entries = shared.getEntries();
+			ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+			try {
+				List<Future<byte[][]>> runs = new ArrayList<Future<byte[][]>>(THREADS);
+				for (int t = 0; t < THREADS; t++) {
+					runs.add(executor.submit(extractAll(entries, t)));
+				}
+				for (Future<byte[][]> run : runs) {
+					byte[][] actual = run.get();
+					for (int i = 0; i < expected.length; i++) {
+						assertArrayEquals(expected[i], actual[i], entries[i].getFilePath());
+					}
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Each thread starts at a different entry and steps through them with a
+	 * different stride so that the threads read different parts of the archive
+	 * at the same time
+	 */
+	private static Callable<byte[][]> extractAll(EArcEntry[] entries, int thread) {
+		return () -> {
+			byte[][] result = new byte[entries.length][];
+			int stride = thread % 2 == 0 ? 1 : entries.length - 1;
+			int index = (thread * entries.length) / THREADS;
+			for (int i = 0; i < entries.length; i++) {
+				result[index] = entries[index].getExtractData();
+				index = (index + stride) % entries.length;
+			}
+			return result;
+		};
+	}
+
+}
@@ -0,0 +1,193 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ratzlaff.james.arc.Earchive;
+
+/**
+ * Damages the second segment of one entry of a {@link SyntheticEArc} and checks
+ * that reading the entry fails rather than handing back truncated data
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class CorruptSegmentTest {
+	private static final int ENTRIES = 12;
+
+	@TempDir
+	Path folder;
+
+	private String corruptPath;
+
+	/**
+	 * Writes a synthetic archive and replaces the start of the compressed data of
+	 * the second segment of its first entry with enough segments to be inflated
+	 * by a {@link ParallelSegmentInflater} with {@code data}
+	 */
+	private Path write(byte[] data) throws Exception {
+		Path path = new SyntheticEArc().setEntryCount(ENTRIES).setAverageEntrySize(0x80000).setCompressedPercent(100)
+				.write(folder.resolve("corrupt.earc"));
+		long offset = -1;
+		try (Earchive earchive = Earchive.create(path)) {
+			for (EArcEntry entry : earchive.getEntries()) {
+				if (entry.getDeflateSegments().size() >= ParallelSegmentInflater.DEFAULT_MIN_SEGMENTS) {
+					DeflateSegment segment = entry.getDeflateSegments().get(1);
+					assertTrue(data.length <= segment.getCompressedSize());
+					offset = segment.getAbsoluteDeflateDataOffset();
+					corruptPath = entry.getFilePath();
+					break;
+				}
+			}
+		}
+		assertTrue(offset >= 0);
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			ByteBuffer bb = ByteBuffer.wrap(data);
+			while (bb.hasRemaining()) {
+				fc.write(bb, offset + bb.position());
+			}
+		}
+		return path;
+	}
+
+	/**
+	 *
+	 * @return a complete deflate stream that inflates to far fewer bytes than the
+	 *         segment it replaces
+	 */
+	private static byte[] shortStream() {
+		Deflater deflater = new Deflater();
+		byte[] contents = new byte[100];
+		Arrays.fill(contents, (byte) 'a');
+		deflater.setInput(contents);
+		deflater.finish();
+		byte[] compressed = new byte[256];
+		int len = deflater.deflate(compressed);
+		deflater.end();
+		return Arrays.copyOf(compressed, len);
+	}
+
+	/**
+	 *
+	 * @return bytes that are not a deflate stream at all
+	 */
+	private static byte[] garbage() {
+		byte[] garbage = new byte[64];
+		Arrays.fill(garbage, (byte) 0xff);
+		return garbage;
+	}
+
+	private void assertExtractionFails(Path path, boolean parallelSegments) throws Exception {
+		try (Earchive earchive = Earchive.create(path);
+				ParallelExtractor extractor = new ParallelExtractor(2, parallelSegments)) {
+			assertNotNull(earchive);
+			UncheckedIOException e = assertThrows(UncheckedIOException.class,
+					() -> extractor.extractAll(earchive, folder.resolve("out")));
+			assertTrue(e.getMessage().startsWith("1 of " + ENTRIES), e.getMessage());
+			assertTrue(e.getCause().getMessage().contains(corruptPath), e.getCause().getMessage());
+		}
+	}
+
+	@Test
+	public void shortSegmentFailsExtraction() throws Exception {
+		assertExtractionFails(write(shortStream()), false);
+	}
+
+	@Test
+	public void garbageSegmentFailsExtraction() throws Exception {
+		assertExtractionFails(write(garbage()), false);
+	}
+
+	@Test
+	public void shortSegmentFailsParallelExtraction() throws Exception {
+		assertExtractionFails(write(shortStream()), true);
+	}
+
+	@Test
+	public void garbageSegmentFailsParallelExtraction() throws Exception {
+		assertExtractionFails(write(garbage()), true);
+	}
+
+	@Test
+	public void shortSegmentFailsParallelInflate() throws Exception {
+		Path path = write(shortStream());
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try (Earchive earchive = Earchive.create(path)) {
+			ParallelSegmentInflater inflater = new ParallelSegmentInflater(executor);
+			for (EArcEntry entry : earchive.getEntries()) {
+				if (entry.getFilePath().equals(corruptPath)) {
+					assertThrows(UncheckedIOException.class, () -> inflater.inflate(entry));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void assertExtractDataFails(Path path) throws Exception {
+		try (Earchive earchive = Earchive.create(path)) {
+			for (EArcEntry entry : earchive.getEntries()) {
+				if (entry.getFilePath().equals(corruptPath)) {
+					assertThrows(UncheckedIOException.class, entry::getExtractData);
+				} else {
+					assertEquals(entry.getExtractedSize(), entry.getExtractData().length);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void shortSegmentFailsGetExtractData() throws Exception {
+		assertExtractDataFails(write(shortStream()));
+	}
+
+	@Test
+	public void garbageSegmentFailsGetExtractData() throws Exception {
+		assertExtractDataFails(write(garbage()));
+	}
+
+	@Test
+	public void shortSegmentFailsStream() throws Exception {
+		Path path = write(shortStream());
+		try (Earchive earchive = Earchive.create(path)) {
+			for (EArcEntry entry : earchive.getEntries()) {
+				if (entry.getFilePath().equals(corruptPath)) {
+					byte[] buffer = new byte[0x8000];
+					try (InputStream in = entry.openStream()) {
+						assertThrows(IOException.class, () -> {
+							while (in.read(buffer) >= 0) {
+							}
+						});
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void mainExitsWithFailure() throws Exception {
+		Path path = write(shortStream());
+		assertEquals(1, Main.doMain(new String[] { path.toString(), folder.resolve("out").toString() }));
+	}
+
+}
@@ -0,0 +1,130 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ratzlaff.james.arc.Earchive;
+import com.ratzlaff.james.arc.earc.EArcCatalog.KeyType;
+import com.ratzlaff.james.arc.earc.EArcCatalog.Location;
+
+/**
+ * Builds a catalog of a folder of {@link SyntheticEArc}s, whose paths overlap
+ * from one archive to the next, and checks that every path and url is found
+ * in every archive that has it
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class EArcCatalogTest {
+	private static final int[] ENTRY_COUNTS = { 40, 60, 80 };
+
+	@TempDir
+	Path folder;
+
+	/**
+	 * The archives in the catalog, in the order it keeps them in
+	 */
+	private final List<Path> archives = new ArrayList<Path>();
+
+	private EArcCatalog catalog;
+
+	@BeforeEach
+	public void build() throws IOException {
+		Path root = Files.createDirectories(folder.resolve("install"));
+		for (int i = 0; i < ENTRY_COUNTS.length; i++) {
+			// every entry is compressed, so entry n has the same path in every archive
+			// with more than n entries
+			Path path = new SyntheticEArc().setEntryCount(ENTRY_COUNTS[i]).setAverageEntrySize(0x400)
+					.setCompressedPercent(100).setSeed(i)
+					.write(Files.createDirectories(root.resolve("p" + i)).resolve("a.earc"));
+			archives.add(path.toAbsolutePath().normalize());
+		}
+		byte[] notAnArchive = new byte[0x100];
+		Arrays.fill(notAnArchive, (byte) 0x7f);
+		Files.write(root.resolve("p1").resolve("broken.earc"), notAnArchive);
+		Files.write(root.resolve("p2").resolve("readme.txt"), notAnArchive);
+		Path catalogPath = folder.resolve(EArcCatalog.DEFAULT_FILE_NAME);
+		assertEquals(ENTRY_COUNTS.length, EArcCatalog.build(root, catalogPath, 2));
+		catalog = EArcCatalog.open(catalogPath);
+	}
+
+	@Test
+	public void everyPathAndUrlIsFound() throws Exception {
+		assertEquals(archives.size(), catalog.getArchiveCount());
+		int keys = 0;
+		for (int a = 0; a < archives.size(); a++) {
+			assertEquals(archives.get(a), catalog.getArchive(a));
+			try (Earchive earchive = Earchive.create(archives.get(a))) {
+				for (EArcEntry entry : earchive.getEntries()) {
+					Location path = new Location(archives.get(a), entry.getIndex(), KeyType.PATH);
+					Location url = new Location(archives.get(a), entry.getIndex(), KeyType.DATA_URL);
+					assertTrue(catalog.find(entry.getFilePath()).contains(path), entry.getFilePath());
+					assertTrue(catalog.find(entry.getDataUrl()).contains(url), entry.getDataUrl());
+					keys += 2;
+				}
+			}
+		}
+		assertEquals(keys, catalog.getKeyCount());
+	}
+
+	@Test
+	public void findReturnsEveryArchiveInOrder() throws Exception {
+		for (int i = 0; i < ENTRY_COUNTS[ENTRY_COUNTS.length - 1]; i++) {
+			String filePath;
+			try (Earchive earchive = Earchive.create(archives.get(archives.size() - 1))) {
+				filePath = earchive.getEntryAt(i).getFilePath();
+			}
+			List<Location> expected = new ArrayList<Location>();
+			for (int a = 0; a < archives.size(); a++) {
+				if (i < ENTRY_COUNTS[a]) {
+					expected.add(new Location(archives.get(a), i, KeyType.PATH));
+				}
+			}
+			assertEquals(expected, catalog.find(filePath), filePath);
+			assertEquals(expected.get(0), catalog.findFirst(filePath), filePath);
+			List<Location> urls = catalog.find("data://" + filePath);
+			assertEquals(expected.size(), urls.size(), filePath);
+			for (int j = 0; j < urls.size(); j++) {
+				assertEquals(expected.get(j).getArchive(), urls.get(j).getArchive(), filePath);
+				assertEquals(KeyType.DATA_URL, urls.get(j).getKeyType(), filePath);
+			}
+		}
+	}
+
+	@Test
+	public void missingKeysAreNotFound() throws Exception {
+		String path;
+		try (Earchive earchive = Earchive.create(archives.get(0))) {
+			path = earchive.getEntryAt(0).getFilePath();
+		}
+		for (String key : new String[] { "", "a", "synthetic", "synthetic/d0", path.substring(0, path.length() - 1),
+				path + "x", path.toUpperCase(), "\u00ff", "\uffff" }) {
+			assertTrue(catalog.find(key).isEmpty(), key);
+			assertNull(catalog.findFirst(key), key);
+		}
+		assertTrue(catalog.find(null).isEmpty());
+		assertNull(catalog.findFirst(null));
+	}
+
+	@Test
+	public void openRejectsOtherFiles() throws Exception {
+		assertThrows(IOException.class, () -> EArcCatalog.open(archives.get(0)));
+	}
+
+}
@@ -0,0 +1,171 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Saves the tables of a {@link SyntheticEArc} to an {@link EArcIndexCache} and
+ * checks that they come back the same, and that an index which no longer
+ * matches its archive (or cannot be read) is passed over for decoding the
+ * archive again
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class EArcIndexCacheTest {
+	private static final int ENTRIES = 150;
+
+	@TempDir
+	Path folder;
+
+	private Path archive(boolean obfuscated) throws Exception {
+		return new SyntheticEArc().setEntryCount(ENTRIES).setAverageEntrySize(0x2000).setObfuscated(obfuscated)
+				.write(folder.resolve("indexed.earc"));
+	}
+
+	private EArcIndexCache cache() {
+		return new EArcIndexCache(folder.resolve("index"));
+	}
+
+	/**
+	 * Reads all of the entries of the archive {@code fc} is open on without a cache
+	 */
+	private static EArcEntry[] decode(FileChannel fc) {
+		return new EArcHeader(() -> fc).getEntries();
+	}
+
+	/**
+	 * Reads the entries of {@code path} through {@code cache}, saving its index if
+	 * it is not there or out of date
+	 */
+	private static EArcEntry[] index(FileChannel fc, EArcIndexCache cache, Path path) {
+		return new EArcHeader(() -> fc).setIndexCache(cache, path).getEntries();
+	}
+
+	private static void assertSameEntries(EArcEntry[] expected, EArcEntry[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			String path = expected[i].getFilePath();
+			assertEquals(path, actual[i].getFilePath());
+			assertEquals(expected[i].getDataUrl(), actual[i].getDataUrl(), path);
+			assertEquals(expected[i].getTransientKey(), actual[i].getTransientKey(), path);
+			assertEquals(expected[i].getExtractedSize(), actual[i].getExtractedSize(), path);
+			assertEquals(expected[i].getLength(), actual[i].getLength(), path);
+			assertEquals(expected[i].getType(), actual[i].getType(), path);
+			assertEquals(expected[i].getDataLocation(), actual[i].getDataLocation(), path);
+			assertEquals(expected[i].getDeflateKey(), actual[i].getDeflateKey(), path);
+			assertEquals(expected[i].isCompressed(), actual[i].isCompressed(), path);
+			if (i % 10 == 0) {
+				assertArrayEquals(expected[i].getExtractData(), actual[i].getExtractData(), path);
+			}
+		}
+	}
+
+	private void assertRoundTrip(boolean obfuscated) throws Exception {
+		Path path = archive(obfuscated);
+		EArcIndexCache cache = cache();
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			EArcEntry[] expected = decode(fc);
+			assertFalse(Files.exists(cache.getIndexPath(path)));
+			assertSameEntries(expected, index(fc, cache, path));
+			assertTrue(Files.isRegularFile(cache.getIndexPath(path)));
+			EArcHeader header = new EArcHeader(() -> fc);
+			assertTrue(cache.restore(path, header));
+			assertSameEntries(expected, header.getEntries());
+			assertSameEntries(expected, index(fc, cache, path));
+		}
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		assertRoundTrip(false);
+	}
+
+	@Test
+	public void obfuscatedRoundTrip() throws Exception {
+		assertRoundTrip(true);
+	}
+
+	@Test
+	public void changedModifiedTimeIsRejected() throws Exception {
+		Path path = archive(true);
+		EArcIndexCache cache = cache();
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			index(fc, cache, path);
+			assertTrue(cache.restore(path, new EArcHeader(() -> fc)));
+			FileTime modified = Files.getLastModifiedTime(path);
+			Files.setLastModifiedTime(path, FileTime.fromMillis(modified.toMillis() + 60000));
+			assertFalse(cache.restore(path, new EArcHeader(() -> fc)));
+			// reading the archive again brings the index up to date
+			assertSameEntries(decode(fc), index(fc, cache, path));
+			assertTrue(cache.restore(path, new EArcHeader(() -> fc)));
+		}
+	}
+
+	@Test
+	public void changedSizeIsRejected() throws Exception {
+		Path path = archive(false);
+		EArcIndexCache cache = cache();
+		FileTime modified = Files.getLastModifiedTime(path);
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			index(fc, cache, path);
+			assertTrue(cache.restore(path, new EArcHeader(() -> fc)));
+		}
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			fc.write(ByteBuffer.allocate(16));
+		}
+		Files.setLastModifiedTime(path, modified);
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			assertFalse(cache.restore(path, new EArcHeader(() -> fc)));
+			assertSameEntries(decode(fc), index(fc, cache, path));
+			assertTrue(cache.restore(path, new EArcHeader(() -> fc)));
+		}
+	}
+
+	@Test
+	public void truncatedIndexFallsBackToDecoding() throws Exception {
+		Path path = archive(true);
+		EArcIndexCache cache = cache();
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			EArcEntry[] expected = decode(fc);
+			index(fc, cache, path);
+			Path indexPath = cache.getIndexPath(path);
+			byte[] saved = Files.readAllBytes(indexPath);
+			// cut the index off part way through what it recorded
+			Files.write(indexPath, Arrays.copyOf(saved, saved.length / 2));
+			assertFalse(cache.restore(path, new EArcHeader(() -> fc)));
+			assertSameEntries(expected, index(fc, cache, path));
+			assertArrayEquals(saved, Files.readAllBytes(indexPath));
+			assertTrue(cache.restore(path, new EArcHeader(() -> fc)));
+		}
+	}
+
+	@Test
+	public void invalidateDeletesTheIndex() throws Exception {
+		Path path = archive(false);
+		EArcIndexCache cache = cache();
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			index(fc, cache, path);
+		}
+		assertTrue(Files.exists(cache.getIndexPath(path)));
+		cache.invalidate(path);
+		assertFalse(Files.exists(cache.getIndexPath(path)));
+	}
+
+}
@@ -0,0 +1,155 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ratzlaff.james.arc.Earchive;
+import com.ratzlaff.james.arc.earc.EArcMetrics.Format;
+import com.ratzlaff.james.arc.earc.EArcMetrics.Metric;
+
+/**
+ * Checks that {@link EArcMetrics} only records while enabled, how it is
+ * formatted, and that extracting a {@link SyntheticEArc} counts what was
+ * extracted
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class EArcMetricsTest {
+
+	@TempDir
+	Path folder;
+
+	@Test
+	public void disabledRecordsNothing() {
+		EArcMetrics metrics = new EArcMetrics(false);
+		assertFalse(metrics.isEnabled());
+		assertEquals(0l, metrics.getBytesRead().get());
+		metrics.getBytesRead().add(100);
+		metrics.getArchivesOpened().increment();
+		assertEquals(0l, metrics.getOutputWrite().start());
+		metrics.getOutputWrite().record(System.nanoTime());
+		metrics.getOutputWrite().recordNanos(5);
+		assertEquals(0l, metrics.getBytesRead().get());
+		assertEquals(0l, metrics.getArchivesOpened().get());
+		assertEquals(0l, metrics.getOutputWrite().getCount());
+		assertEquals(0l, metrics.getOutputWrite().getTotalNanos());
+	}
+
+	@Test
+	public void enabledRecordsUntilDisabled() {
+		EArcMetrics metrics = new EArcMetrics(false).setEnabled(true);
+		metrics.getBytesRead().add(100);
+		metrics.getBytesRead().add(28);
+		metrics.getArchivesOpened().increment();
+		metrics.getSegmentInflate().recordNanos(30);
+		metrics.getSegmentInflate().recordNanos(70);
+		metrics.getSegmentInflate().recordNanos(20);
+		long start = metrics.getHeaderParse().start();
+		assertTrue(start != 0l);
+		metrics.getHeaderParse().record(start);
+		// a timer started while disabled records nothing even once enabled again
+		metrics.getHeaderParse().record(0l);
+		metrics.setEnabled(false);
+		metrics.getBytesRead().add(1000);
+		assertEquals(128l, metrics.getBytesRead().get());
+		assertEquals(1l, metrics.getArchivesOpened().get());
+		assertEquals(3l, metrics.getSegmentInflate().getCount());
+		assertEquals(120l, metrics.getSegmentInflate().getTotalNanos());
+		assertEquals(70l, metrics.getSegmentInflate().getMaxNanos());
+		assertEquals(1l, metrics.getHeaderParse().getCount());
+		metrics.reset();
+		assertEquals(0l, metrics.getBytesRead().get());
+		assertEquals(0l, metrics.getSegmentInflate().getCount());
+		assertEquals(0l, metrics.getSegmentInflate().getMaxNanos());
+	}
+
+	@Test
+	public void jsonHasEveryMetric() {
+		EArcMetrics metrics = new EArcMetrics(true);
+		metrics.getBytesWritten().add(4096);
+		metrics.getOutputWrite().recordNanos(1500);
+		metrics.getOutputWrite().recordNanos(500);
+		String json = metrics.format(Format.JSON);
+		assertEquals(json, metrics.toString());
+		assertTrue(json.startsWith("{\"earc_archives_opened_total\":0,"), json);
+		assertTrue(json.endsWith("}"), json);
+		assertTrue(json.contains("\"earc_bytes_written_total\":4096,"), json);
+		assertTrue(json.contains("\"earc_output_write_seconds\":{\"count\":2,\"totalNanos\":2000,\"maxNanos\":1500}"),
+				json);
+		for (Metric metric : metrics.getMetrics()) {
+			assertTrue(json.contains("\"" + metric.getName() + "\":"), metric.getName());
+		}
+	}
+
+	@Test
+	public void prometheusHasEveryMetric() {
+		EArcMetrics metrics = new EArcMetrics(true);
+		metrics.getBytesInflated().add(12345);
+		metrics.getMetadataDecode().recordNanos(1_500_000_000l);
+		metrics.getMetadataDecode().recordNanos(250_000_000l);
+		String text = metrics.format(Format.PROMETHEUS);
+		assertTrue(text.contains("# HELP earc_bytes_inflated_total Bytes inflated\n"
+				+ "# TYPE earc_bytes_inflated_total counter\n" + "earc_bytes_inflated_total 12345\n"), text);
+		assertTrue(text.contains("# TYPE earc_metadata_decode_seconds summary\n"
+				+ "earc_metadata_decode_seconds_count 2\n" + "earc_metadata_decode_seconds_sum 1.750000000\n"), text);
+		assertTrue(text.contains("# HELP earc_metadata_decode_seconds_max The longest time spent reading"), text);
+		assertTrue(text.contains("earc_metadata_decode_seconds_max 1.500000000\n"), text);
+		for (Metric metric : metrics.getMetrics()) {
+			assertTrue(text.contains("# HELP " + metric.getName() + " " + metric.getHelp() + "\n"), metric.getName());
+		}
+		// every line that is not a comment is a name and a number
+		Pattern sample = Pattern.compile("[a-z_]+ [0-9]+(\\.[0-9]+)?");
+		for (String line : text.split("\n")) {
+			if (!line.startsWith("#")) {
+				Matcher matcher = sample.matcher(line);
+				assertTrue(matcher.matches(), line);
+			}
+		}
+	}
+
+	@Test
+	public void extractionIsRecorded() throws Exception {
+		Path path = new SyntheticEArc().setEntryCount(40).setAverageEntrySize(0x30000).write(folder.resolve("m.earc"));
+		EArcMetrics metrics = EArcMetrics.DEFAULT_INSTANCE;
+		boolean enabled = metrics.isEnabled();
+		metrics.setEnabled(true).reset();
+		try {
+			long extracted = 0;
+			long inflated = 0;
+			long segments = 0;
+			try (Earchive earchive = Earchive.create(path);
+					ParallelExtractor extractor = new ParallelExtractor(2, false)) {
+				for (EArcEntry entry : earchive.getEntries()) {
+					extracted += entry.getExtractedSize();
+					if (entry.isCompressed()) {
+						inflated += entry.getExtractedSize();
+						segments += entry.getDeflateSegments().size();
+					}
+				}
+				extractor.extractAll(earchive, folder.resolve("out"));
+			}
+			assertEquals(1l, metrics.getArchivesOpened().get());
+			assertEquals(1l, metrics.getHeaderParse().getCount());
+			assertEquals(1l, metrics.getMetadataDecode().getCount());
+			assertEquals(extracted, metrics.getBytesWritten().get());
+			assertEquals(inflated, metrics.getBytesInflated().get());
+			assertEquals(segments, metrics.getSegmentInflate().getCount());
+			assertTrue(metrics.getBytesRead().get() > 0);
+		} finally {
+			metrics.setEnabled(enabled).reset();
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ratzlaff.james.arc.Earchive;
+
+/**
+ * Writes {@link SyntheticEArc}s whose {@link SyntheticEArc#addReference(String,
+ * String) references} point into other synthetic archives and checks that they
+ * resolve to the entries (and data) they point to
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class EArcReferenceResolverTest {
+	private static final String ONE = "character/one.earc";
+	private static final String TWO = "character/two.earc";
+	private static final int TARGET_ENTRIES = 20;
+	private static final int SOURCE_ENTRIES = 10;
+
+	@TempDir
+	Path folder;
+
+	private Path data;
+
+	@BeforeEach
+	public void writeTargets() throws Exception {
+		data = Files.createDirectories(folder.resolve("data"));
+		for (String name : new String[] { ONE, TWO }) {
+			Path path = data.resolve(name);
+			Files.createDirectories(path.getParent());
+			new SyntheticEArc().setEntryCount(TARGET_ENTRIES).setAverageEntrySize(0x800).setObfuscated(true)
+					.setSeed(name.hashCode()).write(path);
+		}
+	}
+
+	private String dataUrl(String archiveName, int index) throws Exception {
+		try (Earchive earchive = Earchive.create(data.resolve(archiveName))) {
+			return earchive.getEntryAt(index).getDataUrl();
+		}
+	}
+
+	private byte[] extractData(String archiveName, String dataUrl) throws Exception {
+		try (Earchive earchive = Earchive.create(data.resolve(archiveName))) {
+			for (EArcEntry entry : earchive.getEntries()) {
+				if (dataUrl.equals(entry.getDataUrl())) {
+					return entry.getExtractData();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes an archive to {@code path} whose references alternate between the
+	 * first {@code count} entries of {@link #ONE} and {@link #TWO}
+	 *
+	 * @return the archive names of the references, in order
+	 */
+	private List<String> writeSource(Path path, int count) throws Exception {
+		SyntheticEArc source = new SyntheticEArc().setEntryCount(SOURCE_ENTRIES).setAverageEntrySize(0x400);
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			String name = (i & 1) == 0 ? ONE : TWO;
+			source.addReference(name, dataUrl(name, i));
+			names.add(name);
+		}
+		Files.createDirectories(path.getParent());
+		source.write(path);
+		return names;
+	}
+
+	private static List<EArcEntry> references(Earchive earchive) {
+		List<EArcEntry> references = new ArrayList<EArcEntry>();
+		for (EArcEntry entry : earchive.getEntries()) {
+			if (EArcReferenceResolver.isReference(entry)) {
+				references.add(entry);
+			}
+		}
+		return references;
+	}
+
+	private void assertResolvedTo(EArcEntry reference, String name, EArcEntry resolved) throws Exception {
+		String url = EArcReferenceResolver.getTargetDataUrl(reference);
+		assertNotNull(resolved, url);
+		assertFalse(EArcReferenceResolver.isReference(resolved), url);
+		assertEquals(url, resolved.getDataUrl());
+		assertArrayEquals(extractData(name, url), resolved.getExtractData(), url);
+	}
+
+	@Test
+	public void resolvesFromTheRoot() throws Exception {
+		Path sourcePath = data.resolve("source.earc");
+		List<String> names = writeSource(sourcePath, 8);
+		try (Earchive source = Earchive.create(sourcePath);
+				EArcReferenceResolver resolver = new EArcReferenceResolver(data)) {
+			List<EArcEntry> references = references(source);
+			assertEquals(names.size(), references.size());
+			assertEquals(SOURCE_ENTRIES + names.size(), source.getEntries().length);
+			for (int i = 0; i < references.size(); i++) {
+				EArcEntry reference = references.get(i);
+				assertEquals(names.get(i), EArcReferenceResolver.getTargetArchiveName(reference));
+				assertEquals(data.resolve(names.get(i)), resolver.getTargetArchivePath(null, reference));
+				assertResolvedTo(reference, names.get(i), resolver.resolve(null, reference));
+			}
+			assertEquals(2, resolver.getOpenedCount());
+			EArcEntry plain = source.getEntryAt(0);
+			assertSame(plain, resolver.resolve(null, plain));
+		}
+	}
+
+	@Test
+	public void searchesTheFoldersAboveTheSource() throws Exception {
+		Path sourcePath = data.resolve("deeper").resolve("still").resolve("source.earc");
+		List<String> names = writeSource(sourcePath, 4);
+		try (Earchive source = Earchive.create(sourcePath);
+				EArcReferenceResolver resolver = new EArcReferenceResolver(null)) {
+			List<EArcEntry> references = references(source);
+			for (int i = 0; i < references.size(); i++) {
+				assertResolvedTo(references.get(i), names.get(i), resolver.resolve(sourcePath, references.get(i)));
+			}
+			assertNull(resolver.resolve(null, references.get(0)));
+		}
+	}
+
+	@Test
+	public void followsReferencesToReferences() throws Exception {
+		String url = dataUrl(ONE, 3);
+		new SyntheticEArc().setEntryCount(2).setAverageEntrySize(0x400).addReference(ONE, url)
+				.write(data.resolve("middle.earc"));
+		Path sourcePath = data.resolve("source.earc");
+		new SyntheticEArc().setEntryCount(2).setAverageEntrySize(0x400)
+				.addReference("middle.earc", url + EArcReferenceResolver.REFERENCE_SUFFIX).write(sourcePath);
+		try (Earchive source = Earchive.create(sourcePath);
+				EArcReferenceResolver resolver = new EArcReferenceResolver(data)) {
+			EArcEntry reference = references(source).get(0);
+			EArcEntry resolved = resolver.resolve(null, reference);
+			assertNotNull(resolved);
+			assertEquals(url, resolved.getDataUrl());
+			assertArrayEquals(extractData(ONE, url), resolved.getExtractData());
+			assertEquals(2, resolver.getOpenedCount());
+		}
+	}
+
+	@Test
+	public void missingTargetsAreNotResolved() throws Exception {
+		Path sourcePath = data.resolve("source.earc");
+		new SyntheticEArc().setEntryCount(2).setAverageEntrySize(0x400).addReference(ONE, dataUrl(ONE, 0))
+				.addReference("character/missing.earc", dataUrl(ONE, 0)).addReference(ONE, "data://missing.btex")
+				.write(sourcePath);
+		try (Earchive source = Earchive.create(sourcePath);
+				EArcReferenceResolver resolver = new EArcReferenceResolver(data)) {
+			List<EArcEntry> references = references(source);
+			assertNotNull(resolver.resolve(null, references.get(0)));
+			assertNull(resolver.getTargetArchivePath(null, references.get(1)));
+			assertNull(resolver.resolve(null, references.get(1)));
+			assertNull(resolver.resolve(null, references.get(2)));
+			Map<EArcEntry, EArcEntry> resolved = resolver.resolveAll(null, Arrays.asList(source.getEntries()));
+			assertEquals(1, resolved.size());
+			assertTrue(resolved.containsKey(references.get(0)));
+		}
+	}
+
+	/**
+	 * References that alternate between two archives, with room for only one
+	 * open archive, still open each archive once when resolved together
+	 */
+	@Test
+	public void resolveAllOpensEachTargetOnce() throws Exception {
+		Path sourcePath = data.resolve("source.earc");
+		List<String> names = writeSource(sourcePath, 12);
+		try (Earchive source = Earchive.create(sourcePath);
+				EArcReferenceResolver together = new EArcReferenceResolver(data, 1);
+				EArcReferenceResolver oneByOne = new EArcReferenceResolver(data, 1)) {
+			List<EArcEntry> references = references(source);
+			Map<EArcEntry, EArcEntry> resolved = together.resolveAll(null, Arrays.asList(source.getEntries()));
+			assertEquals(references.size(), resolved.size());
+			assertEquals(2, together.getOpenedCount());
+			assertEquals(1, together.getOpenCount());
+			for (int i = 0; i < references.size(); i++) {
+				// the entries of the archive that was closed open its channel again
+				assertResolvedTo(references.get(i), names.get(i), resolved.get(references.get(i)));
+				oneByOne.resolve(null, references.get(i));
+			}
+			assertEquals(references.size(), oneByOne.getOpenedCount());
+			together.close();
+			assertEquals(0, together.getOpenCount());
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ratzlaff.james.arc.Earchive;
+
+/**
+ * Checks that a tree built by a {@link PathTrieBuilder} is node for node the
+ * same as one built by
+ * {@link LeafNode#addToAndGetContainer(ContainerNode, Object, String, String...)}
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class PathTrieBuilderTest {
+
+	@TempDir
+	Path folder;
+
+	@Test
+	public void pathsSharingAndLeavingFolders() {
+		assertSameTree(new String[] { "a/b/c/one.txt", "a/b/c/two.txt", "a/b/three.txt", "a/b/c/d/four.txt",
+				"a/x/five.txt", "b/six.txt", "a/b/c/seven.txt", "/leading/eight.txt", "a//b/nine.txt",
+				"a/b /ten.txt", "x/a/b/c/eleven.txt", "twelve.txt", "a/b/c/d/e/f/g/thirteen.txt",
+				"a/bc/fourteen.txt", "a/b/cd/fifteen.txt" });
+	}
+
+	@Test
+	public void syntheticArchive() throws Exception {
+		Path path = new SyntheticEArc().setEntryCount(300).setAverageEntrySize(0x400).write(folder.resolve("a.earc"));
+		try (Earchive earchive = Earchive.create(path)) {
+			EArcEntry[] entries = earchive.getEntries();
+			ContainerNode<EArcEntry> expected = ContainerNode.newRoot();
+			for (EArcEntry entry : entries) {
+				LeafNode.addToAndGetContainer(expected, entry, entry.getFilePath());
+			}
+			assertSameNode(expected, earchive.getTree());
+		}
+	}
+
+	@Test
+	public void severalArchivesIntoOneRoot() throws Exception {
+		ContainerNode<EArcEntry> expected = ContainerNode.newRoot();
+		PathTrieBuilder<EArcEntry> builder = new PathTrieBuilder<EArcEntry>();
+		for (int i = 0; i < 3; i++) {
+			Path path = new SyntheticEArc().setEntryCount(50 + i * 20).setAverageEntrySize(0x400).setSeed(i)
+					.write(folder.resolve("a" + i + ".earc"));
+			try (Earchive earchive = Earchive.create(path)) {
+				EArcEntry[] entries = earchive.getEntries();
+				for (EArcEntry entry : entries) {
+					LeafNode.addToAndGetContainer(expected, entry, entry.getFilePath());
+				}
+				builder.addAll(entries, EArcEntry::getFilePath);
+			}
+		}
+		assertSameNode(expected, builder.build());
+	}
+
+	private static void assertSameTree(String[] paths) {
+		ContainerNode<String> expected = ContainerNode.newRoot();
+		PathTrieBuilder<String> builder = new PathTrieBuilder<String>();
+		for (String path : paths) {
+			LeafNode.addToAndGetContainer(expected, path, path);
+			builder.add(path, path);
+		}
+		assertSameNode(expected, builder.build());
+	}
+
+	private static <T> void assertSameNode(TreeNode<T> expected, TreeNode<T> actual) {
+		String path = expected.getPath();
+		assertEquals(path, actual.getPath());
+		assertEquals(expected.getName(), actual.getName(), path);
+		assertEquals(expected.isLeaf(), actual.isLeaf(), path);
+		assertSame(expected.getValue(), actual.getValue(), path);
+		List<String> expectedNames = childNames(expected);
+		assertEquals(expectedNames, childNames(actual), path);
+		for (String name : expectedNames) {
+			TreeNode<T> expectedChild = expected.getChildren().get(name);
+			TreeNode<T> actualChild = actual.getChildren().get(name);
+			assertSame(actual, actualChild.getParent(), actualChild.getPath());
+			assertSameNode(expectedChild, actualChild);
+		}
+	}
+
+	private static List<String> childNames(TreeNode<?> node) {
+		List<String> names = new ArrayList<String>();
+		if (node.hasChildren()) {
+			for (Map.Entry<String, ? extends TreeNode<?>> child : node.getChildren().entrySet()) {
+				if (!"..".equals(child.getKey())) {
+					names.add(child.getKey());
+				}
+			}
+		}
+		return names;
+	}
+
+}
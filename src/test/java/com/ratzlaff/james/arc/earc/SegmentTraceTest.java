@@ -0,0 +1,142 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ratzlaff.james.arc.Earchive;
+import com.ratzlaff.james.arc.earc.SegmentTrace.Record;
+
+/**
+ * Reads the segments of a {@link SyntheticEArc} with a {@link SegmentTrace}
+ * sampling them and checks which segments are traced and what is recorded of
+ * them
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class SegmentTraceTest {
+
+	@TempDir
+	Path folder;
+
+	/**
+	 *
+	 * @return every segment of {@code earchive}, in order
+	 */
+	private static List<DeflateSegment> segments(Earchive earchive) {
+		List<DeflateSegment> segments = new ArrayList<DeflateSegment>();
+		for (EArcEntry entry : earchive.getEntries()) {
+			segments.addAll(entry.getDeflateSegments());
+		}
+		return segments;
+	}
+
+	private Path archive(boolean obfuscated) throws Exception {
+		return new SyntheticEArc().setEntryCount(30).setAverageEntrySize(0x30000).setCompressedPercent(80)
+				.setObfuscated(obfuscated).write(folder.resolve("traced.earc"));
+	}
+
+	private static void assertRecordOf(DeflateSegment segment, Record record) {
+		EArcEntry entry = segment.getParentPointer();
+		String message = entry.getFilePath() + "@" + segment.getEntryOffset();
+		assertEquals(entry.getFilePath(), record.getFilePath(), message);
+		assertEquals(segment.getEntryOffset(), record.getEntryOffset(), message);
+		assertEquals(entry.getDataLocation() + segment.getEntryOffset(), record.getAbsoluteOffset(), message);
+		assertEquals(segment.getCompressedSize(), record.getCompressedSize(), message);
+		assertEquals(segment.getBufferSize(), record.getBufferSize(), message);
+		assertEquals(segment.getEndPadding(), record.getEndPadding(), message);
+		assertEquals(segment.getDeflateKey() != null, record.isObfuscated(), message);
+		assertTrue(record.toString().startsWith("segment filePath=\"" + entry.getFilePath() + "\""), message);
+	}
+
+	@Test
+	public void sampleIntervalPicksEveryNthSegment() throws Exception {
+		try (Earchive earchive = Earchive.create(archive(true))) {
+			List<DeflateSegment> segments = segments(earchive);
+			assertTrue(segments.size() > 10);
+			for (int interval : new int[] { 1, 2, 3, 7 }) {
+				List<Record> records = new ArrayList<Record>();
+				SegmentTrace trace = new SegmentTrace(interval).setSink(records::add);
+				assertTrue(trace.isEnabled());
+				for (DeflateSegment segment : segments) {
+					trace.segmentRead(segment);
+				}
+				assertEquals(segments.size(), trace.getSeenCount());
+				assertEquals((segments.size() + interval - 1) / interval, trace.getTracedCount());
+				assertEquals(trace.getTracedCount(), records.size());
+				for (int i = 0; i < records.size(); i++) {
+					assertRecordOf(segments.get(i * interval), records.get(i));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void offTracesNothing() throws Exception {
+		try (Earchive earchive = Earchive.create(archive(false))) {
+			List<Record> records = new ArrayList<Record>();
+			SegmentTrace trace = new SegmentTrace(-4).setSink(records::add);
+			assertFalse(trace.isEnabled());
+			assertEquals(0, trace.getSampleInterval());
+			for (DeflateSegment segment : segments(earchive)) {
+				trace.segmentRead(segment);
+			}
+			trace.setSampleInterval(1).setSampleInterval(0);
+			for (DeflateSegment segment : segments(earchive)) {
+				trace.segmentRead(segment);
+			}
+			assertEquals(0, trace.getSeenCount());
+			assertEquals(0, trace.getTracedCount());
+			assertTrue(records.isEmpty());
+		}
+	}
+
+	@Test
+	public void nullSinkLogs() {
+		SegmentTrace trace = new SegmentTrace(1);
+		Consumer<Record> logging = trace.getSink();
+		trace.setSink(record -> {
+		});
+		trace.setSink(null);
+		assertSame(logging, trace.getSink());
+	}
+
+	/**
+	 * Reading the segments of an archive traces them through
+	 * {@link SegmentTrace#DEFAULT_INSTANCE}
+	 */
+	@Test
+	public void readingSegmentsTracesThem() throws Exception {
+		SegmentTrace trace = SegmentTrace.DEFAULT_INSTANCE;
+		int interval = trace.getSampleInterval();
+		Consumer<Record> sink = trace.getSink();
+		List<Record> records = new ArrayList<Record>();
+		long seen = trace.getSeenCount();
+		trace.setSampleInterval(1).setSink(records::add);
+		List<DeflateSegment> segments;
+		try (Earchive earchive = Earchive.create(archive(true))) {
+			segments = segments(earchive);
+		} finally {
+			trace.setSampleInterval(interval).setSink(sink);
+		}
+		assertEquals(segments.size(), trace.getSeenCount() - seen);
+		assertEquals(segments.size(), records.size());
+		for (int i = 0; i < segments.size(); i++) {
+			assertRecordOf(segments.get(i), records.get(i));
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class SubtreeSpliteratorTest {
+
+	private static ContainerNode<Integer> tree(int leaves) {
+		PathTrieBuilder<Integer> builder = new PathTrieBuilder<Integer>();
+		for (int i = 0; i < leaves; i++) {
+			builder.add(i, "d" + (i % 7) + "/s" + (i % 11) + "/e" + i);
+		}
+		return builder.build();
+	}
+
+	@Test
+	public void splittingHalvesTheEstimate() {
+		ContainerNode<Integer> root = tree(1000);
+		Spliterator<TreeNode<Integer>> spliterator = root.subtreeSpliterator();
+		assertEquals(Long.MAX_VALUE, spliterator.estimateSize());
+		// the root is split from its seven folders, which are then split 4 and 3,
+		// then 2 and 2
+		assertNotNull(spliterator.trySplit());
+		long before = spliterator.estimateSize();
+		for (int i = 0; i < 2; i++) {
+			Spliterator<TreeNode<Integer>> split = spliterator.trySplit();
+			assertNotNull(split);
+			long after = spliterator.estimateSize();
+			assertEquals(before >>> 1, after);
+			assertEquals(after, split.estimateSize());
+			before = after;
+		}
+	}
+
+	@Test
+	public void estimateIsNeverBelowWhatIsLeft() {
+		Spliterator<TreeNode<Integer>> spliterator = tree(10).subtreeSpliterator();
+		while (spliterator.trySplit() != null) {
+		}
+		assertTrue(spliterator.estimateSize() >= 1);
+		spliterator.forEachRemaining(node -> {
+		});
+		assertEquals(0, spliterator.estimateSize());
+	}
+
+	@Test
+	public void parallelStreamVisitsEveryNodeOnce() {
+		ContainerNode<Integer> root = tree(5000);
+		List<TreeNode<Integer>> sequential = root.streamSubtree(false).collect(Collectors.toList());
+		List<TreeNode<Integer>> parallel = root.streamSubtree(true).collect(Collectors.toList());
+		assertEquals(sequential.size(), parallel.size());
+		Set<TreeNode<Integer>> seen = new HashSet<TreeNode<Integer>>(parallel);
+		assertEquals(parallel.size(), seen.size());
+		assertTrue(seen.containsAll(sequential));
+		assertEquals(5000, root.streamLeafNodes(true).count());
+	}
+
+}
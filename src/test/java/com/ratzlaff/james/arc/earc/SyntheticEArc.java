@@ -0,0 +1,368 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.zip.Deflater;
+
+import com.ratzlaff.james.arc.Earchive;
+import com.ratzlaff.james.arc.earc.obfus.DeflateDeobfuscator;
+import com.ratzlaff.james.arc.earc.obfus.KeyGen;
+
+/**
+ * Writes made up .earc files for the tests and benchmarks, so they can be run
+ * without any game data. The contents are random text, the paths and data urls follow
+ * the shape of real ones, and compressed entries are split into
+ * {@link EArcEntry#MAX_INFLATE_BUFFER_SIZE} byte segments the way the game's
+ * are. Obfuscated archives are obfuscated with whatever keys are configured
+ * (the same ones used to read them), so they round trip whether or not real
+ * keys have been entered.
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class SyntheticEArc {
+	/**
+	 * The version found in the archives of the PC release
+	 */
+	public static final int VERSION = 0x30014;
+	public static final int OBFUSCATED_VERSION_FLAG = 0x80000000;
+	public static final int DATA_ALIGNMENT = 0x200;
+	public static final int STRING_ALIGNMENT = 8;
+	public static final int COMPRESSED_TYPE = 2;
+	public static final int UNCOMPRESSED_TYPE = 0;
+
+	private static final byte[] ALPHABET = "abcdefghijklmnopqrstuvw \n\t{}[]=;0123456789"
+			.getBytes(StandardCharsets.US_ASCII);
+
+	private int entryCount = 1000;
+	private int averageEntrySize = 0x4000;
+	private int compressedPercent = 50;
+	private boolean obfuscated;
+	private long seed = 0x65617263L;
+	private final List<String> referenceArchives = new ArrayList<String>();
+	private final List<String> referenceDataUrls = new ArrayList<String>();
+
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	public SyntheticEArc setEntryCount(int entryCount) {
+		this.entryCount = Math.max(0, entryCount);
+		return this;
+	}
+
+	public int getAverageEntrySize() {
+		return averageEntrySize;
+	}
+
+	/**
+	 *
+	 * @param averageEntrySize
+	 *            the average size of an entry before it is compressed, the actual
+	 *            sizes are spread evenly between half and one and a half times this
+	 * @return this instance
+	 */
+	public SyntheticEArc setAverageEntrySize(int averageEntrySize) {
+		this.averageEntrySize = Math.max(2, averageEntrySize);
+		return this;
+	}
+
+	public int getCompressedPercent() {
+		return compressedPercent;
+	}
+
+	/**
+	 *
+	 * @param compressedPercent
+	 *            the percentage (0 to 100) of entries that are compressed
+	 * @return this instance
+	 */
+	public SyntheticEArc setCompressedPercent(int compressedPercent) {
+		this.compressedPercent = Math.max(0, Math.min(100, compressedPercent));
+		return this;
+	}
+
+	public boolean isObfuscated() {
+		return obfuscated;
+	}
+
+	public SyntheticEArc setObfuscated(boolean obfuscated) {
+		this.obfuscated = obfuscated;
+		return this;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 *
+	 * @param seed
+	 *            the seed of the random contents, the same settings and seed
+	 *            always write the same file
+	 * @return this instance
+	 */
+	public SyntheticEArc setSeed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Adds a {@link EArcReferenceResolver#REFERENCE_TYPE reference} entry, after
+	 * the {@link #getEntryCount() generated entries}, to the entry with the data
+	 * url {@code dataUrl} in the archive {@code archiveName}
+	 *
+	 * @param archiveName
+	 *            the path of the archive the entry refers to, relative to the data
+	 *            folder
+	 * @param dataUrl
+	 *            the data url of the entry within that archive
+	 * @return this instance
+	 */
+	public SyntheticEArc addReference(String archiveName, String dataUrl) {
+		referenceArchives.add(archiveName);
+		referenceDataUrls.add(dataUrl);
+		return this;
+	}
+
+	/**
+	 * Writes an archive with the current settings to {@code out}, replacing it if
+	 * it exists
+	 *
+	 * @param out
+	 *            the file to write
+	 * @return {@code out}
+	 * @throws IOException
+	 *             if the file could not be written
+	 */
+	public Path write(Path out) throws IOException {
+		SplittableRandom random = new SplittableRandom(seed);
+		int count = entryCount + referenceArchives.size();
+		byte[][] data = new byte[count][];
+		int[] extractedSizes = new int[count];
+		int[] types = new int[count];
+		short[] deflateKeys = new short[count];
+		byte[][] urls = new byte[count][];
+		byte[][] paths = new byte[count][];
+		for (int i = 0; i < entryCount; i++) {
+			boolean compressed = random.nextInt(100) < compressedPercent;
+			int size = (averageEntrySize >> 1) + random.nextInt(averageEntrySize);
+			byte[] contents = randomText(random, size);
+			String dir = "synthetic/d" + (i % 16) + "/s" + (i % 5);
+			String name = "e" + i + (compressed ? ".btex" : ".lnkani");
+			urls[i] = ("data://" + dir + "/" + name).getBytes(StandardCharsets.UTF_8);
+			paths[i] = (dir + "/" + name).getBytes(StandardCharsets.UTF_8);
+			extractedSizes[i] = contents.length;
+			types[i] = compressed ? COMPRESSED_TYPE : UNCOMPRESSED_TYPE;
+			deflateKeys[i] = obfuscated ? (short) random.nextInt() : 0;
+			data[i] = compressed ? toSegments(contents, obfuscated ? deflateKeys[i] : null) : contents;
+		}
+		for (int i = entryCount; i < count; i++) {
+			int reference = i - entryCount;
+			urls[i] = (referenceDataUrls.get(reference) + EArcReferenceResolver.REFERENCE_SUFFIX)
+					.getBytes(StandardCharsets.UTF_8);
+			paths[i] = (EArcReferenceResolver.ARCHIVES_PREFIX + referenceArchives.get(reference))
+					.getBytes(StandardCharsets.UTF_8);
+			types[i] = EArcReferenceResolver.REFERENCE_TYPE;
+			data[i] = new byte[0];
+		}
+
+		int metadataLocation = EArcHeader.HEADER_SIZE;
+		int urlTableLocation = align(metadataLocation + (EArcEntry.METADATA_RECORD_SIZE * count), STRING_ALIGNMENT);
+		ByteArrayOutputStream strings = new ByteArrayOutputStream();
+		int[] urlLocations = new int[count];
+		for (int i = 0; i < count; i++) {
+			urlLocations[i] = urlTableLocation + strings.size();
+			writeString(strings, urls[i]);
+		}
+		int pathTableLocation = urlTableLocation + strings.size();
+		int[] pathLocations = new int[count];
+		for (int i = 0; i < count; i++) {
+			pathLocations[i] = urlTableLocation + strings.size();
+			writeString(strings, paths[i]);
+		}
+		int dataTableLocation = align(urlTableLocation + strings.size(), DATA_ALIGNMENT);
+		long[] dataLocations = new long[count];
+		long position = dataTableLocation;
+		for (int i = 0; i < count; i++) {
+			dataLocations[i] = position;
+			position = alignLong(position + data[i].length, DATA_ALIGNMENT);
+		}
+
+		long obfuscationKey = obfuscated ? random.nextLong() : 0l;
+		ByteBuffer head = ByteBuffer.allocate(urlTableLocation).order(ByteOrder.nativeOrder());
+		head.putInt(Earchive.MAGIC);
+		head.putInt(obfuscated ? (VERSION | OBFUSCATED_VERSION_FLAG) : VERSION);
+		head.putInt(count);
+		head.putInt(DATA_ALIGNMENT);
+		head.putInt(metadataLocation);
+		head.putInt(urlTableLocation);
+		head.putInt(pathTableLocation);
+		head.putInt(dataTableLocation);
+		head.putInt(1);
+		head.putInt(0x80);
+		head.putLong(obfuscationKey);
+		writeMetadata(head, metadataLocation, random, obfuscationKey, extractedSizes, data, types, urlLocations,
+				dataLocations, pathLocations, deflateKeys);
+		head.clear();
+
+		try (FileChannel fc = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(fc, head, 0);
+			writeFully(fc, ByteBuffer.wrap(strings.toByteArray()), urlTableLocation);
+			for (int i = 0; i < count; i++) {
+				writeFully(fc, ByteBuffer.wrap(data[i]), dataLocations[i]);
+			}
+			if (fc.size() < position) {
+				writeFully(fc, ByteBuffer.allocate((int) (position - fc.size())), fc.size());
+			}
+		}
+		return out;
+	}
+
+	private void writeMetadata(ByteBuffer head, int metadataLocation, SplittableRandom random, long obfuscationKey,
+			int[] extractedSizes, byte[][] data, int[] types, int[] urlLocations, long[] dataLocations,
+			int[] pathLocations, short[] deflateKeys) {
+		int count = extractedSizes.length;
+		long[] transientKeys = new long[count];
+		for (int i = 0; i < count; i++) {
+			transientKeys[i] = random.nextLong();
+		}
+		long[] lengthKeys = new long[count];
+		long[] offsetKeys = new long[count];
+		if (obfuscated) {
+			new KeyGen(obfuscationKey).deriveUnlockKeys(transientKeys, count, lengthKeys, offsetKeys);
+		}
+		head.position(metadataLocation);
+		for (int i = 0; i < count; i++) {
+			head.putLong(transientKeys[i]);
+			head.putInt(extractedSizes[i] ^ (int) (lengthKeys[i] >> 0x20));
+			head.putInt(data[i].length ^ (int) lengthKeys[i]);
+			head.putInt(types[i]);
+			head.putInt(urlLocations[i]);
+			head.putLong(dataLocations[i] ^ offsetKeys[i]);
+			head.putInt(pathLocations[i]);
+			head.putShort((short) 0);
+			head.putShort(deflateKeys[i]);
+		}
+	}
+
+	private static byte[] randomText(SplittableRandom random, int len) {
+		byte[] text = new byte[len];
+		int i = 0;
+		while (i < len) {
+			// repeat short runs so the text compresses about as well as real data
+			int run = Math.min(len - i, 4 + random.nextInt(28));
+			if (i > 0x100 && random.nextInt(3) == 0) {
+				System.arraycopy(text, random.nextInt(i - run), text, i, run);
+			} else {
+				for (int j = 0; j < run; j++) {
+					text[i + j] = ALPHABET[random.nextInt(ALPHABET.length)];
+				}
+			}
+			i += run;
+		}
+		return text;
+	}
+
+	/**
+	 *
+	 * @param contents
+	 *            the bytes to compress
+	 * @param deflateKey
+	 *            the key to obfuscate the first segment header with, {@code null}
+	 *            if the archive is not obfuscated
+	 * @return {@code contents} as a sequence of 4-byte aligned deflate segments
+	 */
+	private static byte[] toSegments(byte[] contents, Short deflateKey) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(contents.length);
+		Deflater deflater = new Deflater();
+		byte[] compressed = new byte[EArcEntry.MAX_INFLATE_BUFFER_SIZE + 0x400];
+		ByteBuffer segmentHeader = ByteBuffer.allocate(Integer.BYTES << 1).order(ByteOrder.nativeOrder());
+		try {
+			for (int offset = 0; offset < contents.length; offset += EArcEntry.MAX_INFLATE_BUFFER_SIZE) {
+				int len = Math.min(EArcEntry.MAX_INFLATE_BUFFER_SIZE, contents.length - offset);
+				deflater.reset();
+				deflater.setInput(contents, offset, len);
+				deflater.finish();
+				int compressedSize = 0;
+				while (!deflater.finished()) {
+					if (compressedSize == compressed.length) {
+						compressed = Arrays.copyOf(compressed, compressed.length << 1);
+					}
+					compressedSize += deflater.deflate(compressed, compressedSize, compressed.length - compressedSize);
+				}
+				int leftValue = compressedSize;
+				int rightValue = len;
+				if (deflateKey != null && offset == 0) {
+					leftValue = DeflateDeobfuscator.DEFAULT_INSTANCE.getToggledObfuscationForLeftValue(deflateKey,
+							leftValue);
+					rightValue = DeflateDeobfuscator.DEFAULT_INSTANCE.getToggledObfuscationForRightValue(deflateKey,
+							rightValue);
+				}
+				segmentHeader.clear();
+				segmentHeader.putInt(leftValue).putInt(rightValue);
+				out.write(segmentHeader.array(), 0, segmentHeader.capacity());
+				out.write(compressed, 0, compressedSize);
+				int padding = (Integer.BYTES - (out.size() & (Integer.BYTES - 1))) & (Integer.BYTES - 1);
+				out.write(new byte[padding], 0, padding);
+			}
+		} finally {
+			deflater.end();
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeString(ByteArrayOutputStream out, byte[] str) {
+		out.write(str, 0, str.length);
+		int padded = align(str.length + 1, STRING_ALIGNMENT);
+		out.write(new byte[padded - str.length], 0, padded - str.length);
+	}
+
+	private static void writeFully(FileChannel fc, ByteBuffer src, long position) throws IOException {
+		while (src.hasRemaining()) {
+			position += fc.write(src, position);
+		}
+	}
+
+	private static int align(int value, int alignment) {
+		return (int) alignLong(value, alignment);
+	}
+
+	private static long alignLong(long value, int alignment) {
+		return ((value + alignment - 1) / alignment) * alignment;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("SyntheticEArc [entryCount=");
+		builder.append(entryCount);
+		builder.append(", averageEntrySize=");
+		builder.append(averageEntrySize);
+		builder.append(", compressedPercent=");
+		builder.append(compressedPercent);
+		builder.append(", obfuscated=");
+		builder.append(obfuscated);
+		builder.append(", seed=");
+		builder.append(seed);
+		builder.append(", references=");
+		builder.append(referenceArchives.size());
+		builder.append("]");
+		return builder.toString();
+	}
+
+}
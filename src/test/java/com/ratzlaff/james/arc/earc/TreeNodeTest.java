@@ -0,0 +1,190 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks {@link TreeNode#PATH_ORDER} against ordering the names of each path
+ * one at a time, and that the cached depth, hash and path of a node agree with
+ * its names
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class TreeNodeTest {
+	private static final String[] PATHS = { "a/b/c/one", "a/b/c/two", "a/b/three", "a/b/c/d/four", "a/x/five",
+			"b/six", "a/b/c/seven", "ab/eight", "a/bc/nine", "b/a/ten", "c", "a/b/cd/eleven", "A/twelve",
+			"a/b/c/d/e/f/thirteen" };
+
+	/**
+	 * Orders paths by comparing their names one at a time, a path coming before
+	 * any longer path it starts with
+	 */
+	private static final Comparator<TreeNode<?>> BY_NAMES = (a, b) -> {
+		List<String> aNames = names(a);
+		List<String> bNames = names(b);
+		for (int i = 0; i < Math.min(aNames.size(), bNames.size()); i++) {
+			int cmp = aNames.get(i).compareTo(bNames.get(i));
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return Integer.compare(aNames.size(), bNames.size());
+	};
+
+	private static List<String> names(TreeNode<?> node) {
+		List<String> names = new ArrayList<String>();
+		for (TreeNode<?> current = node; current != null && !current.isRoot(); current = current.getParent()) {
+			names.add(current.getName());
+		}
+		Collections.reverse(names);
+		return names;
+	}
+
+	private static ContainerNode<String> tree(String... paths) {
+		ContainerNode<String> root = ContainerNode.newRoot();
+		for (String path : paths) {
+			LeafNode.addToAndGetLeaf(root, path, path);
+		}
+		return root;
+	}
+
+	private static List<TreeNode<String>> nodes(ContainerNode<String> root) {
+		return root.streamSubtree(false).collect(Collectors.toList());
+	}
+
+	private static TreeNode<String> node(TreeNode<String> from, String path) {
+		TreeNode<String> node = from;
+		for (String name : path.split(TreeNode.SEPARATOR)) {
+			node = node.getChildren().get(name);
+		}
+		return node;
+	}
+
+	@Test
+	public void pathOrderSortsLikeComparingNames() {
+		List<TreeNode<String>> nodes = nodes(tree(PATHS));
+		List<TreeNode<String>> expected = new ArrayList<TreeNode<String>>(nodes);
+		Collections.sort(expected, BY_NAMES);
+		for (long seed = 0; seed < 20; seed++) {
+			List<TreeNode<String>> actual = new ArrayList<TreeNode<String>>(nodes);
+			Collections.shuffle(actual, new Random(seed));
+			Collections.sort(actual, TreeNode.PATH_ORDER);
+			assertEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void pathOrderAgreesWithEveryPair() {
+		List<TreeNode<String>> nodes = nodes(tree(PATHS));
+		for (TreeNode<String> a : nodes) {
+			for (TreeNode<String> b : nodes) {
+				int expected = Integer.signum(BY_NAMES.compare(a, b));
+				assertEquals(expected, Integer.signum(TreeNode.PATH_ORDER.compare(a, b)), a + " vs " + b);
+				assertEquals(-expected, Integer.signum(TreeNode.PATH_ORDER.compare(b, a)), b + " vs " + a);
+			}
+		}
+	}
+
+	@Test
+	public void pathOrderPutsParentsFirstAndNullsLast() {
+		ContainerNode<String> root = tree(PATHS);
+		TreeNode<String> folder = node(root, "a/b");
+		TreeNode<String> leaf = node(root, "a/b/c/one");
+		assertTrue(TreeNode.PATH_ORDER.compare(root, folder) < 0);
+		assertTrue(TreeNode.PATH_ORDER.compare(folder, leaf) < 0);
+		assertTrue(TreeNode.PATH_ORDER.compare(leaf, null) > 0);
+		assertTrue(TreeNode.PATH_ORDER.compare(null, leaf) < 0);
+		assertEquals(0, TreeNode.PATH_ORDER.compare(leaf, leaf));
+	}
+
+	@Test
+	public void pathOrderMatchesAcrossTrees() {
+		TreeNode<String> first = node(tree(PATHS), "a/b/c/two");
+		TreeNode<String> second = node(tree("a/b/c/two", "a/b/c/one"), "a/b/c/two");
+		TreeNode<String> before = node(tree("a/b/c/one"), "a/b/c/one");
+		assertEquals(0, TreeNode.PATH_ORDER.compare(first, second));
+		assertEquals(first, second);
+		assertEquals(first.hashCode(), second.hashCode());
+		assertTrue(TreeNode.PATH_ORDER.compare(before, second) < 0);
+	}
+
+	@Test
+	public void renamingAFolderUpdatesEveryNodeUnderIt() {
+		ContainerNode<String> root = tree(PATHS);
+		TreeNode<String> folder = node(root, "a/b");
+		TreeNode<String> leaf = node(root, "a/b/c/d/four");
+		int hash = leaf.hashCode();
+		assertEquals("a/b/c/d/four", leaf.getPath());
+		assertEquals(5, leaf.getDepth());
+		folder.setName("z");
+		assertEquals("a/z/c/d/four", leaf.getPath());
+		assertEquals(5, leaf.getDepth());
+		assertNotEquals(hash, leaf.hashCode());
+		TreeNode<String> moved = LeafNode.addToAndGetLeaf(ContainerNode.newRoot(), leaf.getValue(), "a/z/c/d/four");
+		assertEquals(moved, leaf);
+		assertEquals(moved.hashCode(), leaf.hashCode());
+		assertTrue(TreeNode.PATH_ORDER.compare(node(root, "a/x/five"), leaf) < 0);
+	}
+
+	/**
+	 * Several threads work out the cached values of the same fresh nodes at once,
+	 * every one of them has to see what a single thread works out
+	 */
+	@Test
+	public void cachedValuesAreTheSameFromEveryThread() throws Exception {
+		List<TreeNode<String>> expected = nodes(tree(PATHS));
+		List<String> paths = new ArrayList<String>();
+		List<Integer> hashes = new ArrayList<Integer>();
+		List<Integer> depths = new ArrayList<Integer>();
+		for (TreeNode<String> node : expected) {
+			paths.add(node.getPath());
+			hashes.add(node.hashCode());
+			depths.add(node.getDepth());
+		}
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int round = 0; round < 50; round++) {
+				List<TreeNode<String>> nodes = nodes(tree(PATHS));
+				List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+				for (int t = 0; t < threads; t++) {
+					int offset = t;
+					futures.add(executor.submit((Callable<Void>) () -> {
+						for (int i = 0; i < nodes.size(); i++) {
+							int index = nodes.size() - 1 - (i + offset) % nodes.size();
+							TreeNode<String> node = nodes.get(index);
+							assertEquals(hashes.get(index).intValue(), node.hashCode(), paths.get(index));
+							assertEquals(paths.get(index), node.getPath());
+							assertEquals(depths.get(index).intValue(), node.getDepth(), paths.get(index));
+						}
+						return null;
+					}));
+				}
+				for (Future<?> future : futures) {
+					future.get();
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package com.ratzlaff.james.arc.earc.obfus;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that {@link AbstractKeyGen#deriveUnlockKeys(long[], int, long[], long[])}
+ * hands back the same keys, and leaves the generator in the same state, as
+ * calling {@link AbstractKeyGen#setTransientKeyAndGetEntryUnlockKey(long)} for
+ * each entry in turn
+ *
+ * @author James Ratzlaff
+ *
+ */
+public class KeyGenTest {
+	private static final long[] PARENT_KEYS = { 0l, 1l, -1l, 0xCBF29CE484222325l, 0x100000001B3l,
+			Long.MIN_VALUE, Long.MAX_VALUE, 0x0123456789ABCDEFl };
+
+	private static long[] transientKeys(long seed, int count) {
+		Random random = new Random(seed);
+		long[] keys = new long[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = random.nextLong();
+		}
+		if (count > 2) {
+			keys[0] = 0l;
+			keys[1] = -1l;
+		}
+		return keys;
+	}
+
+	private static void assertSameState(AbstractKeyGen expected, AbstractKeyGen actual, String message) {
+		assertEquals(expected.getTransientKey(), actual.getTransientKey(), message);
+		assertEquals(expected.getLengthKey(), actual.getLengthKey(), message);
+		assertEquals(expected.getOffsetKey(), actual.getOffsetKey(), message);
+		assertEquals(expected.getMorphingKey(), actual.getMorphingKey(), message);
+	}
+
+	/**
+	 * Derives the keys of {@code transientKeys} with {@code derived} in runs of at
+	 * most {@code run} entries and compares them with what {@code chained} gives
+	 * back one entry at a time
+	 */
+	private static void assertSameKeys(AbstractKeyGen chained, AbstractKeyGen derived, long[] transientKeys, int run,
+			String message) {
+		long[] lengthKeys = new long[run];
+		long[] offsetKeys = new long[run];
+		for (int start = 0; start < transientKeys.length; start += run) {
+			int count = Math.min(run, transientKeys.length - start);
+			long[] keys = new long[count];
+			System.arraycopy(transientKeys, start, keys, 0, count);
+			derived.deriveUnlockKeys(keys, count, lengthKeys, offsetKeys);
+			for (int i = 0; i < count; i++) {
+				EntryUnlockKeys expected = chained.setTransientKeyAndGetEntryUnlockKey(keys[i]);
+				String where = message + " entry " + (start + i);
+				assertEquals(expected.getLengthInArchiveUnlockKey(), lengthKeys[i], where);
+				assertEquals(expected.getDataOffsetUnlockKey(), offsetKeys[i], where);
+			}
+			assertSameState(chained, derived, message + " after entry " + (start + count - 1));
+		}
+	}
+
+	@Test
+	public void deriveMatchesSettingEachTransientKey() {
+		for (int p = 0; p < PARENT_KEYS.length; p++) {
+			long[] transientKeys = transientKeys(p, 500);
+			assertSameKeys(new KeyGen(PARENT_KEYS[p]), new KeyGen(PARENT_KEYS[p]), transientKeys,
+					transientKeys.length, "parent key " + Long.toHexString(PARENT_KEYS[p]));
+		}
+	}
+
+	@Test
+	public void deriveMatchesWithOtherMinorAndMajorKeys() {
+		Random random = new Random(42);
+		for (int i = 0; i < 20; i++) {
+			long minor = random.nextLong();
+			long major = random.nextLong();
+			long parent = random.nextLong();
+			long[] transientKeys = transientKeys(i, 100);
+			assertSameKeys(new KeyGen(minor, major, parent), new KeyGen(minor, major, parent), transientKeys,
+					transientKeys.length, "minor " + Long.toHexString(minor) + " major " + Long.toHexString(major));
+		}
+	}
+
+	/**
+	 * A later run has to carry on from where the previous one left the generator
+	 */
+	@Test
+	public void consecutiveRunsCarryOn() {
+		for (int p = 0; p < PARENT_KEYS.length; p++) {
+			long[] transientKeys = transientKeys(100 + p, 257);
+			for (int run : new int[] { 1, 2, 7, 64, 256 }) {
+				assertSameKeys(new KeyGen(PARENT_KEYS[p]), new KeyGen(PARENT_KEYS[p]), transientKeys, run,
+						"parent key " + Long.toHexString(PARENT_KEYS[p]) + " run " + run);
+			}
+		}
+	}
+
+	@Test
+	public void deriveNothingLeavesTheState() {
+		KeyGen expected = new KeyGen(PARENT_KEYS[3]);
+		KeyGen actual = new KeyGen(PARENT_KEYS[3]);
+		actual.deriveUnlockKeys(new long[0], 0, new long[0], new long[0]);
+		assertSameState(expected, actual, "nothing derived");
+	}
+
+}